@@ -0,0 +1,53 @@
+package ch.idsia.project;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Kernels written with the incubating JDK Vector API, using the widest double vectors the CPU has.
+ * This source root needs JDK 16+; compile and run with --add-modules jdk.incubator.vector, e.g.
+ *
+ *   javac --add-modules jdk.incubator.vector -cp <classes> -d <classes> Mario/src-vector/ch/idsia/project/VectorKernels.java
+ *   java --add-modules jdk.incubator.vector -cp <classes> ...
+ *
+ * Kernels picks this class up when it loads; without it, QNetwork uses the plain loops.
+ */
+final class VectorKernels extends Kernels {
+
+	private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+	void axpy(double a, double[] x, int xOff, double[] y, int yOff, int n) {
+		int k = 0;
+		int bound = SPECIES.loopBound(n);
+		DoubleVector va = DoubleVector.broadcast(SPECIES, a);
+		for (; k < bound; k += SPECIES.length()) {
+			DoubleVector vx = DoubleVector.fromArray(SPECIES, x, xOff + k);
+			DoubleVector vy = DoubleVector.fromArray(SPECIES, y, yOff + k);
+			vx.fma(va, vy).intoArray(y, yOff + k);
+		}
+		for (; k < n; k++) {
+			y[yOff + k] += a * x[xOff + k];
+		}
+	}
+
+	double dot(double[] x, int xOff, double[] y, int yOff, int n) {
+		int k = 0;
+		int bound = SPECIES.loopBound(n);
+		DoubleVector acc = DoubleVector.zero(SPECIES);
+		for (; k < bound; k += SPECIES.length()) {
+			DoubleVector vx = DoubleVector.fromArray(SPECIES, x, xOff + k);
+			DoubleVector vy = DoubleVector.fromArray(SPECIES, y, yOff + k);
+			acc = vx.fma(vy, acc);
+		}
+		double sum = acc.reduceLanes(VectorOperators.ADD);
+		for (; k < n; k++) {
+			sum += x[xOff + k] * y[yOff + k];
+		}
+		return sum;
+	}
+
+	String name() {
+		return "vector/" + SPECIES.length() + "x64";
+	}
+}
@@ -0,0 +1,151 @@
+package ch.idsia.project;
+
+import java.util.Arrays;
+
+/**
+ * Maps the network's action indices to the 6 Mario keys, 0=LEFT, 1=RIGHT, 2=DOWN, 3=JUMP, 4=SPEED and 5=UP
+ * (see Mario.java), either as a boolean[] for Environment.performAction or as a 6-bit mask (bit k = key k).
+ * The key arrays are built once and shared: keys() allocates nothing, and its result must not be modified.
+ * The action set is fixed per codec, and a network's output count decides which one it uses (see forActions).
+ */
+public final class ActionCodec {
+
+	public enum ActionSet {
+		/**
+		 * The agent's original 12 actions, {STAY, LEFT, RIGHT} x {NOJUMP, JUMP} x {NOSPEED, SPEED}:
+		 * 0= stay, 1= left, 2= right, 3= stay+jump, 4= left+jump, 5= right+jump, and 6-11 the same with speed
+		 */
+		STANDARD,
+		/**
+		 * All 64 key combinations; the action index is the mask itself
+		 */
+		ALL,
+		/**
+		 * 8 actions for running right: none, right, right+jump, right+speed, right+jump+speed, jump, left, left+jump
+		 */
+		REDUCED
+	}
+
+	public static final int LEFT = 1;
+	public static final int RIGHT = 1 << 1;
+	public static final int DOWN = 1 << 2;
+	public static final int JUMP = 1 << 3;
+	public static final int SPEED = 1 << 4;
+	public static final int UP = 1 << 5;
+
+	public static final ActionCodec STANDARD = new ActionCodec(ActionSet.STANDARD, new int[] {
+			0, LEFT, RIGHT, JUMP, LEFT|JUMP, RIGHT|JUMP,
+			SPEED, LEFT|SPEED, RIGHT|SPEED, JUMP|SPEED, LEFT|JUMP|SPEED, RIGHT|JUMP|SPEED});
+	public static final ActionCodec ALL = new ActionCodec(ActionSet.ALL, allMasks());
+	public static final ActionCodec REDUCED = new ActionCodec(ActionSet.REDUCED, new int[] {
+			0, RIGHT, RIGHT|JUMP, RIGHT|SPEED, RIGHT|JUMP|SPEED, JUMP, LEFT, LEFT|JUMP});
+
+	private final ActionSet actionSet;
+	private final int[] masks;
+	private final boolean[][] keys;
+	private final int[] indices; // mask -> action index, or -1
+
+	private ActionCodec(ActionSet actionSet, int[] masks) {
+		this.actionSet = actionSet;
+		this.masks = masks;
+		keys = new boolean[masks.length][];
+		indices = new int[64];
+		Arrays.fill(indices, -1);
+		for (int a = 0; a < masks.length; a++) {
+			keys[a] = toKeys(masks[a]);
+			indices[masks[a]] = a;
+		}
+	}
+
+	/**
+	 * The shared codec of 'actionSet'
+	 * @param actionSet
+	 * @return
+	 */
+	public static ActionCodec of(ActionSet actionSet) {
+		switch (actionSet) {
+		case ALL: return ALL;
+		case REDUCED: return REDUCED;
+		default: return STANDARD;
+		}
+	}
+
+	/**
+	 * The codec for a network with 'numActions' outputs: 12, 64 or 8
+	 * @param numActions
+	 * @return
+	 */
+	public static ActionCodec forActions(int numActions) {
+		if (numActions == STANDARD.size()) return STANDARD;
+		if (numActions == ALL.size()) return ALL;
+		if (numActions == REDUCED.size()) return REDUCED;
+		throw new IllegalArgumentException("no action set has " + numActions + " actions");
+	}
+
+	public ActionSet getActionSet() {
+		return actionSet;
+	}
+
+	/**
+	 * Number of actions
+	 */
+	public int size() {
+		return masks.length;
+	}
+
+	/**
+	 * Keys pressed by 'action', shared between calls: must not be modified
+	 * @param action
+	 * @return
+	 */
+	public boolean[] keys(int action) {
+		return keys[action];
+	}
+
+	/**
+	 * Keys pressed by 'action' as a 6-bit mask
+	 * @param action
+	 * @return
+	 */
+	public int mask(int action) {
+		return masks[action];
+	}
+
+	/**
+	 * Action that presses exactly the keys in 'mask', or -1 if this set has none
+	 * @param mask
+	 * @return
+	 */
+	public int indexOf(int mask) {
+		return indices[mask & 63];
+	}
+
+	/**
+	 * Action that presses exactly 'keys', or -1 if this set has none
+	 * @param keys
+	 * @return
+	 */
+	public int indexOf(boolean[] keys) {
+		return indexOf(toMask(keys));
+	}
+
+	public static int toMask(boolean[] keys) {
+		int mask = 0;
+		for (int k = 0; k < keys.length; k++) {
+			if (keys[k]) mask |= 1 << k;
+		}
+		return mask;
+	}
+
+	private static boolean[] toKeys(int mask) {
+		boolean[] keys = new boolean[6];
+		for (int k = 0; k < 6; k++) keys[k] = (mask & (1 << k)) != 0;
+		return keys;
+	}
+
+	private static int[] allMasks() {
+		int[] masks = new int[64];
+		for (int m = 0; m < 64; m++) masks[m] = m;
+		return masks;
+	}
+}
@@ -0,0 +1,143 @@
+package ch.idsia.project;
+
+import java.util.Arrays;
+
+import ch.idsia.benchmark.mario.environments.Environment;
+import ch.idsia.evolution.MLP;
+import ch.idsia.tools.MarioAIOptions;
+
+/**
+ * Environment steps per second and decisions per second of a single actor holding every decision
+ * for k = 1, 2, 4 and 8 frames (see UtilAgent.setActionRepeat), and of a DQNAgent playing through act().
+ * First checks that act() leaves a dense ReplayMemory holding the state of every decision.
+ *
+ * By default the environments play back synthetic frames (see RecordedFrames), so a frame costs almost nothing
+ * and the numbers show the agent's side; with -live they are real games from IsolatedEnvironmentFactory,
+ * which needs the MarioAI benchmark on the class path. Extra arguments are passed to MarioAIOptions.
+ *
+ * Usage: ActionRepeatBenchmark [-live] [seconds per run] [MarioAIOptions args...]
+ */
+public final class ActionRepeatBenchmark {
+
+	private static final int[] REPEATS = {1, 2, 4, 8};
+
+	public static void main(String[] args) throws InterruptedException {
+		boolean live = args.length > 0 && args[0].equals("-live");
+		int skip = live ? 1 : 0;
+		int seconds = args.length > skip ? Integer.parseInt(args[skip]) : 10;
+		String[] marioArgs = new String[Math.max(0, args.length - skip - 1)];
+		System.arraycopy(args, Math.min(args.length, skip + 1), marioArgs, 0, marioArgs.length);
+
+		EnvironmentFactory factory = live ? new IsolatedEnvironmentFactory() : new EnvironmentFactory() {
+			public Environment create(int id) {
+				return RecordedFrames.synthetic(1000, id).asEnvironment();
+			}
+		};
+		System.out.println((live ? "live games" : "synthetic frames") + ", " + seconds + " s per run");
+		checkDenseMemory(factory, marioArgs);
+		for (int k : REPEATS) {
+			runPool(factory, k, seconds, marioArgs);
+		}
+		for (int k : REPEATS) {
+			runAgent(factory, k, seconds, marioArgs);
+		}
+		System.exit(0);
+	}
+
+	private static void runPool(EnvironmentFactory factory, int k, int seconds, String[] marioArgs) throws InterruptedException {
+		DQNAgent agent = new DQNAgent(new QNetwork(new MLP(BenchmarkUtil.STATE_SIZE, 64, 12)), 0.9);
+		ConcurrentReplayMemory memory = new ConcurrentReplayMemory(100000, BenchmarkUtil.STATE_SIZE);
+		ActorPool pool = new ActorPool(1, factory, memory, agent.snapshot(), 0.5, k, marioArgs);
+
+		pool.start();
+		Thread.sleep(1000); // ignore the first second (class loading, JIT)
+		long startSteps = pool.getSteps();
+		long startDecisions = pool.getDecisions();
+		long start = System.nanoTime();
+		Thread.sleep(seconds*1000L);
+		long steps = pool.getSteps() - startSteps;
+		long decisions = pool.getDecisions() - startDecisions;
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		pool.stop();
+		System.out.printf("actor     k=%d: %9.0f env steps/s  %9.0f decisions/s  %9.0f transitions stored%n",
+				k, steps / elapsed, decisions / elapsed, (double) memory.getAdded());
+	}
+
+	/**
+	 * The same loop on the calling thread, through DQNAgent.act into a ReplayMemory
+	 */
+	private static void runAgent(EnvironmentFactory factory, int k, int seconds, String[] marioArgs) {
+		DQNAgent agent = new DQNAgent(new QNetwork(new MLP(BenchmarkUtil.STATE_SIZE, 64, 12)), 0.9);
+		agent.setEpsilon(0.5);
+		agent.setActionRepeat(k);
+		ReplayMemory memory = new ReplayMemory(100000, BenchmarkUtil.STATE_SIZE, true);
+		MarioAIOptions options = new MarioAIOptions(marioArgs);
+		options.setVisualization(false);
+		Environment environment = factory.create(0);
+		environment.reset(options);
+		agent.startEpisode(environment);
+
+		play(agent, environment, options, memory, 1000000000L); // warm-up (JIT)
+		long startAdded = memory.getAdded();
+		long start = System.nanoTime();
+		long steps = play(agent, environment, options, memory, seconds*1000000000L);
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		long decisions = memory.getAdded() - startAdded;
+		System.out.printf("DQNAgent  k=%d: %9.0f env steps/s  %9.0f decisions/s  %9.0f transitions stored%n",
+				k, steps / elapsed, decisions / elapsed, (double) memory.getAdded());
+	}
+
+	/**
+	 * Plays a few episodes through DQNAgent.act into a dense ReplayMemory, which keeps the arrays it is given,
+	 * and checks that every stored state is still the one stored at its decision
+	 */
+	private static void checkDenseMemory(EnvironmentFactory factory, String[] marioArgs) {
+		int frames = 5000;
+		DQNAgent agent = new DQNAgent(new QNetwork(new MLP(BenchmarkUtil.STATE_SIZE, 64, 12)), 0.9);
+		agent.setEpsilon(0.5);
+		agent.setActionRepeat(2);
+		ReplayMemory memory = new ReplayMemory(frames + 1, BenchmarkUtil.STATE_SIZE);
+		MarioAIOptions options = new MarioAIOptions(marioArgs);
+		options.setVisualization(false);
+		Environment environment = factory.create(0);
+		environment.reset(options);
+		agent.startEpisode(environment);
+		double[][] expected = new double[frames + 1][];
+		for (int f = 0; f < frames; f++) {
+			environment.tick();
+			boolean[] keys = agent.act(environment, memory, true);
+			expected[memory.getCount()] = memory.getS(memory.getCount()).clone(); // the latest state stored
+			if (keys == null) {
+				environment.reset(options);
+				agent.startEpisode(environment);
+			}
+			else environment.performAction(keys);
+		}
+		for (int i = 0; i <= memory.getCount(); i++) {
+			if (!Arrays.equals(memory.getS(i), expected[i])) {
+				throw new IllegalStateException("dense memory slot " + i + " no longer holds the state stored there");
+			}
+		}
+		System.out.println("dense memory: " + memory.getAdded() + " transitions stored intact");
+	}
+
+	/**
+	 * Plays for 'nanos', starting a new episode whenever the level finishes
+	 * @return the frames played
+	 */
+	private static long play(DQNAgent agent, Environment environment, MarioAIOptions options, ReplayMemory memory, long nanos) {
+		long end = System.nanoTime() + nanos;
+		long steps = 0;
+		while (System.nanoTime() < end) {
+			environment.tick();
+			steps++;
+			boolean[] keys = agent.act(environment, memory, true);
+			if (keys == null) {
+				environment.reset(options);
+				agent.startEpisode(environment);
+			}
+			else environment.performAction(keys);
+		}
+		return steps;
+	}
+}
@@ -0,0 +1,174 @@
+package ch.idsia.project;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import ch.idsia.benchmark.mario.environments.Environment;
+import ch.idsia.tools.MarioAIOptions;
+
+/**
+ * One experience-collecting thread of an ActorPool.
+ * It owns its environment and, as a UtilAgent, its own copy of the state/reward bookkeeping;
+ * the only things it shares are the pool's current PolicySnapshot and the replay memory.
+ */
+class Actor extends UtilAgent implements Runnable {
+
+	private final int id;
+	private final ActorPool pool;
+	private final MarioAIOptions options;
+	private final Random rng;
+
+	private double epsilon;
+	private final double[] hidden;
+	private final double[] q;
+	private final float[] hiddenFloat;
+	private final float[] qFloat;
+	// the last two states; the replay memory copies them, so they are reused frame after frame
+	private double[] s = new double[STATE_SIZE];
+	private double[] sp = new double[STATE_SIZE];
+
+	private TrajectoryRecorder recorder;
+
+	private volatile long steps;
+	private volatile long decisions;
+	private volatile long episodes;
+
+	Actor(int id, ActorPool pool, MarioAIOptions options, double epsilon, int actionRepeat, long seed) {
+		super("Actor" + id, ActionCodec.forActions(pool.getPolicy().getNumOutputs()));
+		this.id = id;
+		this.pool = pool;
+		this.options = options;
+		this.epsilon = epsilon;
+		setActionRepeat(actionRepeat);
+		rng = new Random(seed);
+		PolicySnapshot policy = pool.getPolicy();
+		hidden = new double[policy.getNumHidden()];
+		q = new double[policy.getNumOutputs()];
+		hiddenFloat = new float[policy.getNumHidden()];
+		qFloat = new float[policy.getNumOutputs()];
+	}
+
+	public void run() {
+		try {
+			play();
+		}
+		catch (Throwable e) {
+			pool.fail(id, e); // rethrown by the pool's stop() and checkFailure()
+		}
+	}
+
+	private void play() throws IOException {
+		Environment environment = pool.getEnvironmentFactory().create(id);
+		if (pool.getTrajectoryDirectory() != null) {
+			recorder = new TrajectoryRecorder(new File(pool.getTrajectoryDirectory(), "actor-" + id + ".trj"));
+		}
+		boolean done = false;
+		try {
+			while (pool.isRunning()) {
+				runEpisode(environment);
+			}
+			done = true;
+		}
+		finally {
+			// keep the blocks recorded so far even if the episode threw, without hiding what it threw
+			if (recorder != null) {
+				if (done) recorder.close();
+				else closeAfterFailure();
+			}
+		}
+	}
+
+	private void closeAfterFailure() {
+		try {
+			recorder.close();
+		}
+		catch (IOException e) {
+			// the actor is already failing with the exception that got us here
+		}
+	}
+
+	/**
+	 * Plays one episode, storing a transition for every frame after the first
+	 */
+	private void runEpisode(Environment environment) {
+		environment.reset(options);
+		setCurrents(environment);
+		setPrevious(environment);
+		notMovedCount = 0;
+		startActionRepeat();
+		if (recorder != null) recorder.startEpisode();
+
+		boolean first = true;
+		int a = 0;
+		boolean[] keys = null;
+		while (pool.isRunning()) {
+			long t = Metrics.start();
+			environment.tick();
+			Metrics.envTick(t);
+			steps++;
+			pool.onStep();
+			if (!advanceFrame(environment)) {
+				if (recorder != null) recorder.record(environment, keys == null ? -1 : a);
+				environment.performAction(keys); // hold the last decision
+				continue;
+			}
+			getState(environment, sp);
+			double r = getRepeatedReward(environment);
+			boolean finished = environment.isLevelFinished();
+			if (!first) pool.getMemory().addTransition(s, r, a, sp, finished);
+			setPrevious(environment);
+			first = false;
+			if (finished) {
+				if (recorder != null) recorder.record(environment, -1);
+				break;
+			}
+
+			a = chooseAction(sp);
+			decisions++;
+			if (recorder != null) recorder.record(environment, a);
+			keys = actionCodec.keys(a);
+			environment.performAction(keys);
+			double[] swap = s;
+			s = sp;
+			sp = swap;
+		}
+		episodes++;
+	}
+
+	/**
+	 * Epsilon-greedy over the pool's latest snapshot (or its quantized copy), decaying epsilon as DQNAgent.getAction does
+	 */
+	private int chooseAction(double[] state) {
+		long t = Metrics.start();
+		int a;
+		if (rng.nextDouble() < epsilon) {
+			epsilon *= 0.9999;
+			a = rng.nextInt(q.length);
+		}
+		else {
+			QuantizedPolicy quantized = pool.getQuantizedPolicy();
+			a = quantized != null ? quantized.greedyAction(state, hiddenFloat, qFloat)
+					: pool.getPolicy().greedyAction(state, hidden, q);
+		}
+		Metrics.epsilon(epsilon);
+		Metrics.decision(t);
+		return a;
+	}
+
+	long getSteps() {
+		return steps;
+	}
+
+	long getDecisions() {
+		return decisions;
+	}
+
+	long getEpisodes() {
+		return episodes;
+	}
+
+	@Override
+	public void reset() {
+	}
+}
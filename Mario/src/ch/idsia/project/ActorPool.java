@@ -0,0 +1,201 @@
+package ch.idsia.project;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicReference;
+
+import ch.idsia.tools.MarioAIOptions;
+
+/**
+ * Runs N headless Mario environments on their own threads, all acting with the latest published
+ * PolicySnapshot and writing their transitions into one ConcurrentReplayMemory.
+ * The learner keeps training its DQNAgent on its own thread and calls publish(agent.snapshot())
+ * whenever the actors should pick up the new weights.
+ * If an actor throws, its thread ends and the others keep going; the first failure is rethrown
+ * from checkFailure(), which training loops can poll, and from stop().
+ */
+public class ActorPool {
+
+	private final EnvironmentFactory environmentFactory;
+	private final ConcurrentReplayMemory memory;
+	private final Actor[] actors;
+	private final Thread[] threads;
+
+	private volatile PolicySnapshot policy;
+	private volatile QuantizedPolicy.Precision precision;
+	private volatile QuantizedPolicy quantized;
+	private volatile boolean running;
+	private volatile AsyncLearner learner;
+	private final AtomicReference<IllegalStateException> failure = new AtomicReference<IllegalStateException>();
+	private File trajectoryDirectory;
+
+	/**
+	 * @param numActors number of environments/threads
+	 * @param environmentFactory gives each actor its own environment, e.g. IsolatedEnvironmentFactory
+	 * @param memory where all actors store their transitions
+	 * @param policy initial policy, e.g. agent.snapshot()
+	 * @param epsilon initial exploration rate of every actor
+	 * @param args MarioAIOptions arguments for every actor; visualization is always turned off
+	 */
+	public ActorPool(int numActors, EnvironmentFactory environmentFactory, ConcurrentReplayMemory memory,
+			PolicySnapshot policy, double epsilon, String[] args) {
+		this(numActors, environmentFactory, memory, policy, epsilon, 1, args);
+	}
+
+	/**
+	 * Same as above, with every actor holding each decision for 'actionRepeat' frames (see UtilAgent.setActionRepeat)
+	 */
+	public ActorPool(int numActors, EnvironmentFactory environmentFactory, ConcurrentReplayMemory memory,
+			PolicySnapshot policy, double epsilon, int actionRepeat, String[] args) {
+		this.environmentFactory = environmentFactory;
+		this.memory = memory;
+		this.policy = policy;
+		actors = new Actor[numActors];
+		threads = new Thread[numActors];
+		for (int i = 0; i < numActors; i++) {
+			MarioAIOptions options = new MarioAIOptions(args);
+			options.setVisualization(false);
+			actors[i] = new Actor(i, this, options, epsilon, actionRepeat, System.nanoTime() + i);
+		}
+	}
+
+	/**
+	 * Has every actor record its play into 'directory'/actor-<id>.trj (see TrajectoryRecorder); call before start()
+	 * @param directory
+	 */
+	public void recordTrajectories(File directory) {
+		trajectoryDirectory = directory;
+	}
+
+	File getTrajectoryDirectory() {
+		return trajectoryDirectory;
+	}
+
+	public synchronized void start() {
+		if (running) return;
+		running = true;
+		for (int i = 0; i < actors.length; i++) {
+			threads[i] = new Thread(actors[i], "actor-" + i);
+			threads[i].setDaemon(true);
+			threads[i].start();
+		}
+	}
+
+	/**
+	 * Stops all actors after their current frame and waits for them
+	 * @throws IllegalStateException if an actor failed
+	 */
+	public synchronized void stop() throws InterruptedException {
+		running = false;
+		for (Thread t : threads) {
+			if (t != null) t.join();
+		}
+		checkFailure();
+	}
+
+	/**
+	 * Rethrows the first failure of an actor thread, if any did fail
+	 * @throws IllegalStateException
+	 */
+	public void checkFailure() {
+		IllegalStateException e = failure.get();
+		if (e != null) throw new IllegalStateException(e.getMessage(), e.getCause());
+	}
+
+	/**
+	 * Called by an actor whose thread is ending on 'e'; only the first failure is kept
+	 */
+	void fail(int id, Throwable e) {
+		failure.compareAndSet(null, new IllegalStateException("actor " + id + " failed", e));
+	}
+
+	/**
+	 * Makes 'snapshot' the policy every actor uses from its next decision on
+	 * @param snapshot
+	 */
+	public void publish(PolicySnapshot snapshot) {
+		QuantizedPolicy.Precision p = precision;
+		quantized = p != null ? QuantizedPolicy.of(snapshot, p) : null;
+		policy = snapshot;
+	}
+
+	public PolicySnapshot getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * Has the actors choose greedy actions with a float32 or int8 copy of every published policy,
+	 * or with the double-precision snapshot itself if 'precision' is null (the default)
+	 * @param precision
+	 */
+	public synchronized void setPrecision(QuantizedPolicy.Precision precision) {
+		this.precision = precision;
+		publish(policy);
+	}
+
+	public QuantizedPolicy.Precision getPrecision() {
+		return precision;
+	}
+
+	/**
+	 * The quantized copy of the current policy, or null if actors use the snapshot (see setPrecision)
+	 */
+	QuantizedPolicy getQuantizedPolicy() {
+		return quantized;
+	}
+
+	/**
+	 * Has every actor report its steps to 'learner' (see AsyncLearner.attach)
+	 * @param learner
+	 */
+	void setLearner(AsyncLearner learner) {
+		this.learner = learner;
+	}
+
+	/**
+	 * Called by actors after every environment step
+	 */
+	void onStep() {
+		AsyncLearner l = learner;
+		if (l != null) l.onStep();
+	}
+
+	public ConcurrentReplayMemory getMemory() {
+		return memory;
+	}
+
+	public EnvironmentFactory getEnvironmentFactory() {
+		return environmentFactory;
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	public int getNumActors() {
+		return actors.length;
+	}
+
+	/**
+	 * Environment steps taken by all actors so far
+	 */
+	public long getSteps() {
+		long steps = 0;
+		for (Actor a : actors) steps += a.getSteps();
+		return steps;
+	}
+
+	/**
+	 * Actions chosen by all actors so far; with action repeat k, about getSteps()/k
+	 */
+	public long getDecisions() {
+		long decisions = 0;
+		for (Actor a : actors) decisions += a.getDecisions();
+		return decisions;
+	}
+
+	public long getEpisodes() {
+		long episodes = 0;
+		for (Actor a : actors) episodes += a.getEpisodes();
+		return episodes;
+	}
+}
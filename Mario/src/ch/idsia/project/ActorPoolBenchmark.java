@@ -0,0 +1,63 @@
+package ch.idsia.project;
+
+import ch.idsia.evolution.MLP;
+
+/**
+ * Environment steps per second of an ActorPool as the number of actors grows,
+ * from 1 up to the number of available cores, with the learner training on the main thread.
+ * Needs the MarioAI benchmark on the class path; extra arguments are passed to MarioAIOptions.
+ *
+ * Usage: ActorPoolBenchmark [seconds per run] [MarioAIOptions args...]
+ */
+public final class ActorPoolBenchmark {
+
+	private static final int PUBLISH_EVERY = 100;
+
+	public static void main(String[] args) throws InterruptedException {
+		int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+		String[] marioArgs = new String[Math.max(0, args.length - 1)];
+		if (args.length > 1) System.arraycopy(args, 1, marioArgs, 0, marioArgs.length);
+
+		int cores = Runtime.getRuntime().availableProcessors();
+		double base = 0;
+		for (int n = 1; n <= cores; n = n < cores && n*2 > cores ? cores : n*2) {
+			double rate = run(n, seconds, marioArgs);
+			if (n == 1) base = rate;
+			System.out.printf("%2d actors: %9.0f env steps/s  (x%.2f)%n", n, rate, rate / base);
+			if (n == cores) break;
+		}
+		System.exit(0);
+	}
+
+	private static double run(int numActors, int seconds, String[] marioArgs) throws InterruptedException {
+		DQNAgent agent = new DQNAgent(new QNetwork(new MLP(BenchmarkUtil.STATE_SIZE, 64, 12)), 0.9);
+		ConcurrentReplayMemory memory = new ConcurrentReplayMemory(100000, BenchmarkUtil.STATE_SIZE);
+		ActorPool pool = new ActorPool(numActors, new IsolatedEnvironmentFactory(), memory, agent.snapshot(), 0.5, marioArgs);
+		MinibatchBuffer batch = new MinibatchBuffer(32, BenchmarkUtil.STATE_SIZE, true);
+
+		pool.start();
+		long start = System.nanoTime();
+		long end = start + seconds*1000000000L;
+		long startSteps = 0;
+		boolean warm = false;
+		long updates = 0;
+		while (System.nanoTime() < end) {
+			pool.checkFailure();
+			if (!warm && System.nanoTime() - start > 1000000000L) { // ignore the first second (class loading, JIT)
+				warm = true;
+				startSteps = pool.getSteps();
+				start = System.nanoTime();
+			}
+			if (memory.size() >= batch.size()) {
+				memory.sampleMinibatch(batch);
+				agent.train(batch);
+				if (++updates % PUBLISH_EVERY == 0) pool.publish(agent.snapshot());
+			}
+			else Thread.sleep(1);
+		}
+		long steps = pool.getSteps() - startSteps;
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		pool.stop();
+		return steps / elapsed;
+	}
+}
@@ -0,0 +1,317 @@
+package ch.idsia.project;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import ch.idsia.benchmark.mario.environments.Environment;
+import ch.idsia.evolution.MLP;
+
+/**
+ * The agent's hot path, one benchmark per step, all on recorded frames (see RecordedFrames) so no game is needed:
+ * observation encoding, getState, getReward, action to keys, getAction at several epsilons, minibatch sampling
+ * with the array getters and into a MinibatchBuffer, and a full training step at several batch sizes.
+ *
+ * There is no JMH in this build, so this is a small harness in the same spirit: each benchmark is warmed up,
+ * then timed over several rounds of about ROUND_NANOS; it reports the mean and spread of ns/op, bytes
+ * allocated per op (HotSpot's per-thread counter) and GC collections and time during the measured rounds.
+ * Results can be written as a baseline and compared against one; slower than the baseline by more than
+ * the threshold is reported as a regression, and the exit status is then 1.
+ * Timings only compare on the same machine, JVM and MarioAI jar, so no baseline is kept in the tree:
+ * write one with -write on the machine that checks for regressions, then pass it to -baseline there.
+ *
+ * Usage: AgentBenchmark [-frames file] [-baseline file] [-write file] [-threshold percent] [-only prefix]
+ * Without -frames, synthetic frames are used (and said so).
+ */
+public final class AgentBenchmark {
+
+	private static final long ROUND_NANOS = 200000000L;
+	private static final int WARMUP_ROUNDS = 5;
+	private static final int ROUNDS = 10;
+	private static final int SYNTHETIC_FRAMES = 5000;
+	private static final int CAPACITY = 100000;
+
+	/**
+	 * One benchmarked operation; 'i' counts calls, to cycle through fixtures
+	 */
+	private interface Op {
+		void run(int i);
+	}
+
+	static final class Result {
+		final String name;
+		final double nsPerOp;
+		final double nsStdDev;
+		final double bytesPerOp;
+		final long gcCount;
+		final long gcMillis;
+
+		Result(String name, double nsPerOp, double nsStdDev, double bytesPerOp, long gcCount, long gcMillis) {
+			this.name = name;
+			this.nsPerOp = nsPerOp;
+			this.nsStdDev = nsStdDev;
+			this.bytesPerOp = bytesPerOp;
+			this.gcCount = gcCount;
+			this.gcMillis = gcMillis;
+		}
+	}
+
+	// keeps results alive so the JIT can't drop the work
+	static volatile double sink;
+
+	public static void main(String[] args) throws IOException {
+		String framesFile = null;
+		String baselineFile = null;
+		String writeFile = null;
+		String only = "";
+		double threshold = 10;
+		for (int k = 0; k < args.length - 1; k += 2) {
+			if (args[k].equals("-frames")) framesFile = args[k+1];
+			else if (args[k].equals("-baseline")) baselineFile = args[k+1];
+			else if (args[k].equals("-write")) writeFile = args[k+1];
+			else if (args[k].equals("-threshold")) threshold = Double.parseDouble(args[k+1]);
+			else if (args[k].equals("-only")) only = args[k+1];
+			else throw new IllegalArgumentException("unknown option " + args[k]);
+		}
+
+		RecordedFrames frames = framesFile != null ? RecordedFrames.read(new File(framesFile))
+				: RecordedFrames.synthetic(SYNTHETIC_FRAMES, 42);
+		System.out.println((frames.isSynthetic() ? "synthetic" : "recorded") + " frames: " + frames.size()
+				+ ", java " + System.getProperty("java.version") + ", " + Runtime.getRuntime().availableProcessors() + " cores");
+
+		List<Result> results = new ArrayList<Result>();
+		for (Map.Entry<String, Op> b : benchmarks(frames).entrySet()) {
+			if (!b.getKey().startsWith(only)) continue;
+			Result r = measure(b.getKey(), b.getValue());
+			results.add(r);
+			System.out.printf("%-28s %12.1f ns/op  +-%5.1f%%  %10.1f B/op  gc: %3d (%d ms)%n", r.name, r.nsPerOp,
+					100*r.nsStdDev/r.nsPerOp, r.bytesPerOp, r.gcCount, r.gcMillis);
+		}
+
+		if (writeFile != null) writeBaseline(results, new File(writeFile), frames);
+		if (baselineFile != null && compare(results, readBaseline(new File(baselineFile)), threshold) > 0) System.exit(1);
+	}
+
+	private static Map<String, Op> benchmarks(final RecordedFrames frames) {
+		Map<String, Op> b = new LinkedHashMap<String, Op>();
+		final int n = frames.size();
+		final Random rng = new Random(42);
+		final double[] state = new double[UtilAgent.STATE_SIZE];
+
+		b.put("encode", new Op() {
+			public void run(int i) {
+				RecordedFrames.Frame f = frames.get(i % n);
+				ObservationEncoder.encode(f.scene, f.egoPos, f.mode == 0, state, 15);
+			}
+		});
+
+		final MLP mlp = new MLP(UtilAgent.STATE_SIZE, 64, 12);
+		final DQNAgent agent = new DQNAgent(mlp, 0.9);
+		final Environment environment = frames.asEnvironment();
+		b.put("getState", new Op() {
+			public void run(int i) {
+				environment.tick();
+				agent.setCurrents(environment);
+				agent.getState(environment, state);
+				agent.setPrevious(environment);
+			}
+		});
+		b.put("getReward", new Op() {
+			public void run(int i) {
+				environment.tick();
+				agent.setCurrents(environment);
+				agent.updateStuckCount();
+				sink += agent.getReward(environment);
+				agent.setPrevious(environment);
+			}
+		});
+
+		final int[] oneHot = new int[12];
+		b.put("keys/oneHot", new Op() {
+			public void run(int i) {
+				int a = i % 12;
+				oneHot[a] = 1;
+				sink += agent.twelveToSixActions(oneHot).length;
+				oneHot[a] = 0;
+			}
+		});
+		b.put("keys/codec", new Op() {
+			public void run(int i) {
+				sink += agent.getActionCodec().keys(i % 12).length;
+			}
+		});
+
+		// states the network acts on: those of the frames
+		final double[][] states = new double[Math.min(n, 1000)][];
+		DQNAgent encoder = new DQNAgent(mlp, 0.9);
+		environment.reset(null);
+		for (int k = 0; k < states.length; k++) {
+			environment.tick();
+			encoder.setCurrents(environment);
+			states[k] = encoder.getState(environment);
+			encoder.setPrevious(environment);
+		}
+		for (final double eps : new double[] {0, 0.1, 0.5, 1}) {
+			b.put("getAction/eps=" + eps, new Op() {
+				public void run(int i) {
+					agent.setEpsilon(eps); // getAction decays it
+					sink += agent.getAction(states[i % states.length], true);
+				}
+			});
+		}
+
+		final ReplayMemory memory = new ReplayMemory(CAPACITY, UtilAgent.STATE_SIZE, true);
+		memory.setFirstState(states[0]);
+		for (int k = 0; k < CAPACITY; k++) {
+			memory.addTransition(rng.nextDouble()*2 - 1, rng.nextInt(12), states[k % states.length], rng.nextInt(100) == 0);
+		}
+		b.put("sample/getters/32", new Op() {
+			public void run(int i) {
+				int[] idx = memory.sampleMinibatchIdx(32);
+				memory.getStates(idx);
+				memory.getStatesPrime(idx);
+				memory.getRewards(idx);
+				memory.getActions(idx);
+				sink += memory.getTerminals(idx).length;
+			}
+		});
+		final MinibatchBuffer sampled = new MinibatchBuffer(32, UtilAgent.STATE_SIZE);
+		b.put("sample/buffer/32", new Op() {
+			public void run(int i) {
+				memory.sampleMinibatch(sampled);
+			}
+		});
+
+		for (final int batchSize : new int[] {16, 32, 64, 128}) {
+			final DQNAgent mlpAgent = new DQNAgent(new MLP(UtilAgent.STATE_SIZE, 64, 12), 0.9);
+			b.put("train/mlp/" + batchSize, new Op() {
+				public void run(int i) {
+					int[] idx = memory.sampleMinibatchIdx(batchSize);
+					mlpAgent.train(memory.getStates(idx), memory.getRewards(idx), memory.getActions(idx),
+							memory.getStatesPrime(idx), memory.getTerminals(idx), batchSize);
+				}
+			});
+			final DQNAgent netAgent = new DQNAgent(new QNetwork(new MLP(UtilAgent.STATE_SIZE, 64, 12)), 0.9);
+			final MinibatchBuffer batch = new MinibatchBuffer(batchSize, UtilAgent.STATE_SIZE, true);
+			b.put("train/qnetwork/" + batchSize, new Op() {
+				public void run(int i) {
+					netAgent.train(memory, batch);
+				}
+			});
+		}
+		return b;
+	}
+
+	private static Result measure(String name, Op op) {
+		// size rounds from a short trial
+		int calls = 0;
+		long t = System.nanoTime();
+		while (System.nanoTime() - t < ROUND_NANOS / 10) op.run(calls++);
+		int perRound = Math.max(1, (int) (calls * 10L));
+
+		for (int r = 0; r < WARMUP_ROUNDS; r++) {
+			for (int k = 0; k < perRound; k++) op.run(calls++);
+		}
+
+		double[] ns = new double[ROUNDS];
+		long gcCount = -gcCount();
+		long gcMillis = -gcMillis();
+		long allocated = -BenchmarkUtil.allocatedBytes();
+		for (int r = 0; r < ROUNDS; r++) {
+			long start = System.nanoTime();
+			for (int k = 0; k < perRound; k++) op.run(calls++);
+			ns[r] = (double) (System.nanoTime() - start) / perRound;
+		}
+		allocated += BenchmarkUtil.allocatedBytes();
+		gcCount += gcCount();
+		gcMillis += gcMillis();
+
+		double mean = 0;
+		for (double x : ns) mean += x;
+		mean /= ROUNDS;
+		double var = 0;
+		for (double x : ns) var += (x - mean)*(x - mean);
+		return new Result(name, mean, Math.sqrt(var / (ROUNDS - 1)), (double) allocated / ((long) perRound*ROUNDS), gcCount, gcMillis);
+	}
+
+	private static long gcCount() {
+		long n = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) n += Math.max(0, gc.getCollectionCount());
+		return n;
+	}
+
+	private static long gcMillis() {
+		long n = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) n += Math.max(0, gc.getCollectionTime());
+		return n;
+	}
+
+	/**
+	 * One line per benchmark: name, ns/op, B/op, tab-separated; lines starting with # are comments
+	 */
+	private static void writeBaseline(List<Result> results, File file, RecordedFrames frames) throws IOException {
+		PrintWriter out = new PrintWriter(new FileWriter(file));
+		try {
+			out.println("# AgentBenchmark baseline: name, ns/op, bytes/op");
+			out.println("# java " + System.getProperty("java.version") + ", " + System.getProperty("os.arch") + ", "
+					+ Runtime.getRuntime().availableProcessors() + " cores, "
+					+ (frames.isSynthetic() ? "synthetic" : "recorded") + " frames");
+			for (Result r : results) {
+				out.printf("%s\t%.1f\t%.1f%n", r.name, r.nsPerOp, r.bytesPerOp);
+			}
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	private static Map<String, double[]> readBaseline(File file) throws IOException {
+		Map<String, double[]> baseline = new LinkedHashMap<String, double[]>();
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.startsWith("#") || line.trim().length() == 0) continue;
+				String[] parts = line.split("\t");
+				baseline.put(parts[0], new double[] {Double.parseDouble(parts[1]), Double.parseDouble(parts[2])});
+			}
+		}
+		finally {
+			in.close();
+		}
+		return baseline;
+	}
+
+	/**
+	 * Prints every result against the baseline
+	 * @return number of regressions
+	 */
+	private static int compare(List<Result> results, Map<String, double[]> baseline, double threshold) {
+		int regressions = 0;
+		System.out.println("\nagainst baseline (threshold " + threshold + "%):");
+		for (Result r : results) {
+			double[] base = baseline.get(r.name);
+			if (base == null) {
+				System.out.printf("%-28s (not in baseline)%n", r.name);
+				continue;
+			}
+			double change = 100*(r.nsPerOp - base[0]) / base[0];
+			boolean regressed = change > threshold;
+			boolean allocates = base[1] < 1 && r.bytesPerOp >= 1; // started allocating
+			if (regressed || allocates) regressions++;
+			System.out.printf("%-28s %+7.1f%% time  %10.1f -> %10.1f B/op%s%n", r.name, change, base[1], r.bytesPerOp,
+					regressed ? "  REGRESSION" : allocates ? "  NOW ALLOCATES" : "");
+		}
+		return regressions;
+	}
+}
@@ -0,0 +1,175 @@
+package ch.idsia.project;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Trains a DQNAgent on its own thread while acting threads keep stepping their environments.
+ * The learner samples from a ConcurrentReplayMemory, so it never blocks the writers, and acts only through
+ * PolicySnapshots it publishes every 'publishEvery' updates; the agent itself belongs to the learner thread.
+ *
+ * Acting loops call onStep() once per environment step. The learner aims for 'replayRatio' updates per step:
+ * it idles when ahead, and when it falls more than 'maxLag' updates behind, onStep() blocks the acting thread
+ * until it catches up. So the data trained on is at most maxLag updates' worth of steps ahead of the learner,
+ * and the acting policy at most publishEvery updates behind it.
+ * If training throws, the learner thread stops and the failure is rethrown from onStep() and stop().
+ */
+public class AsyncLearner implements Runnable {
+
+	private static final long WAIT_NANOS = 20000;
+
+	private final DQNAgent agent;
+	private final ConcurrentReplayMemory memory;
+	private final MinibatchBuffer batch;
+	private final double replayRatio;
+	private final int publishEvery;
+	private final long maxLag;
+
+	private final AtomicLong steps = new AtomicLong();
+	private volatile long readyAt = -1; // steps when the memory first held a minibatch
+	private volatile long updates;
+	private volatile PolicySnapshot policy;
+	private volatile boolean running;
+	private volatile Throwable failure;
+	private volatile ActorPool pool;
+	private Thread thread;
+
+	/**
+	 * @param agent trained only on the learner thread once started
+	 * @param memory
+	 * @param batch sparse buffers need the agent to have a QNetwork
+	 * @param replayRatio updates per environment step
+	 * @param publishEvery updates between published snapshots, at least 1
+	 * @param maxLag how many updates the learner may fall behind before acting blocks
+	 */
+	public AsyncLearner(DQNAgent agent, ConcurrentReplayMemory memory, MinibatchBuffer batch,
+			double replayRatio, int publishEvery, long maxLag) {
+		if (publishEvery < 1) throw new IllegalArgumentException("publishEvery " + publishEvery + " is not positive");
+		this.agent = agent;
+		this.memory = memory;
+		this.batch = batch;
+		this.replayRatio = replayRatio;
+		this.publishEvery = publishEvery;
+		this.maxLag = maxLag;
+		policy = agent.snapshot();
+	}
+
+	/**
+	 * Also publishes every snapshot to 'pool', and has its actors call onStep()
+	 * @param pool
+	 */
+	public void attach(ActorPool pool) {
+		this.pool = pool;
+		pool.setLearner(this);
+		pool.publish(policy);
+	}
+
+	public synchronized void start() {
+		if (running) return;
+		running = true;
+		thread = new Thread(this, "learner");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops after the current update and waits for the learner thread; blocked acting threads are released
+	 * @throws IllegalStateException if training failed
+	 */
+	public synchronized void stop() throws InterruptedException {
+		running = false;
+		if (thread != null) thread.join();
+		thread = null;
+		checkFailure();
+	}
+
+	public void run() {
+		try {
+			train();
+		}
+		catch (Throwable e) {
+			failure = e;
+		}
+		finally {
+			running = false; // releases acting threads blocked in onStep()
+		}
+	}
+
+	private void train() {
+		while (running) {
+			if (readyAt < 0) {
+				if (memory.size() < batch.size()) {
+					LockSupport.parkNanos(WAIT_NANOS);
+					continue;
+				}
+				readyAt = steps.get();
+			}
+			if (updates >= owed(steps.get())) {
+				LockSupport.parkNanos(WAIT_NANOS); // ahead of the replay ratio
+				continue;
+			}
+			memory.sampleMinibatch(batch);
+			agent.train(batch);
+			updates++;
+			if (updates % publishEvery == 0) publish();
+		}
+	}
+
+	/**
+	 * Called by the acting thread(s) after every environment step; blocks while the learner is too far behind
+	 * @throws IllegalStateException if training failed
+	 */
+	public void onStep() {
+		long s = steps.incrementAndGet();
+		while (running && readyAt >= 0 && owed(s) - updates > maxLag) {
+			LockSupport.parkNanos(WAIT_NANOS);
+		}
+		checkFailure();
+	}
+
+	/**
+	 * Rethrows what stopped the learner thread, if anything did
+	 * @throws IllegalStateException
+	 */
+	void checkFailure() {
+		Throwable e = failure;
+		if (e != null) throw new IllegalStateException("learner failed", e);
+	}
+
+	/**
+	 * The latest published weights, for acting
+	 */
+	public PolicySnapshot getPolicy() {
+		return policy;
+	}
+
+	public long getUpdates() {
+		return updates;
+	}
+
+	public long getSteps() {
+		return steps.get();
+	}
+
+	/**
+	 * Updates due for the steps so far at the replay ratio; the learner works until it has made them
+	 */
+	public long getOwedUpdates() {
+		return readyAt < 0 ? 0 : owed(steps.get());
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	private long owed(long s) {
+		return (long) (replayRatio * (s - readyAt));
+	}
+
+	private void publish() {
+		PolicySnapshot p = agent.snapshot();
+		policy = p;
+		ActorPool target = pool;
+		if (target != null) target.publish(p);
+	}
+}
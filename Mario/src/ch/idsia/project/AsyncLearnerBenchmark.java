@@ -0,0 +1,111 @@
+package ch.idsia.project;
+
+import java.util.Random;
+
+import ch.idsia.benchmark.mario.environments.Environment;
+import ch.idsia.evolution.MLP;
+
+/**
+ * Env steps/s and updates/s of the synchronous loop (act, then train when due, on one thread)
+ * against AsyncLearner (acting on this thread, training on the learner thread), at the same replay ratio.
+ * The environment plays back recorded frames (synthetic by default), and each tick busy-waits
+ * 'tick micros' to stand in for the game's own cost. Overlap needs a second core; on one core
+ * the two threads can only take turns.
+ *
+ * Usage: AsyncLearnerBenchmark [seconds] [tick micros] [replay ratio] [frames file]
+ */
+public final class AsyncLearnerBenchmark {
+
+	private static final int BATCH_SIZE = 32;
+	private static final int PUBLISH_EVERY = 100;
+	private static final int MAX_LAG = 50;
+
+	public static void main(String[] args) throws Exception {
+		int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+		long tickNanos = 1000L * (args.length > 1 ? Integer.parseInt(args[1]) : 200);
+		double ratio = args.length > 2 ? Double.parseDouble(args[2]) : 0.25;
+		RecordedFrames frames = args.length > 3 ? RecordedFrames.read(new java.io.File(args[3])) : RecordedFrames.synthetic(5000, 42);
+		System.out.printf("%d cores, tick %d us, replay ratio %.2f%n", Runtime.getRuntime().availableProcessors(),
+				tickNanos / 1000, ratio);
+
+		for (int async = 0; async < 2; async++) {
+			double[] rates = run(async == 1, seconds, tickNanos, ratio, frames);
+			System.out.printf("%-6s %8.0f env steps/s  %8.0f updates/s%n", async == 1 ? "async" : "sync", rates[0], rates[1]);
+		}
+	}
+
+	private static double[] run(boolean async, int seconds, long tickNanos, double ratio, RecordedFrames frames)
+			throws InterruptedException {
+		Environment environment = frames.asEnvironment();
+		DQNAgent agent = new DQNAgent(new QNetwork(new MLP(UtilAgent.STATE_SIZE, 64, 12)), 0.9);
+		ConcurrentReplayMemory memory = new ConcurrentReplayMemory(100000, UtilAgent.STATE_SIZE);
+		MinibatchBuffer batch = new MinibatchBuffer(BATCH_SIZE, UtilAgent.STATE_SIZE, true);
+		AsyncLearner learner = new AsyncLearner(agent, memory, batch, ratio, PUBLISH_EVERY, MAX_LAG);
+		if (async) learner.start();
+
+		DQNAgent actor = new DQNAgent(new MLP(UtilAgent.STATE_SIZE, 64, 12), 0.9); // only for getState/getReward
+		Random rng = new Random(42);
+		double[] hidden = new double[64];
+		double[] q = new double[12];
+		double[] s = new double[UtilAgent.STATE_SIZE];
+		double[] sp = new double[UtilAgent.STATE_SIZE];
+		actor.setCurrents(environment);
+		actor.getState(environment, s);
+
+		long steps = 0;
+		long syncUpdates = 0;
+		double owed = 0;
+		long startSteps = 0;
+		long startUpdates = 0;
+		long start = System.nanoTime();
+		long warm = start + 1000000000L;
+		long end = warm + seconds*1000000000L;
+		boolean measuring = false;
+		int a = 0;
+		while (true) {
+			long now = System.nanoTime();
+			if (!measuring && now >= warm) {
+				measuring = true;
+				startSteps = steps;
+				startUpdates = async ? learner.getUpdates() : syncUpdates;
+				start = now;
+			}
+			if (now >= end) break;
+
+			environment.tick();
+			long spin = System.nanoTime() + tickNanos;
+			while (System.nanoTime() < spin) {
+				// the game's own work
+			}
+			actor.setCurrents(environment);
+			actor.getState(environment, sp);
+			memory.addTransition(s, actor.getReward(environment), a, sp, false);
+			actor.setPrevious(environment);
+			double[] swap = s;
+			s = sp;
+			sp = swap;
+			steps++;
+
+			if (async) {
+				a = rng.nextDouble() < 0.1 ? rng.nextInt(12) : learner.getPolicy().greedyAction(s, hidden, q);
+				learner.onStep();
+			}
+			else {
+				a = agent.getAction(s, true);
+				if (memory.size() >= BATCH_SIZE) {
+					owed += ratio;
+					while (owed >= 1) {
+						memory.sampleMinibatch(batch);
+						agent.train(batch);
+						syncUpdates++;
+						owed -= 1;
+					}
+				}
+			}
+		}
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		long updates = (async ? learner.getUpdates() : syncUpdates) - startUpdates;
+		learner.stop();
+		return new double[] {(steps - startSteps) / elapsed, updates / elapsed};
+	}
+}
@@ -0,0 +1,119 @@
+package ch.idsia.project;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Small helpers shared by the benchmark mains in this package.
+ * There is no JMH here, so allocation is read from the HotSpot per-thread counter instead.
+ */
+final class BenchmarkUtil {
+
+	static final int STATE_SIZE = 255;
+
+	// default MarioAI receptive field: 19x19 with Mario in the middle
+	static final int SCENE_SIZE = 19;
+	static final int[] EGO_POS = {9, 9};
+	// codes that map to each element class in UtilAgent.getEl, plus a few it ignores
+	private static final byte[] SCENE_CODES = {0, 0, 0, 0, 0, 0, -60, -60, -62, -24, -85, 3, 80, 93, 2, 25, 1, -10, 5};
+
+	private BenchmarkUtil() {
+	}
+
+	/**
+	 * Heap in use after a few forced collections
+	 */
+	static long usedMemory() {
+		Runtime rt = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) System.gc();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+
+	/**
+	 * Bytes allocated so far by the calling thread, or -1 if the JVM can't tell us
+	 */
+	static long allocatedBytes() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	/**
+	 * A sparse binary state, roughly as dense as what UtilAgent.getState produces
+	 */
+	static double[] randomState(Random rng) {
+		double[] s = new double[STATE_SIZE];
+		for (int i = 0; i < STATE_SIZE; i++) {
+			s[i] = rng.nextInt(8) == 0 ? 1 : 0;
+		}
+		return s;
+	}
+
+	/**
+	 * A replay memory filled to capacity with random transitions
+	 */
+	static ReplayMemory filledMemory(int capacity, boolean packed, Random rng) {
+		ReplayMemory rm = new ReplayMemory(capacity, STATE_SIZE, packed);
+		rm.setFirstState(randomState(rng));
+		for (int i = 0; i < capacity; i++) {
+			rm.addTransition(rng.nextDouble()*2 - 1, rng.nextInt(12), randomState(rng), rng.nextInt(100) == 0);
+		}
+		return rm;
+	}
+
+	/**
+	 * A state as UtilAgent.getState would build it: a few of the 15 status bits, then the encoding of a random scene
+	 */
+	static double[] gameLikeState(Random rng) {
+		double[] s = new double[STATE_SIZE];
+		for (int i = 0; i < 15; i++) {
+			s[i] = rng.nextInt(4) == 0 ? 1 : 0;
+		}
+		ObservationEncoder.encode(randomScene(rng), EGO_POS, rng.nextBoolean(), s, 15);
+		return s;
+	}
+
+	/**
+	 * Reads recorded states, one per line, written as STATE_SIZE characters '0' or '1'
+	 */
+	static List<double[]> loadStates(String path) throws IOException {
+		List<double[]> states = new ArrayList<double[]>();
+		BufferedReader in = new BufferedReader(new FileReader(path));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				line = line.trim();
+				if (line.length() != STATE_SIZE) continue;
+				double[] s = new double[STATE_SIZE];
+				for (int i = 0; i < STATE_SIZE; i++) {
+					s[i] = line.charAt(i) == '1' ? 1 : 0;
+				}
+				states.add(s);
+			}
+		}
+		finally {
+			in.close();
+		}
+		return states;
+	}
+
+	/**
+	 * A merged observation with a mix of the element codes UtilAgent cares about, mostly empty
+	 */
+	static byte[][] randomScene(Random rng) {
+		byte[][] scene = new byte[SCENE_SIZE][SCENE_SIZE];
+		for (int y = 0; y < SCENE_SIZE; y++) {
+			for (int x = 0; x < SCENE_SIZE; x++) {
+				scene[y][x] = SCENE_CODES[rng.nextInt(SCENE_CODES.length)];
+			}
+		}
+		return scene;
+	}
+}
@@ -0,0 +1,61 @@
+package ch.idsia.project;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import ch.idsia.evolution.MLP;
+
+/**
+ * Cost of Checkpointer on a full packed replay memory: how long save() holds up the training thread
+ * and how long the background write takes, for the first (complete) save and an incremental one,
+ * and how long loading everything back takes.
+ *
+ * Usage: CheckpointBenchmark [capacity] [transitions between saves] [directory]
+ */
+public final class CheckpointBenchmark {
+
+	public static void main(String[] args) throws IOException, InterruptedException, ExecutionException {
+		int capacity = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		int between = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+		File dir = new File(args.length > 2 ? args[2] : System.getProperty("java.io.tmpdir"));
+		File file = new File(dir, "checkpoint-benchmark.bin");
+		file.delete();
+
+		Random rng = new Random(42);
+		ReplayMemory memory = BenchmarkUtil.filledMemory(capacity, true, rng);
+		DQNAgent agent = new DQNAgent(new QNetwork(new MLP(BenchmarkUtil.STATE_SIZE, 64, 12)), 0.9);
+		System.out.println("capacity=" + capacity + " file=" + file);
+
+		Checkpointer checkpointer = new Checkpointer(file, agent, memory);
+		try {
+			time("complete save", checkpointer);
+			for (int i = 0; i < between; i++) {
+				memory.addTransition(rng.nextDouble(), rng.nextInt(12), BenchmarkUtil.randomState(rng), false);
+			}
+			time("incremental save (" + between + " new)", checkpointer);
+		}
+		finally {
+			checkpointer.close();
+		}
+		System.out.printf("file size: %.1f MB%n", file.length() / 1e6);
+
+		ReplayMemory loaded = new ReplayMemory(capacity, BenchmarkUtil.STATE_SIZE, true);
+		DQNAgent resumed = new DQNAgent(new QNetwork(new MLP(BenchmarkUtil.STATE_SIZE, 64, 12)), 0.9);
+		long start = System.nanoTime();
+		Checkpointer.load(file, resumed, loaded);
+		System.out.printf("load: %.1f ms%n", (System.nanoTime() - start) / 1e6);
+		file.delete();
+	}
+
+	private static void time(String what, Checkpointer checkpointer) throws InterruptedException, ExecutionException {
+		long start = System.nanoTime();
+		Future<Void> done = checkpointer.save();
+		long paused = System.nanoTime() - start;
+		done.get();
+		long total = System.nanoTime() - start;
+		System.out.printf("%-32s training thread: %8.2f ms  until on disk: %8.1f ms%n", what, paused / 1e6, total / 1e6);
+	}
+}
@@ -0,0 +1,438 @@
+package ch.idsia.project;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Saves a DQNAgent and its ReplayMemory to one binary file, and loads them back.
+ *
+ * save() only copies, on the calling thread, the weights, the agent's scalars and random generators,
+ * and the replay slots written since the previous save; a background thread writes them out.
+ * Training can carry on meanwhile, and after the first save each one costs about as much as the
+ * transitions added since the last.
+ *
+ * File layout (little-endian): a HEADER_BYTES header, two agent slots, then capacity+1 fixed-size replay
+ * records (as in MappedReplayMemory: a packed state, then reward, action and terminal flag of the transition).
+ * An agent slot holds gamma, epsilon, learning rate, training steps, the replay cursor, both random
+ * generators, the weights and a CRC32. Saves alternate between the two slots and switch the header over
+ * last, so a crash during a save leaves the previous agent state loadable (with some of the oldest
+ * transitions possibly replaced by newer ones). States are stored as bits, so they must be binary,
+ * as produced by UtilAgent.getState. Priorities of a prioritized memory are not saved.
+ */
+public class Checkpointer {
+
+	private static final int MAGIC = 0x434e5144; // "DQNC"
+	private static final int VERSION = 1;
+	static final int HEADER_BYTES = 64;
+	// header fields
+	private static final int H_MAGIC = 0;
+	private static final int H_VERSION = 4;
+	private static final int H_GENERATION = 8;
+	private static final int H_ACTIVE_SLOT = 16;
+	private static final int H_INPUTS = 20;
+	private static final int H_HIDDEN = 24;
+	private static final int H_OUTPUTS = 28;
+	private static final int H_STATE_SIZE = 32;
+	private static final int H_CAPACITY = 36;
+
+	private static final int RNG_BYTES = 256; // room for a serialized java.util.Random
+	private static final int SLOT_FIXED_BYTES = 8*4 + 4 + 4 + 8 + 2*RNG_BYTES;
+	private static final int IO_CHUNK = 1 << 22;
+
+	private final File path;
+	private final DQNAgent agent;
+	private final ReplayMemory memory;
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final ExecutorService writer;
+
+	private final int numInputs;
+	private final int numHidden;
+	private final int numOutputs;
+	private final int words;
+	private final int recordBytes;
+	private final int slotBytes;
+
+	// owned by the thread calling save()
+	private long generation;
+	private int activeSlot;
+	private long savedAdded = -1; // getAdded() of the memory at the last save, -1 if everything must be written
+	private final long[] scratch;
+
+	private volatile boolean failed; // a background write failed, so the next save must be complete
+
+	/**
+	 * Saves to 'path'. If it already holds a checkpoint of this agent and memory (e.g. one they were just
+	 * loaded from), saves continue it incrementally; otherwise the first save writes everything.
+	 * @param path
+	 * @param agent
+	 * @param memory
+	 * @throws IOException
+	 */
+	public Checkpointer(File path, DQNAgent agent, ReplayMemory memory) throws IOException {
+		this.path = path;
+		this.agent = agent;
+		this.memory = memory;
+		PolicySnapshot p = agent.snapshot();
+		numInputs = p.getNumInputs();
+		numHidden = p.getNumHidden();
+		numOutputs = p.getNumOutputs();
+		words = memory.words();
+		recordBytes = recordBytes(words);
+		slotBytes = slotBytes(numInputs, numHidden, numOutputs);
+		scratch = new long[words];
+
+		file = new RandomAccessFile(path, "rw");
+		channel = file.getChannel();
+		if (channel.size() >= HEADER_BYTES) {
+			ByteBuffer header = read(channel, 0, HEADER_BYTES);
+			if (matches(header, numInputs, numHidden, numOutputs, memory)) {
+				generation = header.getLong(H_GENERATION);
+				activeSlot = header.getInt(H_ACTIVE_SLOT);
+				ByteBuffer slot = read(channel, slotPosition(activeSlot), slotBytes);
+				long added = slot.getLong(8*4 + 8);
+				if (added == memory.getAdded()) savedAdded = added;
+			}
+		}
+
+		writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "checkpoint-writer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Copies everything changed since the last save and writes it out in the background.
+	 * Must be called on the training thread, between training steps. Saves are written in order.
+	 * @return completes once the checkpoint is on disk; get() throws if writing failed
+	 */
+	public Future<Void> save() {
+		boolean complete = savedAdded < 0 || failed;
+		failed = false;
+		long delta = memory.getAdded() - savedAdded;
+		int capacity = memory.getCapacity();
+		int counter = memory.getCount();
+
+		// replay slots to write, as at most two runs of consecutive slots
+		final int[] runStart;
+		final ByteBuffer[] runs;
+		if (complete || delta >= capacity) {
+			runStart = new int[] {0};
+			runs = new ByteBuffer[] {records(0, capacity)};
+		}
+		else {
+			// the transitions added since the last save end at the cursor; their s' are the slots after them,
+			// the cursor's own state may have been replaced by setFirstState, and slot 0 follows slot capacity
+			int d = (int) delta;
+			int start = counter - d;
+			if (start < 0) start += capacity;
+			int end = start + d;
+			if (end < capacity) {
+				runStart = new int[] {start};
+				runs = new ByteBuffer[] {records(start, end)};
+			}
+			else {
+				runStart = new int[] {start, 0};
+				runs = new ByteBuffer[] {records(start, capacity), records(0, end - capacity)};
+			}
+		}
+
+		final int slot = 1 - activeSlot;
+		final long gen = generation + 1;
+		final ByteBuffer agentSlot = agentSlot();
+		activeSlot = slot;
+		generation = gen;
+		savedAdded = memory.getAdded();
+
+		return writer.submit(new Callable<Void>() {
+			public Void call() throws IOException {
+				try {
+					for (int k = 0; k < runs.length; k++) {
+						write(channel, HEADER_BYTES + 2L*slotBytes + (long) runStart[k]*recordBytes, runs[k]);
+					}
+					channel.force(false);
+					write(channel, slotPosition(slot), agentSlot);
+					channel.force(false);
+					ByteBuffer header = header(gen, slot);
+					write(channel, 0, header);
+					channel.force(true);
+				}
+				catch (IOException e) {
+					failed = true;
+					throw e;
+				}
+				catch (RuntimeException e) {
+					failed = true;
+					throw e;
+				}
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Waits for pending saves and closes the file
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		writer.shutdown();
+		try {
+			writer.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		channel.close();
+		file.close();
+	}
+
+	public File getPath() {
+		return path;
+	}
+
+	/**
+	 * Restores only the agent from the checkpoint in 'path', e.g. to evaluate it, without reading the replay memory
+	 * @param path
+	 * @param agent
+	 * @throws IOException
+	 */
+	public static void loadWeights(File path, DQNAgent agent) throws IOException {
+		load(path, agent, null);
+	}
+
+	/**
+	 * Restores 'agent' and 'memory' from the checkpoint in 'path'.
+	 * They must have the topology, state size, capacity and gamma it was saved with;
+	 * otherwise IllegalArgumentException is thrown before either is changed.
+	 * A target network, if any, is refreshed from the loaded weights.
+	 * @param path
+	 * @param agent
+	 * @param memory
+	 * @throws IOException
+	 */
+	public static void load(File path, DQNAgent agent, ReplayMemory memory) throws IOException {
+		RandomAccessFile f = new RandomAccessFile(path, "r");
+		try {
+			FileChannel channel = f.getChannel();
+			PolicySnapshot p = agent.snapshot();
+			int numInputs = p.getNumInputs();
+			int numHidden = p.getNumHidden();
+			int numOutputs = p.getNumOutputs();
+			ByteBuffer header = read(channel, 0, HEADER_BYTES);
+			if (header.getInt(H_MAGIC) != MAGIC || header.getInt(H_VERSION) != VERSION) {
+				throw new IOException(path + " is not a checkpoint");
+			}
+			if (!matches(header, numInputs, numHidden, numOutputs, memory)) {
+				throw new IllegalArgumentException(path + " was saved from a " + header.getInt(H_INPUTS) + "-"
+						+ header.getInt(H_HIDDEN) + "-" + header.getInt(H_OUTPUTS) + " network and a memory of "
+						+ header.getInt(H_CAPACITY) + " states of " + header.getInt(H_STATE_SIZE) + " features");
+			}
+			int slotBytes = slotBytes(numInputs, numHidden, numOutputs);
+			ByteBuffer slot = read(channel, HEADER_BYTES + (long) header.getInt(H_ACTIVE_SLOT)*slotBytes, slotBytes);
+			CRC32 crc = new CRC32();
+			crc.update(slot.array(), 0, slotBytes - 8);
+			if ((int) crc.getValue() != slot.getInt(slotBytes - 8)) throw new IOException(path + " is corrupt");
+
+			double gamma = slot.getDouble();
+			if (gamma != agent.getGamma()) {
+				throw new IllegalArgumentException(path + " was saved with gamma " + gamma + ", not " + agent.getGamma());
+			}
+			agent.setEpsilon(slot.getDouble());
+			agent.setLearningRate(slot.getDouble());
+			agent.setTrainSteps(slot.getLong());
+			int counter = slot.getInt();
+			boolean full = slot.getInt() != 0;
+			long added = slot.getLong();
+			agent.setRandom(readRandom(slot));
+			Random memoryRandom = readRandom(slot);
+			double[] w1 = new double[numInputs*numHidden];
+			double[] w2 = new double[numHidden*numOutputs];
+			slot.asDoubleBuffer().get(w1).get(w2);
+			agent.setWeights(new PolicySnapshot(numInputs, numHidden, numOutputs, w1, w2));
+
+			if (memory == null) return;
+			memory.setRandom(memoryRandom);
+
+			// only slots holding data; reading a dense memory's empty slots would fill it with rows of zeros
+			int words = memory.words();
+			int recordBytes = recordBytes(words);
+			int capacity = memory.getCapacity();
+			int last = full ? capacity : counter;
+			long[] state = new long[words];
+			int perChunk = Math.max(1, IO_CHUNK / recordBytes);
+			for (int first = 0; first <= last; first += perChunk) {
+				int n = Math.min(perChunk, last - first + 1);
+				ByteBuffer chunk = read(channel, HEADER_BYTES + 2L*slotBytes + (long) first*recordBytes, n*recordBytes);
+				for (int k = 0; k < n; k++) {
+					int base = k*recordBytes;
+					for (int w = 0; w < words; w++) state[w] = chunk.getLong(base + 8*w);
+					memory.setPacked(first + k, state, 0);
+					if (first + k < capacity) {
+						memory.setTransition(first + k, chunk.getDouble(base + 8*words),
+								chunk.get(base + 8*words + 8), chunk.get(base + 8*words + 9) != 0);
+					}
+				}
+			}
+			memory.setCursor(counter, full, added);
+		}
+		finally {
+			f.close();
+		}
+	}
+
+	/**
+	 * Replay records first..last (inclusive), copied from the memory
+	 */
+	private ByteBuffer records(int first, int last) {
+		int capacity = memory.getCapacity();
+		ByteBuffer b = ByteBuffer.allocate((last - first + 1)*recordBytes).order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = first; i <= last; i++) {
+			int base = (i - first)*recordBytes;
+			memory.getPacked(i, scratch, 0);
+			for (int w = 0; w < words; w++) b.putLong(base + 8*w, scratch[w]);
+			if (i < capacity) {
+				b.putDouble(base + 8*words, memory.reward(i));
+				b.put(base + 8*words + 8, (byte) memory.getA(i));
+				b.put(base + 8*words + 9, (byte) (memory.terminal(i) ? 1 : 0));
+			}
+		}
+		return b;
+	}
+
+	private ByteBuffer agentSlot() {
+		ByteBuffer b = ByteBuffer.allocate(slotBytes).order(ByteOrder.LITTLE_ENDIAN);
+		b.putDouble(agent.getGamma());
+		b.putDouble(agent.getEpsilon());
+		b.putDouble(agent.getLearningRate());
+		b.putLong(agent.getTrainSteps());
+		b.putInt(memory.getCount());
+		b.putInt(memory.isFull() ? 1 : 0);
+		b.putLong(memory.getAdded());
+		writeRandom(b, agent.getRandom());
+		writeRandom(b, memory.getRandom());
+		PolicySnapshot p = agent.snapshot();
+		b.asDoubleBuffer().put(p.getFirstLayer()).put(p.getSecondLayer());
+		CRC32 crc = new CRC32();
+		crc.update(b.array(), 0, slotBytes - 8);
+		b.putInt(slotBytes - 8, (int) crc.getValue());
+		b.clear();
+		return b;
+	}
+
+	private ByteBuffer header(long gen, int slot) {
+		ByteBuffer b = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		b.putInt(H_MAGIC, MAGIC);
+		b.putInt(H_VERSION, VERSION);
+		b.putLong(H_GENERATION, gen);
+		b.putInt(H_ACTIVE_SLOT, slot);
+		b.putInt(H_INPUTS, numInputs);
+		b.putInt(H_HIDDEN, numHidden);
+		b.putInt(H_OUTPUTS, numOutputs);
+		b.putInt(H_STATE_SIZE, memory.getStateSize());
+		b.putInt(H_CAPACITY, memory.getCapacity());
+		return b;
+	}
+
+	private long slotPosition(int slot) {
+		return HEADER_BYTES + (long) slot*slotBytes;
+	}
+
+	/**
+	 * Whether the header describes this topology, and this memory unless it is null
+	 */
+	private static boolean matches(ByteBuffer header, int numInputs, int numHidden, int numOutputs, ReplayMemory memory) {
+		return header.getInt(H_MAGIC) == MAGIC && header.getInt(H_VERSION) == VERSION
+				&& header.getInt(H_INPUTS) == numInputs && header.getInt(H_HIDDEN) == numHidden
+				&& header.getInt(H_OUTPUTS) == numOutputs
+				&& (memory == null || header.getInt(H_STATE_SIZE) == memory.getStateSize()
+						&& header.getInt(H_CAPACITY) == memory.getCapacity());
+	}
+
+	/**
+	 * A packed state, then an 8-byte reward, a 1-byte action and a 1-byte terminal flag, padded to 8 bytes
+	 */
+	private static int recordBytes(int words) {
+		return (8*words + 8 + 2 + 7) & ~7;
+	}
+
+	/**
+	 * Fixed fields, weights, then 8 bytes for the CRC
+	 */
+	private static int slotBytes(int numInputs, int numHidden, int numOutputs) {
+		int weightOffset = (SLOT_FIXED_BYTES + 7) & ~7;
+		return weightOffset + 8*(numInputs*numHidden + numHidden*numOutputs) + 8;
+	}
+
+	/**
+	 * Serialized generator, length first, in a fixed RNG_BYTES field
+	 */
+	private static void writeRandom(ByteBuffer b, Random rng) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(rng);
+			out.close();
+			byte[] data = bytes.toByteArray();
+			if (data.length > RNG_BYTES - 4) throw new IllegalStateException("random generator state too large");
+			int start = b.position();
+			b.putInt(data.length);
+			b.put(data);
+			b.position(start + RNG_BYTES);
+		}
+		catch (IOException e) {
+			throw new IllegalStateException(e); // writing to memory
+		}
+	}
+
+	private static Random readRandom(ByteBuffer b) throws IOException {
+		int start = b.position();
+		byte[] data = new byte[b.getInt()];
+		b.get(data);
+		b.position(start + RNG_BYTES);
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data));
+		try {
+			return (Random) in.readObject();
+		}
+		catch (ClassNotFoundException e) {
+			throw new IOException("bad random generator state: " + e);
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+		ByteBuffer b = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		while (b.hasRemaining()) {
+			if (channel.read(b, position + b.position()) < 0) throw new IOException("checkpoint is truncated");
+		}
+		b.clear();
+		return b;
+	}
+
+	private static void write(FileChannel channel, long position, ByteBuffer b) throws IOException {
+		b.clear();
+		while (b.hasRemaining()) {
+			channel.write(b, position + b.position());
+		}
+	}
+}
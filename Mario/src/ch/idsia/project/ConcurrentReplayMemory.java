@@ -0,0 +1,202 @@
+package ch.idsia.project;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A replay memory that several actor threads can write to while a learner samples from it, without locks.
+ * Unlike ReplayMemory, each transition stores its own s and s' (packed as bits), so transitions
+ * from different actors can interleave freely and episode boundaries need no special care.
+ * States must be binary, as produced by UtilAgent.getState.
+ *
+ * Writers reserve a slot by incrementing a shared sequence number. Each slot carries a stamp:
+ * odd while its transition is being written, even once it is complete. A sampler reads the stamp,
+ * copies the slot, and re-reads the stamp; if the slot was not complete or changed meanwhile, the
+ * copy is thrown away and another slot is drawn. Samples therefore never mix two transitions.
+ */
+public class ConcurrentReplayMemory {
+
+	private final int capacity;
+	private final int stateSize;
+	private final int words;
+
+	private final AtomicLong next = new AtomicLong();
+	// 0: never written, 2*seq+1: transition number seq being written, 2*seq+2: transition seq complete
+	private final AtomicLongArray stamps;
+
+	private final AtomicLongArray states;
+	private final AtomicLongArray nextStates;
+	private final AtomicLongArray rewards; // raw double bits
+	private final AtomicIntegerArray actions;
+	private final AtomicIntegerArray terminals;
+
+	private final ThreadLocal<Random> rng = new ThreadLocal<Random>() {
+		@Override
+		protected Random initialValue() {
+			return new Random();
+		}
+	};
+
+	public ConcurrentReplayMemory(int N, int stateSize) {
+		capacity = N;
+		this.stateSize = stateSize;
+		words = StateBits.words(stateSize);
+		stamps = new AtomicLongArray(capacity);
+		states = new AtomicLongArray(capacity*words);
+		nextStates = new AtomicLongArray(capacity*words);
+		rewards = new AtomicLongArray(capacity);
+		actions = new AtomicIntegerArray(capacity);
+		terminals = new AtomicIntegerArray(capacity);
+	}
+
+	/**
+	 * Stores the transition (s, a, r, s', t), overwriting the oldest one once full.
+	 * Safe to call from any number of threads at once.
+	 * @param s
+	 * @param r
+	 * @param a
+	 * @param sp
+	 * @param t
+	 * @throws IllegalArgumentException if a state is shorter than stateSize or 'a' is negative
+	 */
+	public void addTransition(double[] s, double r, int a, double[] sp, boolean t) {
+		long start = Metrics.start();
+		// checked before reserving: a slot left half-written would stall the writer that laps it forever
+		if (s.length < stateSize || sp.length < stateSize) {
+			throw new IllegalArgumentException("states of " + s.length + " and " + sp.length + " features, not " + stateSize);
+		}
+		checkAction(a);
+		long seq = reserve();
+		int slot = (int) (seq % capacity);
+		StateBits.pack(s, stateSize, states, slot*words);
+		StateBits.pack(sp, stateSize, nextStates, slot*words);
+		complete(seq, slot, r, a, t);
+		Metrics.stop(Metrics.Stage.ADD_TRANSITION, start);
+	}
+
+	/**
+	 * Same as above for states already packed as bits (see StateBits), from s[sOffset] and sp[spOffset]
+	 */
+	public void addTransition(long[] s, int sOffset, double r, int a, long[] sp, int spOffset, boolean t) {
+		long start = Metrics.start();
+		if (sOffset < 0 || sOffset + words > s.length || spOffset < 0 || spOffset + words > sp.length) {
+			throw new IllegalArgumentException("packed states of " + words + " words don't fit at " + sOffset + " and " + spOffset);
+		}
+		checkAction(a);
+		long seq = reserve();
+		int slot = (int) (seq % capacity);
+		for (int w = 0; w < words; w++) {
+			states.lazySet(slot*words + w, s[sOffset + w]);
+			nextStates.lazySet(slot*words + w, sp[spOffset + w]);
+		}
+		complete(seq, slot, r, a, t);
+		Metrics.stop(Metrics.Stage.ADD_TRANSITION, start);
+	}
+
+	private static void checkAction(int a) {
+		if (a < 0) throw new IllegalArgumentException("action " + a + " is negative");
+	}
+
+	/**
+	 * Takes the next sequence number and marks its slot as being written
+	 */
+	private long reserve() {
+		long seq = next.getAndIncrement();
+		int slot = (int) (seq % capacity);
+
+		// only if a writer is a whole lap behind: let it finish with this slot first
+		long previous = seq < capacity ? 0 : 2*(seq - capacity) + 2;
+		while (stamps.get(slot) != previous) Thread.yield();
+
+		stamps.set(slot, 2*seq + 1);
+		return seq;
+	}
+
+	/**
+	 * Writes the rest of transition 'seq' and marks its slot complete
+	 */
+	private void complete(long seq, int slot, double r, int a, boolean t) {
+		rewards.lazySet(slot, Double.doubleToRawLongBits(r));
+		actions.lazySet(slot, a);
+		terminals.lazySet(slot, t ? 1 : 0);
+		stamps.lazySet(slot, 2*seq + 2);
+		Metrics.replayFill(Math.min(seq + 1, capacity), capacity);
+	}
+
+	/**
+	 * Number of transitions stored or being stored
+	 */
+	public int size() {
+		return (int) Math.min(next.get(), capacity);
+	}
+
+	/**
+	 * Total number of transitions ever added
+	 */
+	public long getAdded() {
+		return next.get();
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public int getStateSize() {
+		return stateSize;
+	}
+
+	/**
+	 * Samples batch.size() complete transitions uniformly and copies them into 'batch'.
+	 * Never blocks writers. At least one transition must have been added.
+	 * @param batch
+	 */
+	public void sampleMinibatch(MinibatchBuffer batch) {
+		long start = Metrics.start();
+		Random random = rng.get();
+		int[] idx = batch.getIndices();
+		double[] r = batch.getRewards();
+		int[] a = batch.getActions();
+		boolean[] t = batch.getTerminals();
+		boolean sparse = batch.isSparse();
+		int ns = 0;
+		int nsp = 0;
+		for (int i = 0; i < batch.size(); i++) {
+			while (true) {
+				int j = random.nextInt(size());
+				long stamp = stamps.get(j);
+				if (stamp == 0 || (stamp & 1) != 0) continue; // empty or being written
+
+				int copiedS = 0;
+				int copiedSp = 0;
+				if (sparse) {
+					copiedS = StateBits.active(states, j*words, words, batch.getActiveStates(), ns);
+					copiedSp = StateBits.active(nextStates, j*words, words, batch.getActiveNextStates(), nsp);
+				}
+				else {
+					StateBits.unpack(states, j*words, stateSize, batch.getStates(), i*stateSize);
+					StateBits.unpack(nextStates, j*words, stateSize, batch.getNextStates(), i*stateSize);
+				}
+				r[i] = Double.longBitsToDouble(rewards.get(j));
+				a[i] = actions.get(j);
+				t[i] = terminals.get(j) != 0;
+
+				if (stamps.get(j) != stamp) continue; // overwritten while we copied it
+				idx[i] = j;
+				if (sparse) {
+					batch.getStateOffsets()[i] = ns;
+					ns += copiedS;
+					batch.getNextStateOffsets()[i] = nsp;
+					nsp += copiedSp;
+				}
+				break;
+			}
+		}
+		if (sparse) {
+			batch.getStateOffsets()[batch.size()] = ns;
+			batch.getNextStateOffsets()[batch.size()] = nsp;
+		}
+		Metrics.stop(Metrics.Stage.SAMPLE, start);
+	}
+}
@@ -0,0 +1,106 @@
+package ch.idsia.project;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Stress test and throughput benchmark for ConcurrentReplayMemory.
+ * Several producer threads add transitions as fast as they can while one learner thread samples.
+ * Every transition is self-describing (s encodes producer and step, s' the next step, and reward,
+ * action and terminal are derived from them), so the learner can check that no sample is torn
+ * and that every s/s' pair belongs together. Any violation is reported and fails the run.
+ *
+ * Usage: ConcurrentReplayMemoryBenchmark [producers] [seconds] [capacity]
+ */
+public final class ConcurrentReplayMemoryBenchmark {
+
+	private static final int STATE_SIZE = BenchmarkUtil.STATE_SIZE;
+	private static final int STEP_BITS = 40;
+	private static final int EPISODE_LENGTH = 100;
+
+	public static void main(String[] args) throws InterruptedException {
+		int producers = args.length > 0 ? Integer.parseInt(args[0]) : Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		int capacity = args.length > 2 ? Integer.parseInt(args[2]) : 4096; // small, so slots get overwritten constantly
+
+		final ConcurrentReplayMemory memory = new ConcurrentReplayMemory(capacity, STATE_SIZE);
+		final AtomicBoolean running = new AtomicBoolean(true);
+		Thread[] threads = new Thread[producers];
+		for (int p = 0; p < producers; p++) {
+			final int producer = p;
+			threads[p] = new Thread(new Runnable() {
+				public void run() {
+					double[] s = new double[STATE_SIZE];
+					double[] sp = new double[STATE_SIZE];
+					for (long step = 0; running.get(); step++) {
+						encode(producer, step, s);
+						encode(producer, step + 1, sp);
+						memory.addTransition(s, reward(step), producer % 12, sp, isTerminal(step));
+					}
+				}
+			}, "producer-" + p);
+			threads[p].start();
+		}
+
+		MinibatchBuffer batch = new MinibatchBuffer(32, STATE_SIZE);
+		while (memory.size() < batch.size()) Thread.sleep(1);
+		long samples = 0;
+		long violations = 0;
+		long start = System.nanoTime();
+		long end = start + seconds*1000000000L;
+		long addedAtStart = memory.getAdded();
+		while (System.nanoTime() < end) {
+			memory.sampleMinibatch(batch);
+			for (int i = 0; i < batch.size(); i++) {
+				if (!consistent(batch, i)) violations++;
+			}
+			samples += batch.size();
+		}
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		long added = memory.getAdded() - addedAtStart;
+		running.set(false);
+		for (Thread t : threads) t.join();
+
+		System.out.printf("%d producers, capacity %d: %.0f transitions added/s, %.0f transitions sampled/s%n",
+				producers, capacity, added / elapsed, samples / elapsed);
+		System.out.println(violations == 0 ? "no torn or mismatched samples in " + samples
+				: "FAILED: " + violations + " bad samples out of " + samples);
+		System.exit(violations == 0 ? 0 : 1);
+	}
+
+	/**
+	 * Writes (producer, step) into the first bits of s; everything else stays 0
+	 */
+	private static void encode(int producer, long step, double[] s) {
+		long key = ((long) producer << STEP_BITS) | step;
+		for (int b = 0; b < 64; b++) {
+			s[b] = (key >>> b) & 1L;
+		}
+	}
+
+	private static long decode(double[] flat, int offset) {
+		long key = 0;
+		for (int b = 0; b < 64; b++) {
+			if (flat[offset + b] != 0) key |= 1L << b;
+		}
+		return key;
+	}
+
+	private static double reward(long step) {
+		return (step % 3) - 1;
+	}
+
+	private static boolean isTerminal(long step) {
+		return step % EPISODE_LENGTH == EPISODE_LENGTH - 1;
+	}
+
+	private static boolean consistent(MinibatchBuffer batch, int i) {
+		long key = decode(batch.getStates(), i*STATE_SIZE);
+		long nextKey = decode(batch.getNextStates(), i*STATE_SIZE);
+		int producer = (int) (key >>> STEP_BITS);
+		long step = key & ((1L << STEP_BITS) - 1);
+		return nextKey == key + 1
+				&& batch.getRewards()[i] == reward(step)
+				&& batch.getActions()[i] == producer % 12
+				&& batch.getTerminals()[i] == isTerminal(step);
+	}
+}
@@ -10,17 +10,58 @@ import ch.idsia.evolution.MLP;
 public class DQNAgent extends UtilAgent implements Agent {
 	
 	static private final String name = "DQNAgent";
+	static private final int DEFAULT_PUBLISH_INTERVAL = 100;
 
 	private MLP mlp;
+	private QNetwork net; // if set, used instead of mlp and trained a whole minibatch at a time
 	private double gamma;
 	private double epsilon = 0.9999;
+	private double epsilonDecay = 0.9999;
 	private Random rng;
+	private final int numActions;
 
+	// frozen copy of the network for the bootstrap max Q(s'); see useTargetNetwork
+	private QNetwork targetNet;
+	private int targetInterval;
+	private double tau;
+	private long trainSteps;
+	private volatile PolicySnapshot published;
+	private volatile boolean policyShared; // getPolicy was called, so publish without a target network too
+	private int publishInterval = DEFAULT_PUBLISH_INTERVAL;
+
+	// scratch space for train(MinibatchBuffer), reused across calls
+	private double[] row;
+	private double[] y;
+	private double[] targetRow;
+	private double[] maxNext;
+	private MinibatchBuffer copied;
+	private int[] active;
+	private int[] activeOffsets;
+
+	// act(): the state of the current decision (unless the memory is dense) and the action held since (-1 before the first decision)
+	private double[] actState;
+	private int actAction = -1;
+
+	/**
+	 * @param mlp its outputs decide the action set (see ActionCodec.forActions)
+	 * @param gamma
+	 */
 	public DQNAgent(MLP mlp, double gamma) {
-		super(name);
+		super(name, ActionCodec.forActions(mlp.secondConnectionLayer[0].length));
 		this.mlp = mlp;
 		this.gamma = gamma;
+		numActions = actionCodec.size();
+		rng = new Random();
+		published = snapshot();
+	}
+
+	public DQNAgent(QNetwork net, double gamma) {
+		super(name, ActionCodec.forActions(net.getNumOutputs()));
+		this.net = net;
+		this.gamma = gamma;
+		numActions = actionCodec.size();
 		rng = new Random();
+		published = snapshot();
 	}
 	
 	/**
@@ -30,25 +71,245 @@ public class DQNAgent extends UtilAgent implements Agent {
 	 * @param actions
 	 */
 	public void train(double[][] states, double[] rewards, int[] actions, double[][] nextStates, boolean[] terminal, int batchSize) {
+		long t = Metrics.start();
+		if (net != null) {
+			// the batched network wants flat rows
+			int stateSize = states[0].length;
+			if (copied == null || copied.size() != batchSize || copied.getStateSize() != stateSize) {
+				copied = new MinibatchBuffer(batchSize, stateSize);
+			}
+			for (int j = 0; j < batchSize; j++) {
+				System.arraycopy(states[j], 0, copied.getStates(), j*stateSize, stateSize);
+				System.arraycopy(nextStates[j], 0, copied.getNextStates(), j*stateSize, stateSize);
+				copied.getRewards()[j] = rewards[j];
+				copied.getActions()[j] = actions[j];
+				copied.getTerminals()[j] = terminal[j];
+			}
+			trainBatched(copied);
+			stepTargetNetwork();
+			Metrics.tdErrors(copied.getTdErrors(), batchSize);
+			Metrics.update(t);
+			return;
+		}
 
 		// calculate target values for the actions
-		double[][] y = new double[batchSize][12];
+		double[][] y = new double[batchSize][numActions];
+		double loss = 0;
 		for (int j = 0; j < batchSize; j++) {
 			double[] Qsa = mlp.propagate(states[j]); // get the current Q(s,a) values for that state
-			for (int i = 0; i < 12; i++) {
+			for (int i = 0; i < numActions; i++) {
 				y[j][i] = Qsa[i]; // if it's not the action we did, leave it the same
 			}
 			// modify the Q-value for the action we did 
+			double q = y[j][actions[j]];
 			if (terminal[j] == true) y[j][actions[j]] = rewards[j]; 
 			else {
-				y[j][actions[j]] = rewards[j] + gamma*max(mlp.propagate(nextStates[j]));
+				y[j][actions[j]] = rewards[j] + gamma*maxNextQ(nextStates[j]);
 			}
+			loss += (y[j][actions[j]] - q)*(y[j][actions[j]] - q);
 		}
 		// next perform back propagation on target - current Q 
 		for (int j = 0; j < batchSize; j++) {
 			mlp.propagate(states[j]); // this is a pain...
 			mlp.backPropagate(y[j]);
 		}
+		stepTargetNetwork();
+		if (t != 0) Metrics.addLoss(loss, batchSize);
+		Metrics.update(t);
+	}
+
+	/**
+	 * Same as above, reading the minibatch from a preallocated buffer.
+	 * Apart from the first call (which sizes the scratch arrays), this allocates nothing itself.
+	 * Sparse buffers are only supported when the agent was built with a QNetwork.
+	 * Each sample's error is scaled by its importance-sampling weight, and its TD error
+	 * is written back into the buffer for ReplayMemory.updatePriorities.
+	 * If the buffer carries discounts (n-step returns, see ReplayMemory.enableNStep), they replace gamma.
+	 * @param batch
+	 */
+	public void train(MinibatchBuffer batch) {
+		long t = Metrics.start();
+		if (net != null) {
+			trainBatched(batch);
+			stepTargetNetwork();
+			Metrics.tdErrors(batch.getTdErrors(), batch.size());
+			Metrics.update(t);
+			return;
+		}
+		if (batch.isSparse()) throw new IllegalArgumentException("sparse minibatches need a QNetwork");
+		int batchSize = batch.size();
+		int stateSize = batch.getStateSize();
+		if (row == null || row.length != stateSize) row = new double[stateSize];
+		if (y == null || y.length < batchSize*numActions) y = new double[batchSize*numActions];
+		if (targetRow == null) targetRow = new double[numActions];
+
+		double[] states = batch.getStates();
+		double[] nextStates = batch.getNextStates();
+		double[] rewards = batch.getRewards();
+		int[] actions = batch.getActions();
+		boolean[] terminal = batch.getTerminals();
+		double[] weights = batch.getWeights();
+		double[] tdErrors = batch.getTdErrors();
+		double[] discounts = batch.isDiscounted() ? batch.getDiscounts() : null;
+
+		// calculate target values for the actions
+		for (int j = 0; j < batchSize; j++) {
+			System.arraycopy(states, j*stateSize, row, 0, stateSize);
+			double[] Qsa = mlp.propagate(row);
+			System.arraycopy(Qsa, 0, y, j*numActions, numActions);
+			double target;
+			if (terminal[j]) target = rewards[j];
+			else {
+				System.arraycopy(nextStates, j*stateSize, row, 0, stateSize);
+				target = rewards[j] + (discounts != null ? discounts[j] : gamma)*maxNextQ(row);
+			}
+			setTarget(j, actions[j], target, weights[j], tdErrors);
+		}
+		// next perform back propagation on target - current Q 
+		for (int j = 0; j < batchSize; j++) {
+			System.arraycopy(states, j*stateSize, row, 0, stateSize);
+			mlp.propagate(row);
+			System.arraycopy(y, j*numActions, targetRow, 0, numActions);
+			mlp.backPropagate(targetRow);
+		}
+		stepTargetNetwork();
+		Metrics.tdErrors(tdErrors, batchSize);
+		Metrics.update(t);
+	}
+
+	/**
+	 * One forward pass over all s', one over all s, and a single averaged update
+	 */
+	private void trainBatched(MinibatchBuffer batch) {
+		int batchSize = batch.size();
+		if (y == null || y.length < batchSize*numActions) y = new double[batchSize*numActions];
+		if (maxNext == null || maxNext.length < batchSize) maxNext = new double[batchSize];
+
+		double[] rewards = batch.getRewards();
+		int[] actions = batch.getActions();
+		boolean[] terminal = batch.getTerminals();
+		double[] weights = batch.getWeights();
+		double[] tdErrors = batch.getTdErrors();
+		double[] discounts = batch.isDiscounted() ? batch.getDiscounts() : null;
+
+		boolean sparse = batch.isSparse();
+		QNetwork bootstrap = targetNet != null ? targetNet : net;
+		double[] qNext = sparse
+				? bootstrap.forwardSparse(batch.getActiveNextStates(), batch.getNextStateOffsets(), batchSize)
+				: bootstrap.forward(batch.getNextStates(), batchSize);
+		for (int j = 0; j < batchSize; j++) {
+			maxNext[j] = max(qNext, j*numActions, numActions);
+		}
+		// forward on s last, so backward sees its activations
+		double[] q = sparse
+				? net.forwardSparse(batch.getActiveStates(), batch.getStateOffsets(), batchSize)
+				: net.forward(batch.getStates(), batchSize);
+		System.arraycopy(q, 0, y, 0, batchSize*numActions);
+		for (int j = 0; j < batchSize; j++) {
+			double discount = discounts != null ? discounts[j] : gamma;
+			setTarget(j, actions[j], terminal[j] ? rewards[j] : rewards[j] + discount*maxNext[j], weights[j], tdErrors);
+		}
+		net.backward(y);
+	}
+
+	/**
+	 * Sets the target of action a in row j of y (which holds the current Q-values) and records the TD error.
+	 * Moving the target by only weight*error scales that sample's gradient by its importance-sampling weight.
+	 */
+	private void setTarget(int j, int a, double target, double weight, double[] tdErrors) {
+		double q = y[j*numActions + a];
+		tdErrors[j] = target - q;
+		y[j*numActions + a] = q + weight*(target - q);
+	}
+
+	/**
+	 * max_a Q(s', a) for one next state, from the target network if there is one
+	 */
+	private double maxNextQ(double[] nextState) {
+		if (targetNet != null) return max(targetNet.propagate(nextState));
+		return max(net != null ? net.propagate(nextState) : mlp.propagate(nextState));
+	}
+
+	/**
+	 * Bootstraps from a separate target network instead of the one being trained.
+	 * With tau == 0 it is a frozen copy, replaced every 'interval' training steps;
+	 * with tau > 0 it follows the live network by Polyak averaging (w = tau*live + (1-tau)*w) every step.
+	 * Either way, every 'interval' steps its weights are published as an immutable snapshot (see getPolicy).
+	 * @param interval at least 1
+	 * @param tau
+	 */
+	public void useTargetNetwork(int interval, double tau) {
+		if (interval < 1) throw new IllegalArgumentException("target network interval " + interval + " is not positive");
+		this.targetInterval = interval;
+		this.tau = tau;
+		targetNet = net != null ? new QNetwork(net.getNumInputs(), net.getNumHidden(), net.getNumOutputs(), net.getLearningRate()) : new QNetwork(mlp);
+		refreshTargetNetwork();
+	}
+
+	/**
+	 * Copies the live weights into the target network and publishes them
+	 */
+	public void refreshTargetNetwork() {
+		if (net != null) targetNet.copyFrom(net);
+		else targetNet.copyFrom(mlp);
+		published = targetNet.snapshot();
+	}
+
+	/**
+	 * Called after every training step
+	 */
+	private void stepTargetNetwork() {
+		trainSteps++;
+		if (targetNet == null) {
+			if (policyShared && trainSteps % publishInterval == 0) published = snapshot();
+			return;
+		}
+		if (tau > 0) {
+			if (net != null) targetNet.blendFrom(net, tau);
+			else targetNet.blendFrom(mlp, tau);
+			if (trainSteps % targetInterval == 0) published = targetNet.snapshot();
+		}
+		else if (trainSteps % targetInterval == 0) refreshTargetNetwork();
+	}
+
+	/**
+	 * The last published snapshot of the target network.
+	 * Lock-free: actor threads may call this at any time while the learner trains.
+	 * Without a target network, the live weights are published every publish interval once this has been called.
+	 */
+	public PolicySnapshot getPolicy() {
+		if (!policyShared) policyShared = true; // a write on every call would keep the line bouncing between cores
+		return published;
+	}
+
+	/**
+	 * Training steps between snapshots of the live weights for getPolicy when there is no target network
+	 * (100 by default); with one, its interval is used instead
+	 * @param interval at least 1
+	 */
+	public void setPublishInterval(int interval) {
+		if (interval < 1) throw new IllegalArgumentException("publish interval " + interval + " is not positive");
+		publishInterval = interval;
+	}
+
+	public int getPublishInterval() {
+		return publishInterval;
+	}
+
+	public long getTrainSteps() {
+		return trainSteps;
+	}
+
+	/**
+	 * One training step on a minibatch sampled from 'memory' into 'batch',
+	 * feeding the TD errors back if the memory is prioritized
+	 * @param memory
+	 * @param batch
+	 */
+	public void train(ReplayMemory memory, MinibatchBuffer batch) {
+		memory.sampleMinibatch(batch);
+		train(batch);
+		memory.updatePriorities(batch);
 	}
 
 	/**
@@ -56,16 +317,177 @@ public class DQNAgent extends UtilAgent implements Agent {
 	 * eps --> true means we are using epsilon-greedy
 	 */
 	public int getAction(double[] state, boolean eps) {
+		long t = Metrics.start();
 		int a;
 		if (eps && Math.random() < epsilon) {
-			a = rng.nextInt(12);
-			epsilon*=0.9999;
+			a = rng.nextInt(numActions);
+			epsilon*=epsilonDecay;
 //			System.out.println(epsilon);
 		}
-		else a = argmax(mlp.propagate(state));
+		else a = argmax(net != null ? net.propagate(state) : mlp.propagate(state));
+		Metrics.epsilon(epsilon);
+		Metrics.decision(t);
 		return a;
 	}
 
+	/**
+	 * getAction for n states at once, e.g. the observations of a VectorEnv, with one batched forward pass
+	 * if the agent has a QNetwork (sparse if the states are binary, as getState's are)
+	 * @param states n row-major states
+	 * @param n
+	 * @param actions receives the n actions
+	 * @param eps true to use epsilon-greedy, decaying epsilon once per random action
+	 */
+	public void getActions(double[] states, int n, int[] actions, boolean eps) {
+		long t = Metrics.start();
+		int stateSize = states.length / n;
+		double[] q = null;
+		if (net != null) {
+			if (active == null || active.length < n*stateSize) active = new int[n*stateSize];
+			if (activeOffsets == null || activeOffsets.length < n + 1) activeOffsets = new int[n + 1];
+			int count = 0;
+			boolean binary = true;
+			for (int j = 0; j < n && binary; j++) {
+				activeOffsets[j] = count;
+				for (int i = j*stateSize; i < (j + 1)*stateSize; i++) {
+					double x = states[i];
+					if (x == 1) active[count++] = i - j*stateSize;
+					else if (x != 0) {
+						binary = false;
+						break;
+					}
+				}
+			}
+			activeOffsets[n] = count;
+			q = binary ? net.forwardSparse(active, activeOffsets, n) : net.forward(states, n);
+		}
+		else if (row == null || row.length != stateSize) row = new double[stateSize];
+
+		for (int j = 0; j < n; j++) {
+			if (eps && Math.random() < epsilon) {
+				actions[j] = rng.nextInt(numActions);
+				epsilon*=epsilonDecay;
+			}
+			else if (q != null) actions[j] = argmax(q, j*numActions, numActions);
+			else {
+				System.arraycopy(states, j*stateSize, row, 0, stateSize);
+				actions[j] = argmax(mlp.propagate(row));
+			}
+		}
+		Metrics.epsilon(epsilon);
+		Metrics.decision(t);
+	}
+
+	/**
+	 * Call when an episode starts, after environment.reset and before the first act()
+	 * @param environment
+	 */
+	public void startEpisode(Environment environment) {
+		setCurrents(environment);
+		setPrevious(environment);
+		notMovedCount = 0;
+		startActionRepeat();
+		actAction = -1;
+	}
+
+	/**
+	 * One frame of play with action repeat (see setActionRepeat), to call after every environment.tick().
+	 * While an action is held this only does the frame's bookkeeping and returns the same keys.
+	 * On decision frames it stores the transition since the last decision in 'memory', with the reward summed
+	 * over the frames it was held, and picks the next action.
+	 * @param environment
+	 * @param memory receives the transitions; may be null
+	 * @param eps true to use epsilon-greedy
+	 * @return the keys to perform (also what getAction() returns), or null once the level has finished
+	 */
+	public boolean[] act(Environment environment, ReplayMemory memory, boolean eps) {
+		if (!advanceFrame(environment)) return action;
+		if (actState == null) actState = new double[STATE_SIZE];
+		// a dense memory keeps the caller's array, so it gets a new one every decision
+		double[] s = memory != null && memory.isDense() ? new double[STATE_SIZE] : actState;
+		getState(environment, s);
+		double r = getRepeatedReward(environment);
+		boolean finished = environment.isLevelFinished();
+		if (memory != null) {
+			if (actAction < 0) memory.setFirstState(s);
+			else memory.addTransition(r, actAction, s, finished);
+		}
+		setPrevious(environment);
+		if (finished) {
+			actAction = -1;
+			return null;
+		}
+		actAction = getAction(s, eps);
+		action = actionCodec.keys(actAction);
+		return action;
+	}
+
+	/**
+	 * Copy of the current policy's weights, for actors on other threads
+	 */
+	public PolicySnapshot snapshot() {
+		return net != null ? net.snapshot() : PolicySnapshot.of(mlp);
+	}
+
+	public double getEpsilon() {
+		return epsilon;
+	}
+
+	public void setEpsilon(double epsilon) {
+		this.epsilon = epsilon;
+	}
+
+	public double getEpsilonDecay() {
+		return epsilonDecay;
+	}
+
+	/**
+	 * Factor epsilon is multiplied by after every random action (0.9999 by default)
+	 * @param epsilonDecay
+	 */
+	public void setEpsilonDecay(double epsilonDecay) {
+		this.epsilonDecay = epsilonDecay;
+	}
+
+	public double getGamma() {
+		return gamma;
+	}
+
+	public double getLearningRate() {
+		return net != null ? net.getLearningRate() : mlp.learningRate;
+	}
+
+	public void setLearningRate(double learningRate) {
+		if (net != null) net.setLearningRate(learningRate);
+		else mlp.learningRate = learningRate;
+	}
+
+	/**
+	 * Replaces the live weights (e.g. from a checkpoint), refreshes the target network if any, and publishes them
+	 * @param weights same topology as this agent's network
+	 */
+	public void setWeights(PolicySnapshot weights) {
+		if (net != null) net.copyFrom(weights);
+		else {
+			QNetwork copy = new QNetwork(mlp);
+			copy.copyFrom(weights);
+			copy.copyTo(mlp);
+		}
+		if (targetNet != null) refreshTargetNetwork();
+		else published = snapshot();
+	}
+
+	void setTrainSteps(long trainSteps) {
+		this.trainSteps = trainSteps;
+	}
+
+	Random getRandom() {
+		return rng;
+	}
+
+	void setRandom(Random rng) {
+		this.rng = rng;
+	}
 
 	/**
 	 * Builds state vector from the environment.
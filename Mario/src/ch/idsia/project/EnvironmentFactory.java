@@ -0,0 +1,14 @@
+package ch.idsia.project;
+
+import ch.idsia.benchmark.mario.environments.Environment;
+
+/**
+ * Supplies each actor thread with its own environment.
+ */
+public interface EnvironmentFactory {
+
+	/**
+	 * Creates the environment for actor 'id'. Called once, on that actor's thread.
+	 */
+	Environment create(int id);
+}
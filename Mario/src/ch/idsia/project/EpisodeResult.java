@@ -0,0 +1,78 @@
+package ch.idsia.project;
+
+/**
+ * Outcome of one evaluation episode (see Evaluator)
+ */
+public final class EpisodeResult {
+
+	private final int seed;
+	private final int levelType;
+	private final int difficulty;
+	private final int episode;
+	private final double fitness;
+	private final int distance;
+	private final int kills;
+	private final int status;
+	private final long frames;
+
+	public EpisodeResult(int seed, int levelType, int difficulty, int episode,
+			double fitness, int distance, int kills, int status, long frames) {
+		this.seed = seed;
+		this.levelType = levelType;
+		this.difficulty = difficulty;
+		this.episode = episode;
+		this.fitness = fitness;
+		this.distance = distance;
+		this.kills = kills;
+		this.status = status;
+		this.frames = frames;
+	}
+
+	public int getSeed() {
+		return seed;
+	}
+
+	public int getLevelType() {
+		return levelType;
+	}
+
+	public int getDifficulty() {
+		return difficulty;
+	}
+
+	/**
+	 * Index of this episode among those run on the same level
+	 */
+	public int getEpisode() {
+		return episode;
+	}
+
+	/**
+	 * EvaluationInfo.computeWeightedFitness under MarioCustomSystemOfValues
+	 */
+	public double getFitness() {
+		return fitness;
+	}
+
+	/**
+	 * Distance passed, in cells
+	 */
+	public int getDistance() {
+		return distance;
+	}
+
+	public int getKills() {
+		return kills;
+	}
+
+	/**
+	 * Mario's status at the end (win, dead or time out, as in Mario.STATUS_*)
+	 */
+	public int getStatus() {
+		return status;
+	}
+
+	public long getFrames() {
+		return frames;
+	}
+}
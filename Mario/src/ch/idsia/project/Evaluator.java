@@ -0,0 +1,323 @@
+package ch.idsia.project;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ch.idsia.benchmark.mario.environments.Environment;
+import ch.idsia.benchmark.tasks.MarioCustomSystemOfValues;
+import ch.idsia.evolution.MLP;
+import ch.idsia.tools.EvaluationInfo;
+import ch.idsia.tools.MarioAIOptions;
+
+/**
+ * Headless evaluation of a frozen policy over a grid of level seeds, level types and difficulties.
+ * Episodes run on a fixed pool of threads, each with its own environment from the EnvironmentFactory,
+ * so wall time shrinks with the number of cores. Results can be summarized into percentiles and written as CSV.
+ */
+public class Evaluator {
+
+	static final double[] PERCENTILES = {10, 25, 50, 75, 90};
+
+	private final EnvironmentFactory environmentFactory;
+	private final String[] args;
+	private final ExecutorService pool;
+	private final ThreadLocal<Player> players;
+
+	/**
+	 * @param environmentFactory e.g. IsolatedEnvironmentFactory, so threads don't share the engine
+	 * @param threads
+	 * @param args MarioAIOptions arguments for every episode; visualization is always turned off
+	 */
+	public Evaluator(EnvironmentFactory environmentFactory, int threads, String[] args) {
+		this.environmentFactory = environmentFactory;
+		this.args = args;
+		final AtomicInteger threadIds = new AtomicInteger();
+		pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "evaluator-" + threadIds.getAndIncrement());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		final AtomicInteger environmentIds = new AtomicInteger();
+		players = new ThreadLocal<Player>() {
+			@Override
+			protected Player initialValue() {
+				return new Player(Evaluator.this.environmentFactory.create(environmentIds.getAndIncrement()));
+			}
+		};
+	}
+
+	/**
+	 * Runs 'episodes' episodes on every combination of seed, level type and difficulty, and waits for all of them
+	 * @param policy e.g. agent.snapshot()
+	 * @param seeds
+	 * @param levelTypes
+	 * @param difficulties
+	 * @param episodes per level
+	 * @param epsilon chance of a random action each frame; with 0, repeated episodes of a level are identical.
+	 * The random actions are seeded from the level and episode, so the whole evaluation is reproducible.
+	 * @return one result per episode, in grid order
+	 */
+	public List<EpisodeResult> evaluate(PolicySnapshot policy, int[] seeds, int[] levelTypes, int[] difficulties,
+			int episodes, double epsilon) throws InterruptedException {
+		return evaluate(policy, null, seeds, levelTypes, difficulties, episodes, epsilon);
+	}
+
+	/**
+	 * Same as above, choosing actions with a float32 or int8 copy of the policy
+	 */
+	public List<EpisodeResult> evaluate(QuantizedPolicy policy, int[] seeds, int[] levelTypes, int[] difficulties,
+			int episodes, double epsilon) throws InterruptedException {
+		return evaluate(null, policy, seeds, levelTypes, difficulties, episodes, epsilon);
+	}
+
+	private List<EpisodeResult> evaluate(final PolicySnapshot policy, final QuantizedPolicy quantized, int[] seeds,
+			int[] levelTypes, int[] difficulties, int episodes, final double epsilon) throws InterruptedException {
+		List<Future<EpisodeResult>> futures = new ArrayList<Future<EpisodeResult>>();
+		for (final int seed : seeds) {
+			for (final int type : levelTypes) {
+				for (final int difficulty : difficulties) {
+					for (int e = 0; e < episodes; e++) {
+						final int episode = e;
+						futures.add(pool.submit(new Callable<EpisodeResult>() {
+							public EpisodeResult call() {
+								return players.get().play(policy, quantized, seed, type, difficulty, episode, epsilon);
+							}
+						}));
+					}
+				}
+			}
+		}
+		List<EpisodeResult> results = new ArrayList<EpisodeResult>(futures.size());
+		try {
+			for (Future<EpisodeResult> f : futures) results.add(f.get());
+		}
+		catch (ExecutionException e) {
+			for (Future<EpisodeResult> f : futures) f.cancel(true);
+			throw new IllegalStateException("evaluation episode failed", e.getCause());
+		}
+		return results;
+	}
+
+	public void shutdown() {
+		pool.shutdownNow();
+	}
+
+	/**
+	 * Writes the p10/p25/p50/p75/p90 of fitness, distance and kills for every (level type, difficulty)
+	 * and over all episodes, one row each
+	 * @param results
+	 * @param file
+	 * @throws IOException
+	 */
+	public static void writeSummaryCsv(List<EpisodeResult> results, File file) throws IOException {
+		Map<String, List<EpisodeResult>> groups = new LinkedHashMap<String, List<EpisodeResult>>();
+		for (EpisodeResult r : results) {
+			String key = r.getLevelType() + "," + r.getDifficulty();
+			List<EpisodeResult> group = groups.get(key);
+			if (group == null) {
+				group = new ArrayList<EpisodeResult>();
+				groups.put(key, group);
+			}
+			group.add(r);
+		}
+		groups.put("all,all", results);
+
+		PrintWriter out = new PrintWriter(new FileWriter(file));
+		try {
+			StringBuilder header = new StringBuilder("levelType,difficulty,episodes,winRate");
+			for (String metric : new String[] {"fitness", "distance", "kills"}) {
+				for (double p : PERCENTILES) header.append(',').append(metric).append("_p").append((int) p);
+			}
+			out.println(header);
+			for (Map.Entry<String, List<EpisodeResult>> g : groups.entrySet()) {
+				List<EpisodeResult> group = g.getValue();
+				int n = group.size();
+				double[] fitness = new double[n];
+				double[] distance = new double[n];
+				double[] kills = new double[n];
+				int wins = 0;
+				for (int i = 0; i < n; i++) {
+					EpisodeResult r = group.get(i);
+					fitness[i] = r.getFitness();
+					distance[i] = r.getDistance();
+					kills[i] = r.getKills();
+					if (r.getStatus() == Player.STATUS_WIN) wins++;
+				}
+				StringBuilder row = new StringBuilder(g.getKey()).append(',').append(n).append(',').append((double) wins / n);
+				for (double[] values : new double[][] {fitness, distance, kills}) {
+					Arrays.sort(values);
+					for (double p : PERCENTILES) row.append(',').append(percentile(values, p));
+				}
+				out.println(row);
+			}
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Writes one row per episode
+	 * @param results
+	 * @param file
+	 * @throws IOException
+	 */
+	public static void writeEpisodesCsv(List<EpisodeResult> results, File file) throws IOException {
+		PrintWriter out = new PrintWriter(new FileWriter(file));
+		try {
+			out.println("seed,levelType,difficulty,episode,fitness,distance,kills,status,frames");
+			for (EpisodeResult r : results) {
+				out.println(r.getSeed() + "," + r.getLevelType() + "," + r.getDifficulty() + "," + r.getEpisode() + ","
+						+ r.getFitness() + "," + r.getDistance() + "," + r.getKills() + "," + r.getStatus() + "," + r.getFrames());
+			}
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Seed of the epsilon-greedy random actions of one episode, so an evaluation is reproducible
+	 * whichever thread plays each episode
+	 */
+	static long episodeSeed(int seed, int levelType, int difficulty, int episode) {
+		return ((seed*1000003L + levelType)*1000003L + difficulty)*1000003L + episode;
+	}
+
+	/**
+	 * Linearly interpolated percentile p (0-100) of sorted values
+	 */
+	static double percentile(double[] sorted, double p) {
+		if (sorted.length == 0) return Double.NaN;
+		double rank = p / 100 * (sorted.length - 1);
+		int lo = (int) Math.floor(rank);
+		int hi = Math.min(lo + 1, sorted.length - 1);
+		return sorted[lo] + (rank - lo) * (sorted[hi] - sorted[lo]);
+	}
+
+	/**
+	 * Plays episodes on one thread's environment
+	 */
+	private class Player extends UtilAgent {
+
+		static final int STATUS_WIN = 1; // Mario.STATUS_WIN
+
+		private final Environment environment;
+		private final double[] state = new double[STATE_SIZE];
+		private final MarioCustomSystemOfValues values = new MarioCustomSystemOfValues();
+		private final Random rng = new Random(); // reseeded for every episode, see episodeSeed
+		private double[] hidden;
+		private double[] q;
+		private float[] hiddenFloat;
+		private float[] qFloat;
+
+		Player(Environment environment) {
+			super("Evaluator");
+			this.environment = environment;
+		}
+
+		/**
+		 * Plays one episode with 'policy', or with 'quantized' if it isn't null
+		 */
+		EpisodeResult play(PolicySnapshot policy, QuantizedPolicy quantized, int seed, int levelType, int difficulty,
+				int episode, double epsilon) {
+			int numHidden = quantized != null ? quantized.getNumHidden() : policy.getNumHidden();
+			int numOutputs = quantized != null ? quantized.getNumOutputs() : policy.getNumOutputs();
+			if (hidden == null || hidden.length != numHidden) {
+				hidden = new double[numHidden];
+				hiddenFloat = new float[numHidden];
+			}
+			ActionCodec codec = ActionCodec.forActions(numOutputs);
+			if (q == null || q.length != numOutputs) {
+				q = new double[numOutputs];
+				qFloat = new float[numOutputs];
+			}
+			MarioAIOptions options = new MarioAIOptions(args);
+			options.setVisualization(false);
+			options.setLevelRandSeed(seed);
+			options.setLevelType(levelType);
+			options.setLevelDifficulty(difficulty);
+
+			environment.reset(options);
+			setCurrents(environment);
+			setPrevious(environment);
+			notMovedCount = 0;
+			rng.setSeed(episodeSeed(seed, levelType, difficulty, episode));
+			long frames = 0;
+			while (!environment.isLevelFinished()) {
+				environment.tick();
+				frames++;
+				setCurrents(environment);
+				getState(environment, state);
+				setPrevious(environment);
+				if (environment.isLevelFinished()) break;
+				int a;
+				if (rng.nextDouble() < epsilon) a = rng.nextInt(q.length);
+				else if (quantized != null) a = quantized.greedyAction(state, hiddenFloat, qFloat);
+				else a = policy.greedyAction(state, hidden, q);
+				environment.performAction(codec.keys(a));
+			}
+			EvaluationInfo info = environment.getEvaluationInfo();
+			return new EpisodeResult(seed, levelType, difficulty, episode, info.computeWeightedFitness(values),
+					info.distancePassedCells, info.killsTotal, info.marioStatus, frames);
+		}
+
+		@Override
+		public void reset() {
+		}
+	}
+
+	/**
+	 * Evaluates the weights in a Checkpointer file (or a fresh network) and writes the summary and per-episode CSVs.
+	 * -Devaluator.precision=float32 or int8 evaluates a QuantizedPolicy of the weights instead.
+	 * Needs the MarioAI benchmark on the class path; extra arguments are passed to MarioAIOptions.
+	 *
+	 * Usage: Evaluator [checkpoint|-] [episodes per level] [threads] [output prefix] [MarioAIOptions args...]
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		String checkpoint = args.length > 0 ? args[0] : "-";
+		int episodes = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+		int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+		String prefix = args.length > 3 ? args[3] : "evaluation";
+		String[] marioArgs = new String[Math.max(0, args.length - 4)];
+		if (args.length > 4) System.arraycopy(args, 4, marioArgs, 0, marioArgs.length);
+
+		DQNAgent agent = new DQNAgent(new MLP(UtilAgent.STATE_SIZE, 64, 12), 0.9);
+		if (!checkpoint.equals("-")) Checkpointer.loadWeights(new File(checkpoint), agent);
+
+		int[] seeds = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9};
+		int[] levelTypes = {0, 1, 2};
+		int[] difficulties = {0, 1, 2, 5, 10};
+		Evaluator evaluator = new Evaluator(new IsolatedEnvironmentFactory(), threads, marioArgs);
+		long start = System.nanoTime();
+		String precision = System.getProperty("evaluator.precision");
+		List<EpisodeResult> results = precision == null
+				? evaluator.evaluate(agent.snapshot(), seeds, levelTypes, difficulties, episodes, 0)
+				: evaluator.evaluate(QuantizedPolicy.of(agent.snapshot(), QuantizedPolicy.Precision.valueOf(precision.toUpperCase())),
+						seeds, levelTypes, difficulties, episodes, 0);
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		evaluator.shutdown();
+
+		writeSummaryCsv(results, new File(prefix + "-summary.csv"));
+		writeEpisodesCsv(results, new File(prefix + "-episodes.csv"));
+		System.out.printf("%d episodes on %d threads in %.1f s%n", results.size(), threads, elapsed);
+		System.exit(0);
+	}
+}
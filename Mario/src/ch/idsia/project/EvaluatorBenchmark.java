@@ -0,0 +1,132 @@
+package ch.idsia.project;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+
+import ch.idsia.benchmark.mario.environments.Environment;
+import ch.idsia.evolution.MLP;
+import ch.idsia.tools.EvaluationInfo;
+
+/**
+ * Runs Evaluator over a fake game and checks the harness: one result per episode in grid order, and the same
+ * results with 1 thread and with every core even with epsilon > 0. Also prints the wall time of each.
+ * The fake plays back synthetic frames (see RecordedFrames); Mario advances one cell per frame with RIGHT held,
+ * and wins at WIN_DISTANCE or runs out of time at MAX_FRAMES, so the results depend on the actions taken.
+ *
+ * Usage: EvaluatorBenchmark [episodes per level] [epsilon]
+ */
+public final class EvaluatorBenchmark {
+
+	private static final int WIN_DISTANCE = 150;
+	private static final int MAX_FRAMES = 400;
+
+	public static void main(String[] args) throws InterruptedException {
+		int episodes = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+		double epsilon = args.length > 1 ? Double.parseDouble(args[1]) : 0.3;
+		final RecordedFrames recorded = RecordedFrames.synthetic(MAX_FRAMES, 42);
+		EnvironmentFactory factory = new EnvironmentFactory() {
+			public Environment create(int id) {
+				return fakeGame(recorded.asEnvironment());
+			}
+		};
+		PolicySnapshot policy = PolicySnapshot.of(new MLP(UtilAgent.STATE_SIZE, 64, 12));
+		int[] seeds = {0, 1, 2, 3};
+		int[] levelTypes = {0, 1, 2};
+		int[] difficulties = {0, 1};
+		int cores = Runtime.getRuntime().availableProcessors();
+		System.out.printf("%d levels x %d episodes, epsilon %.2f, %d cores%n",
+				seeds.length*levelTypes.length*difficulties.length, episodes, epsilon, cores);
+
+		List<EpisodeResult> reference = null;
+		for (int threads : new int[] {1, Math.max(2, cores)}) {
+			Evaluator evaluator = new Evaluator(factory, threads, new String[0]);
+			evaluator.evaluate(policy, seeds, levelTypes, difficulties, episodes, epsilon); // warm-up
+			long start = System.nanoTime();
+			List<EpisodeResult> results = evaluator.evaluate(policy, seeds, levelTypes, difficulties, episodes, epsilon);
+			double seconds = (System.nanoTime() - start) / 1e9;
+			evaluator.shutdown();
+			checkGrid(results, seeds, levelTypes, difficulties, episodes);
+			if (reference == null) reference = results;
+			else checkSame(reference, results);
+			System.out.printf("%2d threads: %6.3f s, %d episodes%n", threads, seconds, results.size());
+		}
+		int wins = 0;
+		int differing = 0;
+		for (int i = 0; i < reference.size(); i++) {
+			EpisodeResult r = reference.get(i);
+			if (r.getStatus() == 1) wins++;
+			if (r.getEpisode() > 0 && r.getDistance() != reference.get(i - 1).getDistance()) differing++;
+		}
+		System.out.printf("%d wins; %d repeated episodes differ from the one before; results identical across thread counts%n",
+				wins, differing);
+	}
+
+	private static void checkGrid(List<EpisodeResult> results, int[] seeds, int[] levelTypes, int[] difficulties, int episodes) {
+		if (results.size() != seeds.length*levelTypes.length*difficulties.length*episodes) {
+			throw new IllegalStateException(results.size() + " results");
+		}
+		int i = 0;
+		for (int seed : seeds) {
+			for (int type : levelTypes) {
+				for (int difficulty : difficulties) {
+					for (int e = 0; e < episodes; e++) {
+						EpisodeResult r = results.get(i++);
+						if (r.getSeed() != seed || r.getLevelType() != type || r.getDifficulty() != difficulty || r.getEpisode() != e) {
+							throw new IllegalStateException("result " + (i - 1) + " is out of grid order");
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private static void checkSame(List<EpisodeResult> a, List<EpisodeResult> b) {
+		for (int i = 0; i < a.size(); i++) {
+			EpisodeResult x = a.get(i);
+			EpisodeResult y = b.get(i);
+			if (x.getDistance() != y.getDistance() || x.getFrames() != y.getFrames() || x.getStatus() != y.getStatus()) {
+				throw new IllegalStateException("episode " + i + " differs between thread counts");
+			}
+		}
+	}
+
+	/**
+	 * 'frames' as a game that Mario wins by holding RIGHT for WIN_DISTANCE frames within MAX_FRAMES
+	 */
+	private static Environment fakeGame(final Environment frames) {
+		return (Environment) Proxy.newProxyInstance(Environment.class.getClassLoader(),
+				new Class<?>[] {Environment.class}, new InvocationHandler() {
+					private int frame;
+					private int distance;
+
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						String name = method.getName();
+						if (name.equals("reset")) {
+							frame = 0;
+							distance = 0;
+						}
+						else if (name.equals("tick")) frame++;
+						else if (name.equals("performAction")) {
+							if (((boolean[]) args[0])[1]) distance++; // key 1 is RIGHT
+							return null;
+						}
+						else if (name.equals("isLevelFinished")) return distance >= WIN_DISTANCE || frame >= MAX_FRAMES;
+						else if (name.equals("getEvaluationInfo")) {
+							EvaluationInfo info = new EvaluationInfo();
+							info.distancePassedCells = distance;
+							info.marioStatus = distance >= WIN_DISTANCE ? 1 : 0;
+							return info;
+						}
+						try {
+							return method.invoke(frames, args);
+						}
+						catch (InvocationTargetException e) {
+							throw e.getCause();
+						}
+					}
+				});
+	}
+}
@@ -0,0 +1,378 @@
+package ch.idsia.project;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ch.idsia.benchmark.mario.environments.Environment;
+import ch.idsia.benchmark.tasks.MarioCustomSystemOfValues;
+import ch.idsia.evolution.MLP;
+import ch.idsia.tools.EvaluationInfo;
+import ch.idsia.tools.MarioAIOptions;
+
+/**
+ * Trains many DQN configurations (gamma, hidden units, replay capacity, epsilon decay) at once, each an independent
+ * trial with its own agent and replay memory, on a work-stealing pool whose threads each have their own headless
+ * environment, as in Evaluator. Trials that fall behind are stopped early by successive halving: every trial
+ * plays minEpisodes episodes, the best 1/eta of them by rolling fitness go on to eta times as many, and so on
+ * up to maxEpisodes. Rungs are synchronous, so the last trials of a rung hold back the next one.
+ *
+ * Each trial trains like Testing does, without action repeat: one decision and one transition per frame,
+ * and an update every 'trainEvery' decisions once its memory holds a minibatch. Rolling fitness is the mean
+ * weighted fitness (MarioCustomSystemOfValues) of a trial's last ROLLING_WINDOW training episodes.
+ */
+public class HyperparameterSweep {
+
+	static final int ROLLING_WINDOW = 10;
+	static final int BATCH_SIZE = 32;
+
+	private final ForkJoinPool pool;
+	private final ThreadLocal<Environment> environments;
+	private final String[] args;
+	private int trainEvery = 1;
+
+	/**
+	 * One point of the search space
+	 */
+	public static final class Config {
+		final double gamma;
+		final int hidden;
+		final int capacity;
+		final double epsilonDecay;
+
+		public Config(double gamma, int hidden, int capacity, double epsilonDecay) {
+			this.gamma = gamma;
+			this.hidden = hidden;
+			this.capacity = capacity;
+			this.epsilonDecay = epsilonDecay;
+		}
+
+		/**
+		 * Every combination of the given values
+		 */
+		public static List<Config> grid(double[] gammas, int[] hiddens, int[] capacities, double[] epsilonDecays) {
+			List<Config> configs = new ArrayList<Config>();
+			for (double gamma : gammas) {
+				for (int hidden : hiddens) {
+					for (int capacity : capacities) {
+						for (double decay : epsilonDecays) configs.add(new Config(gamma, hidden, capacity, decay));
+					}
+				}
+			}
+			return configs;
+		}
+
+		/**
+		 * n configurations drawn at random: gamma uniformly in [gammaMin, gammaMax], hidden units and capacity
+		 * among the given values, and 1 - epsilonDecay log-uniformly in [1 - decayMax, 1 - decayMin]
+		 */
+		public static List<Config> random(int n, Random rng, double gammaMin, double gammaMax, int[] hiddens,
+				int[] capacities, double decayMin, double decayMax) {
+			List<Config> configs = new ArrayList<Config>();
+			double logMin = Math.log(1 - decayMax);
+			double logMax = Math.log(1 - decayMin);
+			for (int i = 0; i < n; i++) {
+				double gamma = gammaMin + rng.nextDouble()*(gammaMax - gammaMin);
+				double decay = 1 - Math.exp(logMin + rng.nextDouble()*(logMax - logMin));
+				configs.add(new Config(gamma, hiddens[rng.nextInt(hiddens.length)],
+						capacities[rng.nextInt(capacities.length)], decay));
+			}
+			return configs;
+		}
+
+		@Override
+		public String toString() {
+			return "gamma=" + gamma + " hidden=" + hidden + " capacity=" + capacity + " epsilonDecay=" + epsilonDecay;
+		}
+	}
+
+	/**
+	 * A configuration being trained, and how far it got
+	 */
+	public static final class Trial {
+		final Config config;
+		private final DQNAgent agent;
+		private final ReplayMemory memory;
+		private final MinibatchBuffer batch;
+		private final double[] recent = new double[ROLLING_WINDOW];
+		private int episodes;
+		private int rung;
+		private boolean stopped;
+		private double bestFitness = Double.NEGATIVE_INFINITY;
+		private long frames;
+		private long nanos;
+
+		Trial(Config config) {
+			this.config = config;
+			agent = new DQNAgent(new QNetwork(new MLP(UtilAgent.STATE_SIZE, config.hidden, 12)), config.gamma);
+			agent.setEpsilonDecay(config.epsilonDecay);
+			memory = new ReplayMemory(config.capacity, UtilAgent.STATE_SIZE, true);
+			batch = new MinibatchBuffer(BATCH_SIZE, UtilAgent.STATE_SIZE, true);
+		}
+
+		public Config getConfig() {
+			return config;
+		}
+
+		public DQNAgent getAgent() {
+			return agent;
+		}
+
+		public int getEpisodes() {
+			return episodes;
+		}
+
+		/**
+		 * The last rung this trial played
+		 */
+		public int getRung() {
+			return rung;
+		}
+
+		/**
+		 * True if successive halving stopped it before maxEpisodes
+		 */
+		public boolean isStopped() {
+			return stopped;
+		}
+
+		/**
+		 * Mean fitness of the last ROLLING_WINDOW episodes (fewer if it hasn't played that many)
+		 */
+		public double getRollingFitness() {
+			int n = Math.min(episodes, ROLLING_WINDOW);
+			if (n == 0) return Double.NEGATIVE_INFINITY;
+			double sum = 0;
+			for (int i = 0; i < n; i++) sum += recent[i];
+			return sum / n;
+		}
+
+		public double getBestFitness() {
+			return bestFitness;
+		}
+
+		public long getFrames() {
+			return frames;
+		}
+
+		/**
+		 * Time spent playing and training, on whichever threads
+		 */
+		public double getSeconds() {
+			return nanos / 1e9;
+		}
+
+		void addEpisode(double fitness, long episodeFrames) {
+			recent[episodes % ROLLING_WINDOW] = fitness;
+			bestFitness = Math.max(bestFitness, fitness);
+			frames += episodeFrames;
+			episodes++;
+		}
+	}
+
+	/**
+	 * @param environmentFactory e.g. IsolatedEnvironmentFactory, so threads don't share the engine
+	 * @param threads
+	 * @param args MarioAIOptions arguments for every episode; visualization is always turned off
+	 */
+	public HyperparameterSweep(final EnvironmentFactory environmentFactory, int threads, String[] args) {
+		this.args = args;
+		pool = new ForkJoinPool(threads);
+		final AtomicInteger environmentIds = new AtomicInteger();
+		environments = new ThreadLocal<Environment>() {
+			@Override
+			protected Environment initialValue() {
+				return environmentFactory.create(environmentIds.getAndIncrement());
+			}
+		};
+	}
+
+	/**
+	 * Decisions between updates (1 by default)
+	 * @param trainEvery
+	 */
+	public void setTrainEvery(int trainEvery) {
+		this.trainEvery = Math.max(1, trainEvery);
+	}
+
+	/**
+	 * Runs successive halving over 'configs' and waits for it
+	 * @param configs at least one
+	 * @param minEpisodes episodes of the first rung, at least 1
+	 * @param maxEpisodes episodes of the trials that are never stopped
+	 * @param eta 1/eta of the trials go on to the next rung, for eta times the episodes; at least 2
+	 * @return every trial, best first: by rung reached, then by rolling fitness
+	 */
+	public List<Trial> run(List<Config> configs, int minEpisodes, int maxEpisodes, int eta) throws InterruptedException {
+		if (configs.isEmpty()) throw new IllegalArgumentException("no configs to sweep");
+		if (minEpisodes < 1) throw new IllegalArgumentException("minEpisodes " + minEpisodes + " is not positive");
+		if (eta < 2) throw new IllegalArgumentException("eta " + eta + " is less than 2");
+		List<Trial> trials = new ArrayList<Trial>();
+		for (Config c : configs) trials.add(new Trial(c));
+		List<Trial> alive = new ArrayList<Trial>(trials);
+		int budget = Math.min(minEpisodes, maxEpisodes);
+		for (int rung = 0; ; rung++) {
+			runRung(alive, budget);
+			for (Trial t : alive) t.rung = rung;
+			if (budget >= maxEpisodes) break;
+			Collections.sort(alive, BY_FITNESS);
+			List<Trial> next = new ArrayList<Trial>(alive.subList(0, Math.max(1, alive.size() / eta)));
+			for (Trial t : alive.subList(next.size(), alive.size())) t.stopped = true;
+			alive = next;
+			budget = (int) Math.min((long) budget*eta, maxEpisodes);
+		}
+		Collections.sort(trials, new Comparator<Trial>() {
+			public int compare(Trial a, Trial b) {
+				if (a.rung != b.rung) return b.rung - a.rung;
+				return BY_FITNESS.compare(a, b);
+			}
+		});
+		return trials;
+	}
+
+	public void shutdown() {
+		pool.shutdownNow();
+	}
+
+	/**
+	 * Plays every trial of 'alive' up to 'episodes' episodes, all at once
+	 */
+	private void runRung(List<Trial> alive, final int episodes) throws InterruptedException {
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (final Trial t : alive) {
+			tasks.add(new Callable<Void>() {
+				public Void call() {
+					long start = System.nanoTime();
+					Environment environment = environments.get();
+					while (t.episodes < episodes) train(t, environment);
+					t.nanos += System.nanoTime() - start;
+					return null;
+				}
+			});
+		}
+		List<Future<Void>> futures = pool.invokeAll(tasks);
+		try {
+			for (Future<Void> f : futures) f.get();
+		}
+		catch (ExecutionException e) {
+			throw new IllegalStateException("sweep trial failed", e.getCause());
+		}
+	}
+
+	/**
+	 * Plays and trains one episode of trial 't', using the agent itself for the state and reward bookkeeping
+	 */
+	private void train(Trial t, Environment environment) {
+		DQNAgent agent = t.agent;
+		MarioAIOptions options = new MarioAIOptions(args);
+		options.setVisualization(false);
+		environment.reset(options);
+		agent.setCurrents(environment);
+		agent.setPrevious(environment);
+		agent.notMovedCount = 0;
+
+		double[] s = new double[UtilAgent.STATE_SIZE];
+		double[] sp = new double[UtilAgent.STATE_SIZE];
+		environment.tick();
+		long frames = 1;
+		agent.setCurrents(environment);
+		agent.getState(environment, s);
+		agent.setPrevious(environment);
+		t.memory.setFirstState(s);
+		while (!environment.isLevelFinished()) {
+			int a = agent.getAction(s, true);
+			environment.performAction(agent.getActionCodec().keys(a));
+			environment.tick();
+			frames++;
+			agent.setCurrents(environment);
+			agent.getState(environment, sp);
+			double r = agent.getReward(environment);
+			agent.setPrevious(environment);
+			t.memory.addTransition(r, a, sp, environment.isLevelFinished());
+			if (t.memory.getAdded() >= BATCH_SIZE && t.memory.getAdded() % trainEvery == 0) {
+				agent.train(t.memory, t.batch);
+			}
+			double[] swap = s;
+			s = sp;
+			sp = swap;
+		}
+		EvaluationInfo info = environment.getEvaluationInfo();
+		t.addEpisode(info.computeWeightedFitness(new MarioCustomSystemOfValues()), frames);
+	}
+
+	private static final Comparator<Trial> BY_FITNESS = new Comparator<Trial>() {
+		public int compare(Trial a, Trial b) {
+			return Double.compare(b.getRollingFitness(), a.getRollingFitness());
+		}
+	};
+
+	/**
+	 * Writes one row per trial, in the order given
+	 * @param trials
+	 * @param file
+	 * @throws IOException
+	 */
+	public static void writeCsv(List<Trial> trials, File file) throws IOException {
+		PrintWriter out = new PrintWriter(new FileWriter(file));
+		try {
+			out.println("gamma,hidden,capacity,epsilonDecay,episodes,rung,stopped,rollingFitness,bestFitness,frames,seconds");
+			for (Trial t : trials) {
+				Config c = t.config;
+				out.println(c.gamma + "," + c.hidden + "," + c.capacity + "," + c.epsilonDecay + "," + t.episodes + ","
+						+ t.rung + "," + t.stopped + "," + t.getRollingFitness() + "," + t.bestFitness + "," + t.frames
+						+ "," + t.getSeconds());
+			}
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Sweeps the values Testing hardcodes (gamma 0.9, 64 hidden units, capacity 10000, epsilon decay 0.9999)
+	 * and neighbours of them, and writes the results table.
+	 * Needs the MarioAI benchmark on the class path; extra arguments are passed to MarioAIOptions.
+	 *
+	 * Usage: HyperparameterSweep [grid|random:N] [min episodes] [max episodes] [eta] [threads] [output csv]
+	 *        [MarioAIOptions args...]
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		String search = args.length > 0 ? args[0] : "grid";
+		int minEpisodes = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		int maxEpisodes = args.length > 2 ? Integer.parseInt(args[2]) : 90;
+		int eta = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+		int threads = args.length > 4 ? Integer.parseInt(args[4]) : Runtime.getRuntime().availableProcessors();
+		String output = args.length > 5 ? args[5] : "sweep.csv";
+		String[] marioArgs = new String[Math.max(0, args.length - 6)];
+		if (args.length > 6) System.arraycopy(args, 6, marioArgs, 0, marioArgs.length);
+
+		int[] hiddens = {32, 64, 128};
+		int[] capacities = {10000, 50000};
+		List<Config> configs = search.startsWith("random:")
+				? Config.random(Integer.parseInt(search.substring(7)), new Random(), 0.8, 0.99, hiddens, capacities,
+						0.999, 0.99999)
+				: Config.grid(new double[] {0.9, 0.95, 0.99}, hiddens, capacities, new double[] {0.999, 0.9999, 0.99999});
+
+		HyperparameterSweep sweep = new HyperparameterSweep(new IsolatedEnvironmentFactory(), threads, marioArgs);
+		long start = System.nanoTime();
+		List<Trial> trials = sweep.run(configs, minEpisodes, maxEpisodes, eta);
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		sweep.shutdown();
+
+		writeCsv(trials, new File(output));
+		System.out.printf("%d trials on %d threads in %.1f s, best: %s (rolling fitness %.1f)%n", trials.size(),
+				threads, elapsed, trials.get(0).config, trials.get(0).getRollingFitness());
+		System.exit(0);
+	}
+}
@@ -0,0 +1,82 @@
+package ch.idsia.project;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+
+import ch.idsia.benchmark.mario.environments.Environment;
+import ch.idsia.tools.EvaluationInfo;
+
+/**
+ * Wall time of a small HyperparameterSweep with 1 thread and with every core, and the episodes successive halving
+ * saved against training every trial for the full budget. The environments play back synthetic frames in
+ * episodes of EPISODE_FRAMES, so the fitness carries no signal and which trials survive is arbitrary;
+ * this measures the scheduling and the training cost, not the search.
+ *
+ * Usage: HyperparameterSweepBenchmark [min episodes] [max episodes] [eta]
+ */
+public final class HyperparameterSweepBenchmark {
+
+	private static final int EPISODE_FRAMES = 200;
+
+	public static void main(String[] args) throws InterruptedException {
+		int minEpisodes = args.length > 0 ? Integer.parseInt(args[0]) : 2;
+		int maxEpisodes = args.length > 1 ? Integer.parseInt(args[1]) : 18;
+		int eta = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+		final RecordedFrames recorded = RecordedFrames.synthetic(5000, 42);
+		EnvironmentFactory factory = new EnvironmentFactory() {
+			public Environment create(int id) {
+				return episodes(recorded.asEnvironment());
+			}
+		};
+		List<HyperparameterSweep.Config> configs = HyperparameterSweep.Config.grid(new double[] {0.9, 0.99},
+				new int[] {32, 64, 128}, new int[] {10000}, new double[] {0.999, 0.9999, 0.99999});
+		int cores = Runtime.getRuntime().availableProcessors();
+		System.out.printf("%d trials, %d-%d episodes of %d frames, eta %d, %d cores%n", configs.size(), minEpisodes,
+				maxEpisodes, EPISODE_FRAMES, eta, cores);
+
+		for (int threads : cores > 1 ? new int[] {1, cores} : new int[] {1}) {
+			HyperparameterSweep sweep = new HyperparameterSweep(factory, threads, new String[0]);
+			long start = System.nanoTime();
+			List<HyperparameterSweep.Trial> trials = sweep.run(configs, minEpisodes, maxEpisodes, eta);
+			double seconds = (System.nanoTime() - start) / 1e9;
+			sweep.shutdown();
+			long episodes = 0;
+			long frames = 0;
+			int finished = 0;
+			for (HyperparameterSweep.Trial t : trials) {
+				episodes += t.getEpisodes();
+				frames += t.getFrames();
+				if (!t.isStopped()) finished++;
+			}
+			System.out.printf("%2d threads: %6.1f s, %d episodes (%d without halving), %d trials finished, %.0f frames/s%n",
+					threads, seconds, episodes, (long) configs.size()*maxEpisodes, finished, frames / seconds);
+		}
+	}
+
+	/**
+	 * 'frames' cut into episodes of EPISODE_FRAMES: the level finishes on the last one, and reset() starts another
+	 */
+	private static Environment episodes(final Environment frames) {
+		return (Environment) Proxy.newProxyInstance(Environment.class.getClassLoader(),
+				new Class<?>[] {Environment.class}, new InvocationHandler() {
+					private int frame;
+
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						String name = method.getName();
+						if (name.equals("reset")) frame = 0;
+						else if (name.equals("tick")) frame++;
+						else if (name.equals("isLevelFinished")) return frame >= EPISODE_FRAMES;
+						else if (name.equals("getEvaluationInfo")) return new EvaluationInfo();
+						try {
+							return method.invoke(frames, args);
+						}
+						catch (InvocationTargetException e) {
+							throw e.getCause();
+						}
+					}
+				});
+	}
+}
@@ -0,0 +1,104 @@
+package ch.idsia.project;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import ch.idsia.benchmark.mario.environments.Environment;
+import ch.idsia.evolution.MLP;
+
+/**
+ * Fills a packed ReplayMemory and an interned one (see StatePool) with the same stream of states, encoded by
+ * getState from recorded frames, and reports the dedup ratio, the bytes per transition of each and the cost of
+ * adding and sampling. The stream is twice the capacity, so reclaiming overwritten slots is exercised, and
+ * both memories are checked to hold the same states.
+ *
+ * Usage: InternedReplayBenchmark [-frames file | -random] [capacity]
+ * The capacity is capped at half the frames, so no frame is used twice.
+ * Frames recorded from real play (RecordedFrames main) give the real ratio. Without them the stream is
+ * RecordedFrames.syntheticPlay, which scrolls, stands still and restarts the level the way play does;
+ * -random uses RecordedFrames.synthetic instead, whose random scenes never repeat (the worst case for interning).
+ */
+public final class InternedReplayBenchmark {
+
+	private static final int SAMPLES = 200000;
+	private static final int DEFAULT_CAPACITY = 50000;
+
+	public static void main(String[] args) throws IOException {
+		boolean recorded = args.length > 1 && args[0].equals("-frames");
+		boolean random = args.length > 0 && args[0].equals("-random");
+		int skip = recorded ? 2 : random ? 1 : 0;
+		int capacity = args.length > skip ? Integer.parseInt(args[skip]) : DEFAULT_CAPACITY;
+		RecordedFrames frames = recorded ? RecordedFrames.read(new File(args[1]))
+				: random ? RecordedFrames.synthetic(2*capacity + 1, 42) : RecordedFrames.syntheticPlay(2*capacity + 1, 42);
+		// every frame is used once, so repeats are the recording's own and not from wrapping around
+		capacity = Math.min(capacity, (frames.size() - 1) / 2);
+		System.out.println((recorded ? "recorded" : random ? "random synthetic" : "synthetic play") + " frames: " + frames.size()
+				+ ", capacity " + capacity + ", stream of " + 2*capacity + " transitions");
+
+		// the stream: states of the frames played in order, kept packed
+		Environment environment = frames.asEnvironment();
+		DQNAgent encoder = new DQNAgent(new MLP(UtilAgent.STATE_SIZE, 64, 12), 0.9);
+		int words = StateBits.words(UtilAgent.STATE_SIZE);
+		long[] states = new long[(2*capacity + 1)*words];
+		double[] state = new double[UtilAgent.STATE_SIZE];
+		environment.reset(null);
+		for (int k = 0; k <= 2*capacity; k++) {
+			environment.tick();
+			encoder.setCurrents(environment);
+			encoder.getState(environment, state);
+			encoder.setPrevious(environment);
+			StateBits.pack(state, UtilAgent.STATE_SIZE, states, k*words);
+		}
+
+		ReplayMemory packed = new ReplayMemory(capacity, UtilAgent.STATE_SIZE, true);
+		StatePool pool = new StatePool(UtilAgent.STATE_SIZE);
+		ReplayMemory interned = new ReplayMemory(capacity, pool);
+		double packedNs = fill(packed, states, capacity);
+		double internedNs = fill(interned, states, capacity);
+
+		double[] a = new double[UtilAgent.STATE_SIZE];
+		double[] b = new double[UtilAgent.STATE_SIZE];
+		for (int i = 0; i <= capacity; i++) {
+			packed.getS(i, a, 0);
+			interned.getS(i, b, 0);
+			for (int k = 0; k < a.length; k++) {
+				if (a[k] != b[k]) throw new IllegalStateException("slot " + i + " differs");
+			}
+		}
+		if (pool.getReferences() != capacity + 1) throw new IllegalStateException(pool.getReferences() + " references held");
+
+		System.out.printf("distinct states held: %d of %d slots, dedup ratio %.2f%n", pool.size(), capacity + 1, pool.dedupRatio());
+		System.out.printf("%-10s %12s %14s %14s%n", "", "B/transition", "add ns", "sample/32 ns");
+		System.out.printf("%-10s %12d %14.0f %14.0f%n", "packed", packed.bytesPerTransition(), packedNs, sample(packed));
+		System.out.printf("%-10s %12d %14.0f %14.0f%n", "interned", interned.bytesPerTransition(), internedNs, sample(interned));
+	}
+
+	/**
+	 * Adds 2*capacity transitions of 'states'
+	 * @return ns per add over the second half, when every add also evicts
+	 */
+	private static double fill(ReplayMemory rm, long[] states, int capacity) {
+		Random rng = new Random(1);
+		int words = StateBits.words(UtilAgent.STATE_SIZE);
+		double[] s = new double[UtilAgent.STATE_SIZE];
+		StateBits.unpack(states, 0, UtilAgent.STATE_SIZE, s, 0);
+		rm.setFirstState(s);
+		long time = 0;
+		for (int k = 1; k <= 2*capacity; k++) {
+			StateBits.unpack(states, k*words, UtilAgent.STATE_SIZE, s, 0);
+			long start = System.nanoTime();
+			rm.addTransition(rng.nextDouble()*2 - 1, rng.nextInt(12), s, rng.nextInt(100) == 0);
+			if (k > capacity) time += System.nanoTime() - start;
+		}
+		return (double) time / capacity;
+	}
+
+	private static double sample(ReplayMemory rm) {
+		MinibatchBuffer batch = new MinibatchBuffer(32, UtilAgent.STATE_SIZE, true);
+		for (int i = 0; i < SAMPLES / 4; i++) rm.sampleMinibatch(batch);
+		long start = System.nanoTime();
+		for (int i = 0; i < SAMPLES; i++) rm.sampleMinibatch(batch);
+		return (double) (System.nanoTime() - start) / SAMPLES;
+	}
+}
@@ -0,0 +1,83 @@
+package ch.idsia.project;
+
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+
+import ch.idsia.benchmark.mario.environments.Environment;
+
+/**
+ * Creates independent Mario environments in one JVM.
+ * MarioEnvironment is a singleton and the engine keeps its state in static fields,
+ * so each environment is loaded from its own class loader: classes under ch.idsia.benchmark.mario
+ * (except the Environment interface) are loaded child-first, everything else is shared.
+ */
+public class IsolatedEnvironmentFactory implements EnvironmentFactory {
+
+	private static final String ENGINE_PACKAGE = "ch.idsia.benchmark.mario.";
+	private static final String ENVIRONMENT_CLASS = "ch.idsia.benchmark.mario.environments.MarioEnvironment";
+
+	private final URL[] classpath;
+
+	/**
+	 * Loads the engine from this JVM's class path
+	 */
+	public IsolatedEnvironmentFactory() {
+		this(systemClasspath());
+	}
+
+	public IsolatedEnvironmentFactory(URL[] classpath) {
+		this.classpath = classpath;
+	}
+
+	public Environment create(int id) {
+		ClassLoader loader = new EngineClassLoader(classpath, IsolatedEnvironmentFactory.class.getClassLoader());
+		try {
+			Class<?> c = Class.forName(ENVIRONMENT_CLASS, true, loader);
+			return (Environment) c.getMethod("getInstance").invoke(null);
+		}
+		catch (Exception e) {
+			throw new IllegalStateException("could not load an isolated MarioEnvironment for actor " + id, e);
+		}
+	}
+
+	private static URL[] systemClasspath() {
+		String[] entries = System.getProperty("java.class.path").split(File.pathSeparator);
+		URL[] urls = new URL[entries.length];
+		try {
+			for (int i = 0; i < entries.length; i++) {
+				urls[i] = new File(entries[i]).toURI().toURL();
+			}
+		}
+		catch (MalformedURLException e) {
+			throw new IllegalStateException(e);
+		}
+		return urls;
+	}
+
+	private static class EngineClassLoader extends URLClassLoader {
+
+		EngineClassLoader(URL[] urls, ClassLoader parent) {
+			super(urls, parent);
+		}
+
+		@Override
+		protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+			if (!name.startsWith(ENGINE_PACKAGE) || name.equals(Environment.class.getName())) {
+				return super.loadClass(name, resolve);
+			}
+			Class<?> c = findLoadedClass(name);
+			if (c == null) {
+				try {
+					c = findClass(name);
+				}
+				catch (ClassNotFoundException e) {
+					return super.loadClass(name, resolve);
+				}
+			}
+			if (resolve) resolveClass(c);
+			return c;
+		}
+	}
+}
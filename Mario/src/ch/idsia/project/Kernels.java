@@ -0,0 +1,71 @@
+package ch.idsia.project;
+
+/**
+ * The vector primitives QNetwork's forward and backward passes are made of.
+ * The default is plain loops over contiguous arrays, which HotSpot can auto-vectorize. If the class
+ * ch.idsia.project.VectorKernels (Mario/src-vector, written with the incubating JDK Vector API) is on the
+ * class path and the jdk.incubator.vector module is present, it is used instead.
+ * -Dqnetwork.kernels=scalar forces the plain loops.
+ */
+abstract class Kernels {
+
+	static final Kernels DEFAULT = load();
+
+	/**
+	 * y[yOff .. yOff+n) += a * x[xOff .. xOff+n)
+	 */
+	abstract void axpy(double a, double[] x, int xOff, double[] y, int yOff, int n);
+
+	/**
+	 * Sum of x[xOff+k] * y[yOff+k] for k < n
+	 */
+	abstract double dot(double[] x, int xOff, double[] y, int yOff, int n);
+
+	abstract String name();
+
+	private static Kernels load() {
+		if (!"scalar".equals(System.getProperty("qnetwork.kernels"))) {
+			Kernels vector = vector();
+			if (vector != null) return vector;
+		}
+		return new Scalar();
+	}
+
+	/**
+	 * The Vector API kernels, or null if they or the jdk.incubator.vector module are missing
+	 */
+	static Kernels vector() {
+		try {
+			Kernels k = (Kernels) Class.forName("ch.idsia.project.VectorKernels").getDeclaredConstructor().newInstance();
+			k.dot(new double[1], 0, new double[1], 0, 1); // fails here if the module isn't there
+			return k;
+		}
+		catch (Exception e) {
+			return null;
+		}
+		catch (LinkageError e) { // missing module, or a JVM older than the class
+			return null;
+		}
+	}
+
+	static final class Scalar extends Kernels {
+
+		void axpy(double a, double[] x, int xOff, double[] y, int yOff, int n) {
+			for (int k = 0; k < n; k++) {
+				y[yOff + k] += a * x[xOff + k];
+			}
+		}
+
+		double dot(double[] x, int xOff, double[] y, int yOff, int n) {
+			double sum = 0;
+			for (int k = 0; k < n; k++) {
+				sum += x[xOff + k] * y[yOff + k];
+			}
+			return sum;
+		}
+
+		String name() {
+			return "scalar";
+		}
+	}
+}
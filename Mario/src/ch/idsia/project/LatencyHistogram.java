@@ -0,0 +1,126 @@
+package ch.idsia.project;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size latency histogram in the style of HdrHistogram: values (nanoseconds) are counted in
+ * log-linear buckets, exact below 2*SUB_BUCKETS and within 1/SUB_BUCKETS (about 3%) above.
+ * Recording is one increment of an atomic counter, so any number of threads can record concurrently.
+ */
+public final class LatencyHistogram {
+
+	private static final int SUB_BITS = 5;
+	static final int SUB_BUCKETS = 1 << SUB_BITS;
+	static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	public void record(long nanos) {
+		counts.incrementAndGet(index(nanos));
+	}
+
+	/**
+	 * Copy of the counts so far
+	 */
+	public Snapshot snapshot() {
+		long[] c = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) c[i] = counts.get(i);
+		return new Snapshot(c);
+	}
+
+	static int index(long v) {
+		if (v < 0) v = 0;
+		int msb = 63 - Long.numberOfLeadingZeros(v);
+		if (msb < SUB_BITS) return (int) v; // small values are exact
+		int shift = msb - SUB_BITS; // keep the top SUB_BITS+1 bits
+		return (shift + 1)*SUB_BUCKETS + (int) (v >>> shift) - SUB_BUCKETS;
+	}
+
+	/**
+	 * Smallest value counted in bucket i
+	 */
+	static long lowestValue(int i) {
+		if (i < 2*SUB_BUCKETS) return i;
+		int shift = i / SUB_BUCKETS - 1;
+		return (long) (i % SUB_BUCKETS + SUB_BUCKETS) << shift;
+	}
+
+	/**
+	 * Smallest value counted in bucket i+1
+	 */
+	static long highestValue(int i) {
+		return i + 1 < BUCKETS ? lowestValue(i + 1) : Long.MAX_VALUE;
+	}
+
+	/**
+	 * Immutable counts of a histogram at one point in time, or of the difference between two such points
+	 */
+	public static final class Snapshot {
+
+		private final long[] counts;
+		private final long total;
+
+		Snapshot(long[] counts) {
+			this.counts = counts;
+			long t = 0;
+			for (long c : counts) t += c;
+			total = t;
+		}
+
+		/**
+		 * Counts recorded after 'earlier' was taken
+		 * @param earlier
+		 */
+		public Snapshot minus(Snapshot earlier) {
+			long[] c = new long[BUCKETS];
+			for (int i = 0; i < BUCKETS; i++) c[i] = counts[i] - earlier.counts[i];
+			return new Snapshot(c);
+		}
+
+		public long getCount() {
+			return total;
+		}
+
+		/**
+		 * Mean, taking every value as the middle of its bucket
+		 */
+		public double getMean() {
+			if (total == 0) return 0;
+			double sum = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				if (counts[i] != 0) sum += counts[i] * middle(i);
+			}
+			return sum / total;
+		}
+
+		/**
+		 * The value below which p percent of the recorded values fall, to bucket precision
+		 * @param p 0 to 100
+		 */
+		public double getPercentile(double p) {
+			if (total == 0) return 0;
+			long rank = Math.max(1, (long) Math.ceil(p / 100 * total));
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += counts[i];
+				if (seen >= rank) return middle(i);
+			}
+			return middle(BUCKETS - 1);
+		}
+
+		/**
+		 * Upper end of the highest non-empty bucket
+		 */
+		public double getMax() {
+			for (int i = BUCKETS - 1; i >= 0; i--) {
+				if (counts[i] != 0) return highestValue(i) - 1;
+			}
+			return 0;
+		}
+
+		private static double middle(int i) {
+			long lo = lowestValue(i);
+			return lo + (highestValue(i) - 1 - lo) / 2.0;
+		}
+	}
+}
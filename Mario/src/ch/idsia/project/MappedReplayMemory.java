@@ -0,0 +1,281 @@
+package ch.idsia.project;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The file behind ReplayMemory's mapped mode (see ReplayMemory(MappedReplayMemory)): packed states and
+ * transitions kept in a memory-mapped file instead of on the heap, so a memory can hold far more transitions
+ * than the heap would, and survive the JVM: reopening the file resumes where it left off.
+ * States must be binary, as produced by UtilAgent.getState, and actions 0..127.
+ * It stores slots; the ring, sampling and minibatches are ReplayMemory's, and one file backs one memory.
+ *
+ * File layout: a HEADER_BYTES header, then capacity+1 fixed-size records. Record i holds
+ * state slot i (packed as bits) followed by the reward, action and terminal flag of transition i;
+ * as in ReplayMemory, s' of transition i is state slot i+1. The file is mapped in segments of at most 1GB.
+ */
+public class MappedReplayMemory {
+
+	private static final int MAGIC = 0x4d52504d; // "MRPM"
+	private static final int VERSION = 2;
+	static final int HEADER_BYTES = 64;
+	// header fields
+	private static final int H_MAGIC = 0;
+	private static final int H_VERSION = 4;
+	private static final int H_STATE_SIZE = 8;
+	private static final int H_CAPACITY = 12;
+	private static final int H_RECORD_BYTES = 16;
+	private static final int H_COUNTER = 20;
+	private static final int H_FULL = 24;
+	private static final int H_ADDED = 32;
+
+	private static final int MAX_SEGMENT_BYTES = 1 << 30;
+
+	private final int capacity;
+	private final int stateSize;
+	private final int words;
+	private final int recordBytes;
+	// offsets within a record
+	private final int rewardOffset;
+	private final int actionOffset;
+	private final int terminalOffset;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final MappedByteBuffer header;
+	private final MappedByteBuffer[] segments;
+	private final int segmentShift; // records per segment = 1 << segmentShift
+	private final int segmentMask;
+
+	/**
+	 * Opens 'path' if it holds a replay memory (which must have this capacity and state size), or creates it
+	 * @param path
+	 * @param N capacity in transitions
+	 * @param stateSize length of the state vectors
+	 * @throws IOException
+	 */
+	public MappedReplayMemory(File path, int N, int stateSize) throws IOException {
+		capacity = N;
+		this.stateSize = stateSize;
+		words = StateBits.words(stateSize);
+		rewardOffset = 8*words;
+		actionOffset = rewardOffset + 8;
+		terminalOffset = actionOffset + 1;
+		recordBytes = (terminalOffset + 1 + 7) & ~7; // keep records 8-byte aligned
+
+		boolean existing = path.exists() && path.length() > 0;
+		file = new RandomAccessFile(path, "rw");
+		channel = file.getChannel();
+		header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+		header.order(ByteOrder.LITTLE_ENDIAN);
+		if (existing) {
+			if (header.getInt(H_MAGIC) != MAGIC || header.getInt(H_VERSION) != VERSION) {
+				close();
+				throw new IOException(path + " is not a replay memory file");
+			}
+			if (header.getInt(H_STATE_SIZE) != stateSize || header.getInt(H_CAPACITY) != capacity
+					|| header.getInt(H_RECORD_BYTES) != recordBytes) {
+				close();
+				throw new IllegalArgumentException(path + " holds " + header.getInt(H_CAPACITY) + " transitions of "
+						+ header.getInt(H_STATE_SIZE) + " features, not " + capacity + " of " + stateSize);
+			}
+		}
+		else {
+			header.putInt(H_MAGIC, MAGIC);
+			header.putInt(H_VERSION, VERSION);
+			header.putInt(H_STATE_SIZE, stateSize);
+			header.putInt(H_CAPACITY, capacity);
+			header.putInt(H_RECORD_BYTES, recordBytes);
+			setCursor(0, false, 0);
+		}
+
+		int shift = 0;
+		while ((long) recordBytes << (shift + 1) <= MAX_SEGMENT_BYTES) shift++;
+		segmentShift = shift;
+		segmentMask = (1 << shift) - 1;
+		long records = capacity + 1L;
+		segments = new MappedByteBuffer[(int) ((records + segmentMask) >>> shift)];
+		for (int k = 0; k < segments.length; k++) {
+			long first = (long) k << shift;
+			long length = Math.min(records - first, 1L << shift) * recordBytes;
+			segments[k] = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_BYTES + first*recordBytes, length);
+			segments[k].order(ByteOrder.LITTLE_ENDIAN);
+		}
+	}
+
+	/**
+	 * Reopens an existing file, taking the capacity and state size from its header
+	 * @param path
+	 * @return
+	 * @throws IOException
+	 */
+	public static MappedReplayMemory open(File path) throws IOException {
+		RandomAccessFile f = new RandomAccessFile(path, "r");
+		int N;
+		int stateSize;
+		try {
+			if (f.length() < HEADER_BYTES) throw new IOException(path + " is not a replay memory file");
+			byte[] h = new byte[HEADER_BYTES];
+			f.readFully(h);
+			ByteBuffer b = ByteBuffer.wrap(h).order(ByteOrder.LITTLE_ENDIAN);
+			if (b.getInt(H_MAGIC) != MAGIC) throw new IOException(path + " is not a replay memory file");
+			N = b.getInt(H_CAPACITY);
+			stateSize = b.getInt(H_STATE_SIZE);
+		}
+		finally {
+			f.close();
+		}
+		return new MappedReplayMemory(path, N, stateSize);
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public int getStateSize() {
+		return stateSize;
+	}
+
+	/**
+	 * Bytes of file per stored transition
+	 */
+	public long bytesPerTransition() {
+		return recordBytes;
+	}
+
+	/**
+	 * Writes dirty pages back to the file. The OS does this on its own too, but only forcing guarantees
+	 * that everything added so far survives a machine crash.
+	 */
+	public void force() {
+		for (MappedByteBuffer seg : segments) seg.force();
+		header.force();
+	}
+
+	/**
+	 * Closes the file. The mappings themselves are only released once garbage collected,
+	 * so the memory it backs must not be used afterwards.
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		channel.close();
+		file.close();
+	}
+
+	/**
+	 * The ring cursor as last saved by setCursor
+	 */
+	int getCount() {
+		return header.getInt(H_COUNTER);
+	}
+
+	boolean isFull() {
+		return header.get(H_FULL) != 0;
+	}
+
+	long getAdded() {
+		return header.getLong(H_ADDED);
+	}
+
+	/**
+	 * Saves the ring cursor; ReplayMemory calls this after writing a transition's records,
+	 * so a crash in between just loses that transition
+	 */
+	void setCursor(int counter, boolean full, long added) {
+		header.putInt(H_COUNTER, counter);
+		header.put(H_FULL, (byte) (full ? 1 : 0));
+		header.putLong(H_ADDED, added);
+	}
+
+	/**
+	 * Writes state s as bits into state slot 'slot'
+	 */
+	void setState(int slot, double[] s) {
+		StateBits.pack(s, stateSize, segment(slot), offset(slot));
+	}
+
+	/**
+	 * Overwrites state slot 'slot' with the packed state at src[offset]
+	 */
+	void setState(int slot, long[] src, int offset) {
+		MappedByteBuffer seg = segment(slot);
+		int off = offset(slot);
+		for (int w = 0; w < words; w++) seg.putLong(off + 8*w, src[offset + w]);
+	}
+
+	/**
+	 * Copies state slot 'slot', packed as bits, into 'out' from 'offset'
+	 */
+	void getPacked(int slot, long[] out, int offset) {
+		MappedByteBuffer seg = segment(slot);
+		int off = offset(slot);
+		for (int w = 0; w < words; w++) out[offset + w] = seg.getLong(off + 8*w);
+	}
+
+	/**
+	 * Copies state slot 'from' over state slot 'to'
+	 */
+	void copyState(int from, int to) {
+		MappedByteBuffer src = segment(from);
+		MappedByteBuffer dst = segment(to);
+		int fromOff = offset(from);
+		int toOff = offset(to);
+		for (int w = 0; w < words; w++) dst.putLong(toOff + 8*w, src.getLong(fromOff + 8*w));
+	}
+
+	/**
+	 * Expands state slot 'slot' into 'out' as 0/1 doubles starting at 'offset'
+	 */
+	void getS(int slot, double[] out, int offset) {
+		StateBits.unpack(segment(slot), offset(slot), stateSize, out, offset);
+	}
+
+	/**
+	 * Writes the indices of the non-zero features of state slot 'slot' into 'out' from 'offset'
+	 * @return how many were written
+	 */
+	int getActive(int slot, int[] out, int offset) {
+		return StateBits.active(segment(slot), offset(slot), words, out, offset);
+	}
+
+	/**
+	 * Overwrites the reward, action and terminal flag of transition i
+	 * @throws IllegalArgumentException if 'a' isn't 0..127, the range of the action byte
+	 */
+	void setTransition(int i, double r, int a, boolean t) {
+		if (a < 0 || a > Byte.MAX_VALUE) throw new IllegalArgumentException("action " + a + " is not in 0.." + Byte.MAX_VALUE);
+		MappedByteBuffer seg = segment(i);
+		int off = offset(i);
+		seg.putDouble(off + rewardOffset, r);
+		seg.put(off + actionOffset, (byte) a);
+		seg.put(off + terminalOffset, (byte) (t ? 1 : 0));
+	}
+
+	double getR(int i) {
+		return segment(i).getDouble(offset(i) + rewardOffset);
+	}
+
+	int getA(int i) {
+		return segment(i).get(offset(i) + actionOffset);
+	}
+
+	boolean getT(int i) {
+		return segment(i).get(offset(i) + terminalOffset) != 0;
+	}
+
+	private MappedByteBuffer segment(int slot) {
+		return segments[slot >>> segmentShift];
+	}
+
+	/**
+	 * Byte offset of record 'slot' within its segment
+	 */
+	private int offset(int slot) {
+		return (slot & segmentMask) * recordBytes;
+	}
+}
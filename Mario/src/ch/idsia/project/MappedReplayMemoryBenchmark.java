@@ -0,0 +1,116 @@
+package ch.idsia.project;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import ch.idsia.evolution.MLP;
+
+/**
+ * Random-sample latency of a packed ReplayMemory on the heap against one in mapped mode (see MappedReplayMemory),
+ * at 1M and 10M transitions. A sample is one uniformly drawn transition with s and s' copied out; a batch is
+ * a whole sampleMinibatch; a train step is DQNAgent.train(memory, batch) on a sparse batch.
+ * The mapped file is written to the given directory (the system temp directory by default) and deleted afterwards;
+ * as long as it fits in the page cache, its latency is that of warm pages.
+ *
+ * Usage: MappedReplayMemoryBenchmark [directory] [capacity...]
+ */
+public final class MappedReplayMemoryBenchmark {
+
+	private static final int STATE_SIZE = BenchmarkUtil.STATE_SIZE;
+	private static final int SAMPLES = 2000000;
+	private static final int BATCHES = 20000;
+	private static final int TRAIN_STEPS = 2000;
+	private static final int BATCH_SIZE = 32;
+	private static final int DISTINCT_STATES = 4096; // cycled through while filling, to keep filling fast
+
+	public static void main(String[] args) throws IOException {
+		File dir = new File(args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir"));
+		int[] capacities = {1000000, 10000000};
+		if (args.length > 1) {
+			capacities = new int[args.length - 1];
+			for (int i = 1; i < args.length; i++) capacities[i-1] = Integer.parseInt(args[i]);
+		}
+
+		Random rng = new Random(42);
+		double[][] pool = new double[DISTINCT_STATES][];
+		for (int i = 0; i < pool.length; i++) pool[i] = BenchmarkUtil.randomState(rng);
+
+		for (int capacity : capacities) {
+			try {
+				ReplayMemory heap = new ReplayMemory(capacity, STATE_SIZE, true);
+				fill(heap, capacity, pool, rng);
+				report("heap", capacity, heap);
+				heap = null;
+			}
+			catch (OutOfMemoryError e) {
+				System.out.printf("%-6s %,11d: out of heap (try a larger -Xmx)%n", "heap", capacity);
+			}
+			System.gc();
+
+			File file = new File(dir, "replay-benchmark-" + capacity + ".bin");
+			file.delete();
+			MappedReplayMemory mapped = new MappedReplayMemory(file, capacity, STATE_SIZE);
+			try {
+				ReplayMemory memory = new ReplayMemory(mapped);
+				fill(memory, capacity, pool, rng);
+				report("mapped", capacity, memory);
+			}
+			finally {
+				mapped.close();
+				file.delete();
+			}
+		}
+	}
+
+	private static void fill(ReplayMemory memory, int capacity, double[][] pool, Random rng) {
+		memory.setFirstState(pool[0]);
+		for (int i = 0; i < capacity; i++) {
+			double[] sp = pool[rng.nextInt(pool.length)];
+			double r = rng.nextDouble()*2 - 1;
+			int a = rng.nextInt(12);
+			boolean t = rng.nextInt(100) == 0;
+			memory.addTransition(r, a, sp, t);
+		}
+	}
+
+	private static void report(String name, int capacity, ReplayMemory memory) {
+		double[] s = new double[STATE_SIZE];
+		double[] sp = new double[STATE_SIZE];
+		MinibatchBuffer batch = new MinibatchBuffer(BATCH_SIZE, STATE_SIZE);
+		MinibatchBuffer sparse = new MinibatchBuffer(BATCH_SIZE, STATE_SIZE, true);
+		DQNAgent agent = new DQNAgent(new QNetwork(new MLP(STATE_SIZE, 64, 12)), 0.9);
+		int[] idx = new int[1];
+
+		// warm up (JIT, and for the mapped file, page faults), then time
+		double sink = 0;
+		for (int pass = 0; pass < 2; pass++) {
+			long start = System.nanoTime();
+			for (int k = 0; k < SAMPLES; k++) {
+				memory.sampleMinibatchIdx(idx, 1);
+				memory.getS(idx[0], s, 0);
+				memory.getSPrime(idx[0], sp, 0);
+				sink += memory.getR(idx[0]);
+			}
+			double perSample = (System.nanoTime() - start) / (double) SAMPLES;
+
+			start = System.nanoTime();
+			for (int k = 0; k < BATCHES; k++) {
+				memory.sampleMinibatch(batch);
+				sink += batch.getRewards()[0];
+			}
+			double perBatch = (System.nanoTime() - start) / 1e3 / BATCHES;
+
+			start = System.nanoTime();
+			for (int k = 0; k < TRAIN_STEPS; k++) {
+				agent.train(memory, sparse);
+			}
+			double perTrain = (System.nanoTime() - start) / 1e3 / TRAIN_STEPS;
+
+			if (pass == 1) {
+				System.out.printf("%-6s %,11d: %7.1f ns/sample  %7.2f us/batch of %d  %7.2f us/train step%s%n", name,
+						capacity, perSample, perBatch, BATCH_SIZE, perTrain, sink == 42 ? " " : "");
+			}
+		}
+	}
+}
@@ -0,0 +1,263 @@
+package ch.idsia.project;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Process-wide instrumentation of the training loop: a latency histogram per stage of a step, counters of
+ * environment steps, decisions and gradient updates, and the latest replay fill level, epsilon and TD loss.
+ * Off by default. Instrumented code brackets a stage with
+ *
+ *   long t = Metrics.start();
+ *   ...
+ *   Metrics.stop(Metrics.Stage.X, t);
+ *
+ * which, when disabled, costs a read of a static flag and a comparison.
+ * Read it through snapshot(), a periodic listener (startReporting) or JMX (registerMBean).
+ */
+public final class Metrics {
+
+	/**
+	 * The stages of a step
+	 */
+	public enum Stage {
+		ENV_TICK, GET_STATE, GET_ACTION, ADD_TRANSITION, SAMPLE, TRAIN
+	}
+
+	/**
+	 * Receives periodic snapshots (see startReporting)
+	 */
+	public interface Listener {
+		/**
+		 * @param total everything since the process started
+		 * @param interval what happened since the previous call
+		 */
+		void onSnapshot(MetricsSnapshot total, MetricsSnapshot interval);
+	}
+
+	// volatile so setEnabled reaches threads already in a hot loop; on x86 the read is still a plain load
+	private static volatile boolean enabled;
+
+	private static final LatencyHistogram[] stages = new LatencyHistogram[Stage.values().length];
+	static {
+		for (int i = 0; i < stages.length; i++) stages[i] = new LatencyHistogram();
+	}
+	private static final AtomicLong envSteps = new AtomicLong();
+	private static final AtomicLong decisions = new AtomicLong();
+	private static final AtomicLong updates = new AtomicLong();
+	private static volatile long replaySize;
+	private static volatile long replayCapacity;
+	private static volatile double epsilon = Double.NaN;
+	// squared TD errors, summed over all samples of all updates
+	private static double tdLossSum;
+	private static long tdLossCount;
+
+	private static ScheduledExecutorService reporter;
+
+	private Metrics() {
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	public static void setEnabled(boolean on) {
+		enabled = on;
+	}
+
+	/**
+	 * Start time of a stage, or 0 when disabled
+	 */
+	public static long start() {
+		return enabled ? System.nanoTime() : 0;
+	}
+
+	/**
+	 * Records the time since 'start' (from start()) against 'stage'; does nothing if start was 0
+	 */
+	public static void stop(Stage stage, long start) {
+		if (start != 0) stages[stage.ordinal()].record(System.nanoTime() - start);
+	}
+
+	/**
+	 * For loops that tick an environment themselves: records the tick since 'start' and counts the step
+	 */
+	public static void envTick(long start) {
+		if (start != 0) {
+			stages[Stage.ENV_TICK.ordinal()].record(System.nanoTime() - start);
+			envSteps.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Records the time of a decision since 'start' and counts it
+	 */
+	public static void decision(long start) {
+		if (start != 0) {
+			stages[Stage.GET_ACTION.ordinal()].record(System.nanoTime() - start);
+			decisions.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Records the time of a training step since 'start' and counts it
+	 */
+	public static void update(long start) {
+		if (start != 0) {
+			stages[Stage.TRAIN.ordinal()].record(System.nanoTime() - start);
+			updates.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Adds the TD errors of one update to the running loss
+	 * @param tdErrors
+	 * @param n
+	 */
+	public static void tdErrors(double[] tdErrors, int n) {
+		if (!enabled) return;
+		double sum = 0;
+		for (int i = 0; i < n; i++) sum += tdErrors[i]*tdErrors[i];
+		addLoss(sum, n);
+	}
+
+	static synchronized void addLoss(double sumOfSquares, int n) {
+		tdLossSum += sumOfSquares;
+		tdLossCount += n;
+	}
+
+	public static void replayFill(long size, long capacity) {
+		if (!enabled) return;
+		replaySize = size;
+		replayCapacity = capacity;
+	}
+
+	public static void epsilon(double value) {
+		if (enabled) epsilon = value;
+	}
+
+	/**
+	 * Everything recorded so far; subtract an earlier snapshot (MetricsSnapshot.since) for rates over an interval
+	 */
+	public static MetricsSnapshot snapshot() {
+		LatencyHistogram.Snapshot[] s = new LatencyHistogram.Snapshot[stages.length];
+		for (int i = 0; i < stages.length; i++) s[i] = stages[i].snapshot();
+		double lossSum;
+		long lossCount;
+		synchronized (Metrics.class) {
+			lossSum = tdLossSum;
+			lossCount = tdLossCount;
+		}
+		return new MetricsSnapshot(System.nanoTime(), s, envSteps.get(), decisions.get(), updates.get(),
+				replaySize, replayCapacity, epsilon, lossSum, lossCount);
+	}
+
+	/**
+	 * Calls 'listener' every 'periodMillis' on a daemon thread, replacing any earlier listener
+	 * @param periodMillis
+	 * @param listener
+	 */
+	public static synchronized void startReporting(long periodMillis, final Listener listener) {
+		stopReporting();
+		reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "metrics-reporter");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		final MetricsSnapshot[] previous = {snapshot()};
+		reporter.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				MetricsSnapshot now = snapshot();
+				listener.onSnapshot(now, now.since(previous[0]));
+				previous[0] = now;
+			}
+		}, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+	}
+
+	public static synchronized void stopReporting() {
+		if (reporter != null) reporter.shutdownNow();
+		reporter = null;
+	}
+
+	/**
+	 * Registers the MetricsMXBean as ch.idsia.project:type=Metrics with the platform MBean server
+	 */
+	public static void registerMBean() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName("ch.idsia.project:type=Metrics");
+			if (!server.isRegistered(name)) server.registerMBean(new Bean(), name);
+		}
+		catch (JMException e) {
+			throw new IllegalStateException("could not register the metrics MBean", e);
+		}
+	}
+
+	private static class Bean implements MetricsMXBean {
+
+		public boolean isEnabled() {
+			return Metrics.isEnabled();
+		}
+
+		public void setEnabled(boolean on) {
+			Metrics.setEnabled(on);
+		}
+
+		public long getEnvSteps() {
+			return envSteps.get();
+		}
+
+		public long getDecisions() {
+			return decisions.get();
+		}
+
+		public long getGradientUpdates() {
+			return updates.get();
+		}
+
+		public double getReplayFill() {
+			return replayCapacity == 0 ? 0 : (double) replaySize / replayCapacity;
+		}
+
+		public double getEpsilon() {
+			return epsilon;
+		}
+
+		public double getMeanTdLoss() {
+			return snapshot().getMeanTdLoss();
+		}
+
+		public Map<String, Double> getMeanMicros() {
+			return perStage(-1);
+		}
+
+		public Map<String, Double> getP50Micros() {
+			return perStage(50);
+		}
+
+		public Map<String, Double> getP99Micros() {
+			return perStage(99);
+		}
+
+		private Map<String, Double> perStage(double p) {
+			Map<String, Double> m = new LinkedHashMap<String, Double>();
+			for (Stage s : Stage.values()) {
+				LatencyHistogram.Snapshot h = stages[s.ordinal()].snapshot();
+				m.put(s.name(), (p < 0 ? h.getMean() : h.getPercentile(p)) / 1e3);
+			}
+			return m;
+		}
+	}
+}
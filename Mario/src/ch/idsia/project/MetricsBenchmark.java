@@ -0,0 +1,90 @@
+package ch.idsia.project;
+
+import ch.idsia.benchmark.mario.environments.Environment;
+import ch.idsia.evolution.MLP;
+
+/**
+ * Cost of Metrics on a training loop over recorded frames (synthetic unless a file is given):
+ * time per step with instrumentation disabled and enabled, in alternating rounds, and the cost of
+ * one disabled start/stop pair, from which the disabled overhead per step is estimated.
+ * Ends with the snapshot of the enabled rounds.
+ *
+ * Usage: MetricsBenchmark [frames file]
+ */
+public final class MetricsBenchmark {
+
+	private static final int STEPS = 20000;
+	private static final int ROUNDS = 6;
+	private static final int TRAIN_EVERY = 4;
+	// Metrics.start() calls in one step of the loop below, counting the training step's share
+	private static final double BRACKETS_PER_STEP = 4 + 2.0/TRAIN_EVERY;
+
+	public static void main(String[] args) throws Exception {
+		RecordedFrames frames = args.length > 0 ? RecordedFrames.read(new java.io.File(args[0])) : RecordedFrames.synthetic(5000, 42);
+		Environment environment = frames.asEnvironment();
+		DQNAgent agent = new DQNAgent(new QNetwork(new MLP(UtilAgent.STATE_SIZE, 64, 12)), 0.9);
+		ReplayMemory memory = new ReplayMemory(100000, UtilAgent.STATE_SIZE, true);
+		MinibatchBuffer batch = new MinibatchBuffer(32, UtilAgent.STATE_SIZE, true);
+		double[] s = new double[UtilAgent.STATE_SIZE];
+		agent.setCurrents(environment);
+		agent.getState(environment, s);
+		memory.setFirstState(s);
+		for (int k = 0; k < 1000; k++) step(environment, agent, memory, batch, s, k);
+
+		double disabled = 0;
+		double enabled = 0;
+		MetricsSnapshot before = null;
+		MetricsSnapshot enabledTotal = null;
+		for (int r = 0; r < ROUNDS; r++) {
+			boolean on = (r & 1) == 1;
+			Metrics.setEnabled(on);
+			if (on) before = Metrics.snapshot();
+			long t = System.nanoTime();
+			for (int k = 0; k < STEPS; k++) step(environment, agent, memory, batch, s, k);
+			double perStep = (System.nanoTime() - t) / (double) STEPS;
+			if (on) {
+				MetricsSnapshot interval = Metrics.snapshot().since(before);
+				enabledTotal = interval;
+			}
+			if (r >= 2) { // the first pair is warm-up
+				if (on) enabled += perStep;
+				else disabled += perStep;
+			}
+		}
+		int measured = (ROUNDS - 2) / 2;
+		disabled /= measured;
+		enabled /= measured;
+		Metrics.setEnabled(false);
+
+		long sink = 0;
+		for (int pass = 0; pass < 2; pass++) {
+			long t = System.nanoTime();
+			for (int k = 0; k < 100000000; k++) {
+				long start = Metrics.start();
+				sink += start;
+				Metrics.stop(Metrics.Stage.GET_STATE, start);
+			}
+			double pair = (System.nanoTime() - t) / 1e8;
+			if (pass == 1) {
+				System.out.printf("step: %.1f us disabled, %.1f us enabled (%+.1f%%)%n", disabled/1e3, enabled/1e3,
+						100*(enabled - disabled)/disabled);
+				System.out.printf("disabled start/stop pair: %.2f ns, ~%.1f per step = %.4f%% of a step%s%n", pair,
+						BRACKETS_PER_STEP, 100*pair*BRACKETS_PER_STEP/disabled, sink == 42 ? " " : "");
+			}
+		}
+		System.out.println("\nlast enabled round:\n" + enabledTotal);
+	}
+
+	private static void step(Environment environment, DQNAgent agent, ReplayMemory memory, MinibatchBuffer batch,
+			double[] s, int k) {
+		long t = Metrics.start();
+		environment.tick();
+		Metrics.envTick(t);
+		agent.setCurrents(environment);
+		agent.getState(environment, s);
+		memory.addTransition(agent.getReward(environment), k % 12, s, false);
+		agent.setPrevious(environment);
+		agent.getAction(s, true);
+		if (k % TRAIN_EVERY == 0) agent.train(memory, batch);
+	}
+}
@@ -0,0 +1,34 @@
+package ch.idsia.project;
+
+import java.util.Map;
+
+/**
+ * JMX view of Metrics (see Metrics.registerMBean). Latencies are in microseconds, since the process started.
+ */
+public interface MetricsMXBean {
+
+	boolean isEnabled();
+
+	void setEnabled(boolean on);
+
+	long getEnvSteps();
+
+	long getDecisions();
+
+	long getGradientUpdates();
+
+	/**
+	 * Fraction of the replay memory in use
+	 */
+	double getReplayFill();
+
+	double getEpsilon();
+
+	double getMeanTdLoss();
+
+	Map<String, Double> getMeanMicros();
+
+	Map<String, Double> getP50Micros();
+
+	Map<String, Double> getP99Micros();
+}
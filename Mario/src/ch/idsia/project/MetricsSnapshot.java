@@ -0,0 +1,123 @@
+package ch.idsia.project;
+
+/**
+ * Immutable copy of Metrics at one point in time, or the difference between two (see since)
+ */
+public final class MetricsSnapshot {
+
+	private final long nanoTime;
+	private final long elapsedNanos; // 0 unless this is an interval
+	private final LatencyHistogram.Snapshot[] stages;
+	private final long envSteps;
+	private final long decisions;
+	private final long updates;
+	private final long replaySize;
+	private final long replayCapacity;
+	private final double epsilon;
+	private final double tdLossSum;
+	private final long tdLossCount;
+
+	MetricsSnapshot(long nanoTime, LatencyHistogram.Snapshot[] stages, long envSteps, long decisions, long updates,
+			long replaySize, long replayCapacity, double epsilon, double tdLossSum, long tdLossCount) {
+		this(nanoTime, 0, stages, envSteps, decisions, updates, replaySize, replayCapacity, epsilon, tdLossSum, tdLossCount);
+	}
+
+	private MetricsSnapshot(long nanoTime, long elapsedNanos, LatencyHistogram.Snapshot[] stages, long envSteps,
+			long decisions, long updates, long replaySize, long replayCapacity, double epsilon, double tdLossSum, long tdLossCount) {
+		this.nanoTime = nanoTime;
+		this.elapsedNanos = elapsedNanos;
+		this.stages = stages;
+		this.envSteps = envSteps;
+		this.decisions = decisions;
+		this.updates = updates;
+		this.replaySize = replaySize;
+		this.replayCapacity = replayCapacity;
+		this.epsilon = epsilon;
+		this.tdLossSum = tdLossSum;
+		this.tdLossCount = tdLossCount;
+	}
+
+	/**
+	 * What happened between 'earlier' and this snapshot; gauges (replay fill, epsilon) keep this snapshot's values
+	 * @param earlier
+	 */
+	public MetricsSnapshot since(MetricsSnapshot earlier) {
+		LatencyHistogram.Snapshot[] s = new LatencyHistogram.Snapshot[stages.length];
+		for (int i = 0; i < s.length; i++) s[i] = stages[i].minus(earlier.stages[i]);
+		return new MetricsSnapshot(nanoTime, nanoTime - earlier.nanoTime, s, envSteps - earlier.envSteps,
+				decisions - earlier.decisions, updates - earlier.updates, replaySize, replayCapacity, epsilon,
+				tdLossSum - earlier.tdLossSum, tdLossCount - earlier.tdLossCount);
+	}
+
+	public LatencyHistogram.Snapshot getLatency(Metrics.Stage stage) {
+		return stages[stage.ordinal()];
+	}
+
+	public long getEnvSteps() {
+		return envSteps;
+	}
+
+	public long getDecisions() {
+		return decisions;
+	}
+
+	public long getGradientUpdates() {
+		return updates;
+	}
+
+	public long getReplaySize() {
+		return replaySize;
+	}
+
+	public long getReplayCapacity() {
+		return replayCapacity;
+	}
+
+	public double getEpsilon() {
+		return epsilon;
+	}
+
+	/**
+	 * Mean squared TD error over the samples of every update counted here
+	 */
+	public double getMeanTdLoss() {
+		return tdLossCount == 0 ? 0 : tdLossSum / tdLossCount;
+	}
+
+	/**
+	 * Length of the interval, for snapshots made by since(); 0 otherwise
+	 */
+	public long getElapsedNanos() {
+		return elapsedNanos;
+	}
+
+	/**
+	 * Per second over the interval (snapshots made by since() only)
+	 */
+	public double getEnvStepsPerSecond() {
+		return elapsedNanos == 0 ? 0 : envSteps / (elapsedNanos / 1e9);
+	}
+
+	public double getUpdatesPerSecond() {
+		return elapsedNanos == 0 ? 0 : updates / (elapsedNanos / 1e9);
+	}
+
+	/**
+	 * One line per stage with count, mean, p50, p99 and max in microseconds, then the counters and gauges
+	 */
+	@Override
+	public String toString() {
+		StringBuilder b = new StringBuilder();
+		for (Metrics.Stage s : Metrics.Stage.values()) {
+			LatencyHistogram.Snapshot h = getLatency(s);
+			b.append(String.format("%-15s n=%-10d mean=%9.1fus p50=%9.1fus p99=%9.1fus max=%9.1fus%n", s,
+					h.getCount(), h.getMean()/1e3, h.getPercentile(50)/1e3, h.getPercentile(99)/1e3, h.getMax()/1e3));
+		}
+		b.append(String.format("env steps=%d decisions=%d updates=%d replay=%d/%d epsilon=%.4f td loss=%.5f",
+				envSteps, decisions, updates, replaySize, replayCapacity, epsilon, getMeanTdLoss()));
+		if (elapsedNanos != 0) {
+			b.append(String.format(" (%.0f steps/s, %.0f updates/s)", getEnvStepsPerSecond(), getUpdatesPerSecond()));
+		}
+		return b.toString();
+	}
+}
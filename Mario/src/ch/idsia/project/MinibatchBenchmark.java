@@ -0,0 +1,74 @@
+package ch.idsia.project;
+
+import java.util.Random;
+
+import ch.idsia.evolution.MLP;
+
+/**
+ * Measures time and bytes allocated per training step, comparing the array-returning
+ * ReplayMemory getters with sampling into a reused MinibatchBuffer.
+ * In steady state, sampleMinibatch should report 0 bytes/op.
+ *
+ * Usage: MinibatchBenchmark [capacity] [batchSize]
+ */
+public final class MinibatchBenchmark {
+
+	private static final int ITERATIONS = 2000;
+
+	public static void main(String[] args) {
+		int capacity = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int batchSize = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+
+		Random rng = new Random(42);
+		ReplayMemory rm = BenchmarkUtil.filledMemory(capacity, true, rng);
+		DQNAgent agent = new DQNAgent(new MLP(BenchmarkUtil.STATE_SIZE, 64, 12), 0.9);
+		MinibatchBuffer batch = new MinibatchBuffer(batchSize, BenchmarkUtil.STATE_SIZE);
+
+		System.out.println("capacity=" + capacity + " batch=" + batchSize);
+		for (int pass = 0; pass < 2; pass++) { // first pass is warm-up
+			boolean print = pass == 1;
+			long t = System.nanoTime();
+			long a = BenchmarkUtil.allocatedBytes();
+			for (int i = 0; i < ITERATIONS; i++) {
+				int[] idx = rm.sampleMinibatchIdx(batchSize);
+				rm.getStates(idx);
+				rm.getStatesPrime(idx);
+				rm.getRewards(idx);
+				rm.getActions(idx);
+				rm.getTerminals(idx);
+			}
+			report(print, "getters           ", t, a);
+
+			t = System.nanoTime();
+			a = BenchmarkUtil.allocatedBytes();
+			for (int i = 0; i < ITERATIONS; i++) {
+				rm.sampleMinibatch(batch);
+			}
+			report(print, "sampleMinibatch   ", t, a);
+
+			t = System.nanoTime();
+			a = BenchmarkUtil.allocatedBytes();
+			for (int i = 0; i < ITERATIONS; i++) {
+				int[] idx = rm.sampleMinibatchIdx(batchSize);
+				agent.train(rm.getStates(idx), rm.getRewards(idx), rm.getActions(idx), rm.getStatesPrime(idx), rm.getTerminals(idx), batchSize);
+			}
+			report(print, "train(arrays)     ", t, a);
+
+			t = System.nanoTime();
+			a = BenchmarkUtil.allocatedBytes();
+			for (int i = 0; i < ITERATIONS; i++) {
+				rm.sampleMinibatch(batch);
+				agent.train(batch);
+			}
+			report(print, "train(buffer)     ", t, a);
+		}
+	}
+
+	private static void report(boolean print, String label, long startNanos, long startBytes) {
+		long elapsed = System.nanoTime() - startNanos;
+		long bytes = BenchmarkUtil.allocatedBytes() - startBytes;
+		if (print) {
+			System.out.printf("%s %10.0f ns/op %10d bytes/op%n", label, (double) elapsed / ITERATIONS, bytes / ITERATIONS);
+		}
+	}
+}
@@ -0,0 +1,182 @@
+package ch.idsia.project;
+
+import java.util.Arrays;
+
+/**
+ * Reusable storage for one minibatch of transitions, filled in place by ReplayMemory.
+ * States are kept row-major in flat arrays: row i of 'states' starts at i*stateSize.
+ * A sparse buffer instead keeps, for each state, the list of its features that are 1:
+ * those of row i are activeStates[stateOffsets[i] .. stateOffsets[i+1]-1].
+ * Allocate one per learner and reuse it for every training step.
+ */
+public class MinibatchBuffer {
+
+	private final int size;
+	private final int stateSize;
+	private final boolean sparse;
+
+	private final int[] idx;
+	private final double[] states;
+	private final double[] nextStates;
+	private final double[] rewards;
+	private final int[] actions;
+	private final boolean[] terminals;
+	private final double[] weights;
+	private final double[] tdErrors;
+	private final double[] discounts;
+	private boolean discounted;
+
+	// sparse form only
+	private final int[] activeStates;
+	private final int[] stateOffsets;
+	private final int[] activeNextStates;
+	private final int[] nextStateOffsets;
+
+	public MinibatchBuffer(int size, int stateSize) {
+		this(size, stateSize, false);
+	}
+
+	/**
+	 * @param size
+	 * @param stateSize
+	 * @param sparse if true, states are held as lists of active (1-valued) features instead of dense rows
+	 */
+	public MinibatchBuffer(int size, int stateSize, boolean sparse) {
+		this.size = size;
+		this.stateSize = stateSize;
+		this.sparse = sparse;
+		idx = new int[size];
+		if (sparse) {
+			states = null;
+			nextStates = null;
+			activeStates = new int[size*stateSize];
+			stateOffsets = new int[size+1];
+			activeNextStates = new int[size*stateSize];
+			nextStateOffsets = new int[size+1];
+		}
+		else {
+			states = new double[size*stateSize];
+			nextStates = new double[size*stateSize];
+			activeStates = null;
+			stateOffsets = null;
+			activeNextStates = null;
+			nextStateOffsets = null;
+		}
+		rewards = new double[size];
+		actions = new int[size];
+		terminals = new boolean[size];
+		weights = new double[size];
+		Arrays.fill(weights, 1.0);
+		tdErrors = new double[size];
+		discounts = new double[size];
+	}
+
+	/**
+	 * Number of transitions in the batch
+	 */
+	public int size() {
+		return size;
+	}
+
+	public int getStateSize() {
+		return stateSize;
+	}
+
+	public boolean isSparse() {
+		return sparse;
+	}
+
+	/**
+	 * Indices into the ReplayMemory of the transitions currently held
+	 */
+	public int[] getIndices() {
+		return idx;
+	}
+
+	/**
+	 * s for every transition, row-major (size x stateSize)
+	 */
+	public double[] getStates() {
+		return states;
+	}
+
+	/**
+	 * s' for every transition, row-major (size x stateSize)
+	 */
+	public double[] getNextStates() {
+		return nextStates;
+	}
+
+	/**
+	 * Active features of every s, concatenated (sparse buffers only)
+	 */
+	public int[] getActiveStates() {
+		return activeStates;
+	}
+
+	/**
+	 * Where each s starts in getActiveStates(); has size()+1 entries (sparse buffers only)
+	 */
+	public int[] getStateOffsets() {
+		return stateOffsets;
+	}
+
+	/**
+	 * Active features of every s', concatenated (sparse buffers only)
+	 */
+	public int[] getActiveNextStates() {
+		return activeNextStates;
+	}
+
+	/**
+	 * Where each s' starts in getActiveNextStates(); has size()+1 entries (sparse buffers only)
+	 */
+	public int[] getNextStateOffsets() {
+		return nextStateOffsets;
+	}
+
+	public double[] getRewards() {
+		return rewards;
+	}
+
+	public int[] getActions() {
+		return actions;
+	}
+
+	public boolean[] getTerminals() {
+		return terminals;
+	}
+
+	/**
+	 * Importance-sampling weight of every transition; all 1 unless sampled with prioritized replay
+	 */
+	public double[] getWeights() {
+		return weights;
+	}
+
+	/**
+	 * Discount of every transition's bootstrap term, e.g. gamma^n for n-step returns (see ReplayMemory.enableNStep);
+	 * only meaningful when isDiscounted()
+	 */
+	public double[] getDiscounts() {
+		return discounts;
+	}
+
+	/**
+	 * True if DQNAgent.train should bootstrap with getDiscounts() rather than its own gamma
+	 */
+	public boolean isDiscounted() {
+		return discounted;
+	}
+
+	public void setDiscounted(boolean discounted) {
+		this.discounted = discounted;
+	}
+
+	/**
+	 * TD error (target - Q(s,a)) of every transition, written by DQNAgent.train
+	 */
+	public double[] getTdErrors() {
+		return tdErrors;
+	}
+}
@@ -0,0 +1,129 @@
+package ch.idsia.project;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import ch.idsia.evolution.MLP;
+
+/**
+ * Environment steps a DQNAgent needs before its greedy policy reaches a fixed fitness, with one-step and
+ * n-step returns (see ReplayMemory.enableNStep), over several seeds.
+ *
+ * The game is a stand-in with the reward structure that makes n-step returns matter in long Mario levels:
+ * a corridor of LENGTH cells that Mario walks along with the 12 standard actions (any with RIGHT moves right,
+ * any with LEFT moves left), rewarded only at checkpoints every CHECKPOINT cells, the first time he gets there.
+ * The state is his cell, one-hot, as binary features. The fitness is the distance the greedy policy reaches
+ * within an episode of MAX_STEPS steps, checked every EVALUATE_EVERY steps; the default target is the third
+ * checkpoint. Seeds fix the network's sampling and random actions, but not when epsilon-greedy explores
+ * (DQNAgent draws that from Math.random), so runs vary a little.
+ *
+ * Usage: NStepBenchmark [seeds] [max env steps] [target fitness]
+ */
+public final class NStepBenchmark {
+
+	private static final int LENGTH = 20;
+	private static final int CHECKPOINT = 5;
+	private static final int MAX_STEPS = 2*LENGTH;
+	private static final double REWARD = 0.25; // the network's outputs are tanh, so returns must stay below 1
+	private static final double GAMMA = 0.95;
+	private static final int BATCH_SIZE = 32;
+	private static final double LEARNING_RATE = 0.1;
+	private static final int EVALUATE_EVERY = 250;
+
+	public static void main(String[] args) {
+		int seeds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+		long budget = args.length > 1 ? Long.parseLong(args[1]) : 40000;
+		int target = args.length > 2 ? Integer.parseInt(args[2]) : 3*CHECKPOINT;
+		System.out.printf("corridor of %d cells, checkpoints every %d, target fitness %d, budget %d env steps%n",
+				LENGTH, CHECKPOINT, target, budget);
+		System.out.printf("%-4s %10s %10s   %s%n", "n", "median", "solved", "env steps per seed");
+		for (int n : new int[] {1, 3, 5}) {
+			long[] steps = new long[seeds];
+			int solved = 0;
+			for (int seed = 0; seed < seeds; seed++) {
+				steps[seed] = stepsToTarget(n, seed, budget, target);
+				if (steps[seed] <= budget) solved++;
+			}
+			StringBuilder each = new StringBuilder();
+			for (long s : steps) each.append(s <= budget ? Long.toString(s) : ">" + budget).append(' ');
+			long[] sorted = steps.clone();
+			Arrays.sort(sorted);
+			long median = sorted[seeds / 2];
+			System.out.printf("%-4d %10s %7d/%-2d   %s%n", n, median <= budget ? Long.toString(median) : ">" + budget,
+					solved, seeds, each);
+		}
+	}
+
+	/**
+	 * Trains with n-step returns until the greedy policy gets 'target' cells down the corridor
+	 * @return the environment steps it took, or budget+1 if it never did
+	 */
+	private static long stepsToTarget(int n, int seed, long budget, int target) {
+		MLP mlp = new MLP(UtilAgent.STATE_SIZE, 32, 12);
+		mlp.learningRate = LEARNING_RATE;
+		DQNAgent agent = new DQNAgent(new QNetwork(mlp), GAMMA);
+		agent.setRandom(new Random(seed));
+		agent.setEpsilon(1);
+		ReplayMemory memory = new ReplayMemory(20000, UtilAgent.STATE_SIZE, true);
+		memory.setRandom(new Random(seed));
+		memory.enableNStep(n, GAMMA);
+		MinibatchBuffer batch = new MinibatchBuffer(BATCH_SIZE, UtilAgent.STATE_SIZE, true);
+		ActionCodec codec = agent.getActionCodec();
+
+		double[] s = new double[UtilAgent.STATE_SIZE];
+		double[] sp = new double[UtilAgent.STATE_SIZE];
+		long steps = 0;
+		while (steps < budget) {
+			int x = 0;
+			int best = 0;
+			encode(x, s);
+			memory.setFirstState(s);
+			for (int t = 0; t < MAX_STEPS && steps < budget; t++) {
+				int a = agent.getAction(s, true);
+				x = move(x, codec.mask(a));
+				double r = 0;
+				if (x > best) {
+					if (x % CHECKPOINT == 0) r = REWARD;
+					best = x;
+				}
+				boolean finished = x == LENGTH;
+				encode(x, sp);
+				memory.addTransition(r, a, sp, finished);
+				steps++;
+				if (memory.getAdded() >= BATCH_SIZE) agent.train(memory, batch);
+				if (steps % EVALUATE_EVERY == 0 && greedyDistance(agent, codec) >= target) return steps;
+				double[] swap = s;
+				s = sp;
+				sp = swap;
+				if (finished) break;
+			}
+		}
+		return budget + 1;
+	}
+
+	/**
+	 * How far the greedy policy gets in one episode
+	 */
+	private static int greedyDistance(DQNAgent agent, ActionCodec codec) {
+		double[] s = new double[UtilAgent.STATE_SIZE];
+		int x = 0;
+		int best = 0;
+		for (int t = 0; t < MAX_STEPS && x < LENGTH; t++) {
+			encode(x, s);
+			x = move(x, codec.mask(agent.getAction(s, false)));
+			best = Math.max(best, x);
+		}
+		return best;
+	}
+
+	private static int move(int x, int mask) {
+		if ((mask & ActionCodec.RIGHT) != 0) return Math.min(LENGTH, x + 1);
+		if ((mask & ActionCodec.LEFT) != 0) return Math.max(0, x - 1);
+		return x;
+	}
+
+	private static void encode(int x, double[] s) {
+		Arrays.fill(s, 0);
+		s[x] = 1;
+	}
+}
@@ -0,0 +1,153 @@
+package ch.idsia.project;
+
+/**
+ * Allocation-free version of UtilAgent.getDirections + fillObs: encodes which element classes are
+ * seen in each of the 8 directions at the 3 ranges around Mario, straight into a caller-owned buffer.
+ *
+ * For each Mario size, a table lists every grid cell (as an offset from Mario) together with the
+ * (range, direction) group it belongs to. A second table gives the feature that each (group, element class)
+ * pair ends up in. Note that fillObs strides by the number of ranges and directions rather than by NUM_EL,
+ * so several pairs share a feature and only the last one written counts; the table reproduces that.
+ * Both tables are built once by probing getDirections and fillObs themselves, so the output is
+ * bit-identical to them by construction.
+ * Element codes go through a 256-entry lookup table instead of the switch in UtilAgent.getEl.
+ */
+public final class ObservationEncoder {
+
+	/**
+	 * Number of features written: NUM_EL element classes x 3 ranges x 8 directions
+	 */
+	public static final int SIZE = UtilAgent.NUM_EL*3*8;
+
+	private static final byte[] EL = new byte[256];
+
+	// per Mario size (0 = small, 1 = large): offsets of every cell, and group*NUM_EL for its (range, direction) group
+	private static final int[][] DY = new int[2][];
+	private static final int[][] DX = new int[2][];
+	private static final int[][] BASE = new int[2][];
+
+	// feature written for element class el seen in group g is FEATURE[g*NUM_EL + el], or -1 if fillObs overwrites it
+	private static final int[] FEATURE = new int[24*UtilAgent.NUM_EL];
+
+	// probing grid; big enough for the long-range window
+	private static final int PROBE = 21;
+	private static final int CENTER = PROBE / 2;
+	private static final byte PROBE_CODE = -60; // any code that maps to a non-zero class
+
+	static {
+		for (int code = -128; code < 128; code++) {
+			EL[code & 0xFF] = (byte) UtilAgent.getEl(code);
+		}
+		buildFeatures();
+		buildTable(0, true);
+		buildTable(1, false);
+	}
+
+	private ObservationEncoder() {
+	}
+
+	/**
+	 * Sets one (element, range, direction) entry at a time and sees where fillObs puts it
+	 */
+	private static void buildFeatures() {
+		double[] state = new double[SIZE];
+		for (int el = 0; el < UtilAgent.NUM_EL; el++) {
+			for (int range = 0; range < 3; range++) {
+				for (int dir = 0; dir < 8; dir++) {
+					int[][][] observations = new int[UtilAgent.NUM_EL][3][8];
+					observations[el][range][dir] = 1;
+					for (int f = 0; f < SIZE; f++) state[f] = 0;
+					UtilAgent.fillObs(observations, state, 0);
+					int feature = -1;
+					for (int f = 0; f < SIZE; f++) {
+						if (state[f] == 1) feature = f;
+					}
+					FEATURE[(range*8 + dir)*UtilAgent.NUM_EL + el] = feature;
+				}
+			}
+		}
+	}
+
+	private static void buildTable(int size, boolean isShort) {
+		int probeEl = UtilAgent.getEl(PROBE_CODE);
+		int[] egoPos = {CENTER, CENTER};
+		int[] dy = new int[PROBE*PROBE*24];
+		int[] dx = new int[dy.length];
+		int[] base = new int[dy.length];
+		int n = 0;
+		for (int y = 0; y < PROBE; y++) {
+			for (int x = 0; x < PROBE; x++) {
+				byte[][] obs = new byte[PROBE][PROBE];
+				obs[y][x] = PROBE_CODE;
+				int[][][] directions = UtilAgent.getDirections(obs, egoPos, isShort);
+				for (int range = 0; range < 3; range++) {
+					for (int dir = 0; dir < 8; dir++) {
+						if (directions[probeEl][range][dir] == 1) {
+							dy[n] = y - CENTER;
+							dx[n] = x - CENTER;
+							base[n] = (range*8 + dir)*UtilAgent.NUM_EL;
+							n++;
+						}
+					}
+				}
+			}
+		}
+		DY[size] = copyOf(dy, n);
+		DX[size] = copyOf(dx, n);
+		BASE[size] = copyOf(base, n);
+	}
+
+	private static int[] copyOf(int[] a, int n) {
+		int[] b = new int[n];
+		System.arraycopy(a, 0, b, 0, n);
+		return b;
+	}
+
+	/**
+	 * Writes the SIZE direction features into state[offset .. offset+SIZE-1] as 0/1,
+	 * exactly as fillObs(getDirections(obs, egoPos, isShort), state, offset) would
+	 * @param obs merged observation, as from getMergedObservationZZ
+	 * @param egoPos Mario's position in obs (column, row)
+	 * @param isShort whether Mario is small
+	 * @param state
+	 * @param offset
+	 */
+	public static void encode(byte[][] obs, int[] egoPos, boolean isShort, double[] state, int offset) {
+		for (int i = offset; i < offset + SIZE; i++) state[i] = 0;
+		int s = isShort ? 0 : 1;
+		int[] dy = DY[s];
+		int[] dx = DX[s];
+		int[] base = BASE[s];
+		int x0 = egoPos[0];
+		int y0 = egoPos[1];
+		for (int c = 0; c < dy.length; c++) {
+			int f = FEATURE[base[c] + EL[obs[y0 + dy[c]][x0 + dx[c]] & 0xFF]];
+			if (f >= 0) state[offset + f] = 1;
+		}
+	}
+
+	/**
+	 * Same as above, setting bits instead: feature f is bit (bitOffset+f)%64 of bits[(bitOffset+f)/64],
+	 * the layout used for packed states. The SIZE bits must be clear beforehand.
+	 * @param obs
+	 * @param egoPos
+	 * @param isShort
+	 * @param bits
+	 * @param bitOffset
+	 */
+	public static void encode(byte[][] obs, int[] egoPos, boolean isShort, long[] bits, int bitOffset) {
+		int s = isShort ? 0 : 1;
+		int[] dy = DY[s];
+		int[] dx = DX[s];
+		int[] base = BASE[s];
+		int x0 = egoPos[0];
+		int y0 = egoPos[1];
+		for (int c = 0; c < dy.length; c++) {
+			int f = FEATURE[base[c] + EL[obs[y0 + dy[c]][x0 + dx[c]] & 0xFF]];
+			if (f >= 0) {
+				f += bitOffset;
+				bits[f >>> 6] |= 1L << f;
+			}
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package ch.idsia.project;
+
+import java.util.Random;
+
+/**
+ * Encoding of the 240 direction features from recorded-style scenes:
+ * UtilAgent.getDirections + fillObs against ObservationEncoder, in ns and bytes allocated per frame.
+ * Also checks that both produce exactly the same features on every scene, for both Mario sizes,
+ * in both the double[] and the bitset form.
+ *
+ * Usage: ObservationEncoderBenchmark [scenes]
+ */
+public final class ObservationEncoderBenchmark {
+
+	private static final int ROUNDS = 20;
+
+	public static void main(String[] args) {
+		int numScenes = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		Random rng = new Random(42);
+		byte[][][] scenes = new byte[numScenes][][];
+		for (int i = 0; i < numScenes; i++) scenes[i] = BenchmarkUtil.randomScene(rng);
+		int[] egoPos = BenchmarkUtil.EGO_POS;
+
+		long mismatches = 0;
+		double[] expected = new double[UtilAgent.STATE_SIZE];
+		double[] actual = new double[UtilAgent.STATE_SIZE];
+		long[] bits = new long[StateBits.words(UtilAgent.STATE_SIZE)];
+		for (byte[][] scene : scenes) {
+			for (int small = 0; small < 2; small++) {
+				UtilAgent.fillObs(UtilAgent.getDirections(scene, egoPos, small == 0), expected, 15);
+				ObservationEncoder.encode(scene, egoPos, small == 0, actual, 15);
+				for (int w = 0; w < bits.length; w++) bits[w] = 0;
+				ObservationEncoder.encode(scene, egoPos, small == 0, bits, 15);
+				for (int f = 15; f < expected.length; f++) {
+					if (expected[f] != actual[f]) mismatches++;
+					if (expected[f] != ((bits[f >>> 6] >>> f) & 1L)) mismatches++;
+				}
+			}
+		}
+		System.out.println(mismatches == 0 ? "identical on " + numScenes + " scenes, both sizes" : "MISMATCH in " + mismatches + " features");
+
+		for (int pass = 0; pass < 2; pass++) { // first pass is warm-up
+			long t = System.nanoTime();
+			long a = BenchmarkUtil.allocatedBytes();
+			for (int r = 0; r < ROUNDS; r++) {
+				for (int i = 0; i < numScenes; i++) {
+					double[] state = new double[UtilAgent.STATE_SIZE];
+					UtilAgent.fillObs(UtilAgent.getDirections(scenes[i], egoPos, (i & 1) == 0), state, 15);
+				}
+			}
+			report(pass, "getDirections+fillObs", t, a, ROUNDS*numScenes);
+
+			t = System.nanoTime();
+			a = BenchmarkUtil.allocatedBytes();
+			for (int r = 0; r < ROUNDS; r++) {
+				for (int i = 0; i < numScenes; i++) {
+					ObservationEncoder.encode(scenes[i], egoPos, (i & 1) == 0, actual, 15);
+				}
+			}
+			report(pass, "ObservationEncoder   ", t, a, ROUNDS*numScenes);
+		}
+	}
+
+	private static void report(int pass, String label, long startNanos, long startBytes, int frames) {
+		long elapsed = System.nanoTime() - startNanos;
+		long bytes = BenchmarkUtil.allocatedBytes() - startBytes;
+		if (pass == 1) System.out.printf("%s %8.1f ns/frame %8d bytes/frame%n", label, (double) elapsed / frames, bytes / frames);
+	}
+}
@@ -0,0 +1,436 @@
+package ch.idsia.project;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import ch.idsia.benchmark.mario.environments.Environment;
+
+/**
+ * Trains a DQNAgent on recorded play (see TrajectoryRecorder) without the simulator. States and rewards are
+ * re-derived from the raw frames by an encoder's getState/getReward, so a new reward shaping or observation
+ * encoding only needs a UtilAgent overriding them, and the files it is tried on can be recorded once.
+ *
+ * Three stages run on their own threads, connected by bounded queues of reusable chunks:
+ * decode (read and inflate the files), encode (replay the frames through the encoder, as an Actor would,
+ * into packed transitions) and insert (into a ConcurrentReplayMemory). The learner is an AsyncLearner sampling
+ * from that memory, so it never touches a file; insert calls its onStep() once per transition, so it trains
+ * at 'replayRatio' updates per transition and holds the pipeline back when it falls behind.
+ *
+ * Transitions are built the way Actor builds them, with the encoder's action repeat: it must be the one
+ * the files were recorded with, or the recorded action of a decision frame stands for frames it wasn't held on.
+ * States must be binary and of the memory's state size.
+ */
+public class OfflinePipeline {
+
+	public static final int DEFAULT_CHUNK_SIZE = 256;
+	public static final int DEFAULT_QUEUE_CHUNKS = 8;
+
+	private final List<File> files;
+	private final UtilAgent encoder;
+	private final ConcurrentReplayMemory memory;
+	private final AsyncLearner learner;
+	private final int chunkSize;
+	private final int stateSize;
+	private final int words;
+
+	// decoded frames: full chunks go down 'frames', empty ones come back up 'freeFrames'; likewise for transitions
+	private final BlockingQueue<FrameChunk> frames;
+	private final BlockingQueue<FrameChunk> freeFrames;
+	private final BlockingQueue<TransitionChunk> transitions;
+	private final BlockingQueue<TransitionChunk> freeTransitions;
+
+	private final Stage decode = new Stage("decode", "frames");
+	private final Stage encode = new Stage("encode", "transitions");
+	private final Stage insert = new Stage("insert", "transitions");
+	private volatile Exception failure;
+	private long startTime;
+	private long endTime;
+	private long startUpdates;
+
+	public OfflinePipeline(List<File> files, UtilAgent encoder, ConcurrentReplayMemory memory, AsyncLearner learner) {
+		this(files, encoder, memory, learner, DEFAULT_CHUNK_SIZE, DEFAULT_QUEUE_CHUNKS);
+	}
+
+	/**
+	 * @param files trajectory files, read in order
+	 * @param encoder computes states and rewards; used only on the encode thread
+	 * @param memory the learner's memory
+	 * @param learner trained from 'memory'; started by run() if it isn't running
+	 * @param chunkSize frames or transitions handed between stages at a time
+	 * @param queueChunks chunks each queue holds before its producer blocks
+	 */
+	public OfflinePipeline(List<File> files, UtilAgent encoder, ConcurrentReplayMemory memory, AsyncLearner learner,
+			int chunkSize, int queueChunks) {
+		this.files = files;
+		this.encoder = encoder;
+		this.memory = memory;
+		this.learner = learner;
+		this.chunkSize = chunkSize;
+		stateSize = memory.getStateSize();
+		words = StateBits.words(stateSize);
+		frames = new ArrayBlockingQueue<FrameChunk>(queueChunks + 1); // + 1 for the end marker
+		freeFrames = new ArrayBlockingQueue<FrameChunk>(queueChunks + 2);
+		transitions = new ArrayBlockingQueue<TransitionChunk>(queueChunks + 1);
+		freeTransitions = new ArrayBlockingQueue<TransitionChunk>(queueChunks + 2);
+		// one chunk more than a queue holds for each end, so no stage ever waits for a chunk to come back
+		for (int i = 0; i < queueChunks + 2; i++) {
+			freeFrames.add(new FrameChunk(chunkSize));
+			freeTransitions.add(new TransitionChunk(chunkSize, words));
+		}
+	}
+
+	/**
+	 * Streams every file through the learner and returns once all transitions are in the memory
+	 * and the learner has made the updates they are owed (the learner is left running)
+	 * @throws IOException if a file could not be read
+	 * @throws InterruptedException
+	 */
+	public void run() throws IOException, InterruptedException {
+		startTime = System.nanoTime();
+		startUpdates = learner.getUpdates();
+		learner.start();
+		Thread[] threads = {
+				new Thread(new Runnable() {
+					public void run() {
+						decode();
+					}
+				}, "offline-decode"),
+				new Thread(new Runnable() {
+					public void run() {
+						encode();
+					}
+				}, "offline-encode"),
+				new Thread(new Runnable() {
+					public void run() {
+						insert();
+					}
+				}, "offline-insert")
+		};
+		for (Thread t : threads) {
+			t.setDaemon(true);
+			t.start();
+		}
+		for (Thread t : threads) t.join();
+		// onStep() only blocks while the learner is more than maxLag behind: let it catch up with the last ones
+		while (learner.isRunning() && learner.getUpdates() < learner.getOwedUpdates() && failure == null) {
+			Thread.sleep(1);
+		}
+		endTime = System.nanoTime();
+		if (failure == null) learner.checkFailure();
+		if (failure instanceof IOException) throw (IOException) failure;
+		if (failure != null) throw new IllegalStateException("offline pipeline failed", failure);
+	}
+
+	/**
+	 * Frames read, transitions built and inserted, updates made, and where each stage spent its time
+	 * @param out
+	 */
+	public void printStats(PrintStream out) {
+		double seconds = ((endTime > 0 ? endTime : System.nanoTime()) - startTime) / 1e9;
+		out.printf("%-8s %12s %-12s %10s %10s %10s %10s%n", "stage", "count", "", "per s", "busy %", "wait in %",
+				"wait out %");
+		for (Stage s : new Stage[] {decode, encode, insert}) s.print(out, seconds);
+		long updates = learner.getUpdates() - startUpdates;
+		out.printf("%-8s %12d %-12s %10.0f%n", "learn", updates, "updates", updates / seconds);
+	}
+
+	public long getFramesDecoded() {
+		return decode.items;
+	}
+
+	public long getTransitionsInserted() {
+		return insert.items;
+	}
+
+	/**
+	 * Decode stage: reads every file into frame chunks
+	 */
+	private void decode() {
+		FrameChunk chunk = null;
+		try {
+			for (File file : files) {
+				TrajectoryReader reader = new TrajectoryReader(file);
+				try {
+					boolean first = true;
+					long busy = System.nanoTime();
+					while (reader.next()) {
+						if (chunk == null) {
+							decode.busy(busy);
+							chunk = decode.take(freeFrames);
+							busy = System.nanoTime();
+						}
+						int i = chunk.count++;
+						RecordedFrames.copy(reader.getFrame(), chunk.frames[i]);
+						chunk.actions[i] = reader.getAction();
+						// a new file starts a new episode, whatever the recorder was told
+						chunk.episodeStarts[i] = first || reader.isEpisodeStart();
+						first = false;
+						decode.items++;
+						if (chunk.count == chunkSize) {
+							decode.busy(busy);
+							decode.put(frames, chunk);
+							chunk = null;
+							busy = System.nanoTime();
+						}
+					}
+					decode.busy(busy);
+				}
+				finally {
+					reader.close();
+				}
+			}
+		}
+		catch (Exception e) {
+			fail(e);
+		}
+		finally {
+			try {
+				if (chunk != null && chunk.count > 0) decode.put(frames, chunk);
+				frames.put(FrameChunk.END);
+			}
+			catch (InterruptedException e) {
+				fail(e);
+			}
+		}
+	}
+
+	/**
+	 * Encode stage: replays the frames through the encoder into transition chunks, as Actor.runEpisode would
+	 */
+	private void encode() {
+		FrameView view = new FrameView();
+		Environment environment = view.environment;
+		double[] s = new double[stateSize];
+		double[] sp = new double[stateSize];
+		boolean first = true;
+		int a = -1;
+		TransitionChunk out = null;
+		try {
+			while (true) {
+				FrameChunk chunk = encode.take(frames);
+				if (chunk == FrameChunk.END) break;
+				if (failure != null) { // just drain until the end, so decode can't block
+					encode.put(freeFrames, chunk);
+					continue;
+				}
+				long busy = System.nanoTime();
+				for (int i = 0; i < chunk.count; i++) {
+					view.frame = chunk.frames[i];
+					if (chunk.episodeStarts[i]) {
+						encoder.setCurrents(environment);
+						encoder.setPrevious(environment);
+						encoder.notMovedCount = 0;
+						encoder.startActionRepeat();
+						first = true;
+					}
+					if (!encoder.advanceFrame(environment)) continue;
+					encoder.getState(environment, sp);
+					double r = encoder.getRepeatedReward(environment);
+					boolean finished = environment.isLevelFinished();
+					// the first decision of an episode has no transition, nor does one after an unknown action
+					if (!first && a >= 0) {
+						if (out == null) {
+							encode.busy(busy);
+							out = encode.take(freeTransitions);
+							busy = System.nanoTime();
+						}
+						int j = out.count++;
+						StateBits.pack(s, stateSize, out.states, j*words);
+						StateBits.pack(sp, stateSize, out.nextStates, j*words);
+						out.rewards[j] = r;
+						out.actions[j] = a;
+						out.terminals[j] = finished;
+						encode.items++;
+						if (out.count == chunkSize) {
+							encode.busy(busy);
+							encode.put(transitions, out);
+							out = null;
+							busy = System.nanoTime();
+						}
+					}
+					encoder.setPrevious(environment);
+					first = false;
+					a = chunk.actions[i];
+					double[] swap = s;
+					s = sp;
+					sp = swap;
+				}
+				encode.busy(busy);
+				chunk.count = 0;
+				encode.put(freeFrames, chunk);
+			}
+		}
+		catch (Exception e) {
+			fail(e);
+			drain(frames, freeFrames);
+		}
+		finally {
+			try {
+				if (out != null && out.count > 0) encode.put(transitions, out);
+				transitions.put(TransitionChunk.END);
+			}
+			catch (InterruptedException e) {
+				fail(e);
+			}
+		}
+	}
+
+	/**
+	 * Insert stage: adds the transitions to the memory, pacing itself to the learner (counted as waiting for output)
+	 */
+	private void insert() {
+		try {
+			while (true) {
+				TransitionChunk chunk = insert.take(transitions);
+				if (chunk == TransitionChunk.END) break;
+				if (failure == null) {
+					for (int j = 0; j < chunk.count; j++) {
+						long busy = System.nanoTime();
+						memory.addTransition(chunk.states, j*words, chunk.rewards[j], chunk.actions[j],
+								chunk.nextStates, j*words, chunk.terminals[j]);
+						insert.items++;
+						long added = System.nanoTime();
+						insert.busyNanos += added - busy;
+						learner.onStep(); // blocks while the learner is behind
+						insert.waitOutNanos += System.nanoTime() - added;
+					}
+				}
+				chunk.count = 0;
+				insert.put(freeTransitions, chunk);
+			}
+		}
+		catch (Exception e) {
+			fail(e);
+			drain(transitions, freeTransitions);
+		}
+	}
+
+	private void fail(Exception e) {
+		if (failure == null) failure = e;
+	}
+
+	/**
+	 * After a stage failed: keeps taking its input, until the end marker, so the stage before it can't block
+	 */
+	private static <T extends Chunk> void drain(BlockingQueue<T> in, BlockingQueue<T> free) {
+		try {
+			while (true) {
+				T chunk = in.take();
+				if (chunk.isEnd()) return;
+				chunk.count = 0;
+				free.put(chunk);
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private abstract static class Chunk {
+		int count;
+
+		abstract boolean isEnd();
+	}
+
+	private static final class FrameChunk extends Chunk {
+		static final FrameChunk END = new FrameChunk(0);
+
+		final RecordedFrames.Frame[] frames;
+		final int[] actions;
+		final boolean[] episodeStarts;
+
+		FrameChunk(int size) {
+			frames = new RecordedFrames.Frame[size];
+			for (int i = 0; i < size; i++) frames[i] = new RecordedFrames.Frame();
+			actions = new int[size];
+			episodeStarts = new boolean[size];
+		}
+
+		boolean isEnd() {
+			return this == END;
+		}
+	}
+
+	private static final class TransitionChunk extends Chunk {
+		static final TransitionChunk END = new TransitionChunk(0, 0);
+
+		final long[] states;
+		final long[] nextStates;
+		final double[] rewards;
+		final int[] actions;
+		final boolean[] terminals;
+
+		TransitionChunk(int size, int words) {
+			states = new long[size*words];
+			nextStates = new long[size*words];
+			rewards = new double[size];
+			actions = new int[size];
+			terminals = new boolean[size];
+		}
+
+		boolean isEnd() {
+			return this == END;
+		}
+	}
+
+	/**
+	 * An Environment showing whichever frame is set, for the encoder
+	 */
+	private static final class FrameView implements InvocationHandler {
+		RecordedFrames.Frame frame;
+		final Environment environment = (Environment) Proxy.newProxyInstance(Environment.class.getClassLoader(),
+				new Class<?>[] {Environment.class}, this);
+
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			return RecordedFrames.answer(frame, proxy, method, args);
+		}
+	}
+
+	/**
+	 * Throughput of one stage: items produced, and time spent working and blocked on each of its queues.
+	 * Written only by the stage's thread.
+	 */
+	private static final class Stage {
+		final String name;
+		final String unit;
+		volatile long items;
+		volatile long busyNanos;
+		volatile long waitInNanos; // for input, or for an empty chunk to fill
+		volatile long waitOutNanos; // for room downstream
+
+		Stage(String name, String unit) {
+			this.name = name;
+			this.unit = unit;
+		}
+
+		void busy(long since) {
+			busyNanos += System.nanoTime() - since;
+		}
+
+		<T> T take(BlockingQueue<T> queue) throws InterruptedException {
+			long start = System.nanoTime();
+			T t = queue.take();
+			waitInNanos += System.nanoTime() - start;
+			return t;
+		}
+
+		<T> void put(BlockingQueue<T> queue, T t) throws InterruptedException {
+			long start = System.nanoTime();
+			queue.put(t);
+			waitOutNanos += System.nanoTime() - start;
+		}
+
+		void print(PrintStream out, double seconds) {
+			double total = seconds*1e9 / 100;
+			out.printf("%-8s %12d %-12s %10.0f %10.1f %10.1f %10.1f%n", name, items, unit, items / seconds,
+					busyNanos / total, waitInNanos / total, waitOutNanos / total);
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package ch.idsia.project;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import ch.idsia.benchmark.mario.environments.Environment;
+import ch.idsia.evolution.MLP;
+
+/**
+ * Runs OfflinePipeline over trajectory files and prints the throughput of each stage and of the learner.
+ * Without files, it first records synthetic frames (random actions, 500-frame episodes) into temporary ones,
+ * and checks that every decision but the first of each episode became a transition.
+ * The stages and the learner are four threads; on fewer cores they take turns, and the busy and wait
+ * columns show which stage the others wait on.
+ *
+ * Usage: OfflinePipelineBenchmark [replay ratio] [trajectory files...]
+ * A replay ratio of 0 leaves the learner idle, to measure the stages alone.
+ */
+public final class OfflinePipelineBenchmark {
+
+	private static final int FILES = 4;
+	private static final int FRAMES_PER_FILE = 25000;
+	private static final int EPISODE_LENGTH = 500;
+	private static final int BATCH_SIZE = 32;
+	private static final int PUBLISH_EVERY = 100;
+	private static final int MAX_LAG = 50;
+
+	public static void main(String[] args) throws Exception {
+		double ratio = args.length > 0 ? Double.parseDouble(args[0]) : 0.25;
+		List<File> files = new ArrayList<File>();
+		for (int i = 1; i < args.length; i++) files.add(new File(args[i]));
+		long expected = -1;
+		if (files.isEmpty()) {
+			RecordedFrames frames = RecordedFrames.synthetic(FRAMES_PER_FILE, 42);
+			for (int i = 0; i < FILES; i++) {
+				File file = File.createTempFile("offline", ".trj");
+				file.deleteOnExit();
+				record(frames, file, i);
+				files.add(file);
+			}
+			expected = (long) FILES * FRAMES_PER_FILE / EPISODE_LENGTH * (EPISODE_LENGTH - 1);
+			System.out.println("synthetic: " + FILES + " files of " + FRAMES_PER_FILE + " frames");
+		}
+		System.out.printf("%d cores, replay ratio %.2f%n", Runtime.getRuntime().availableProcessors(), ratio);
+
+		DQNAgent agent = new DQNAgent(new QNetwork(new MLP(UtilAgent.STATE_SIZE, 64, 12)), 0.9);
+		ConcurrentReplayMemory memory = new ConcurrentReplayMemory(100000, UtilAgent.STATE_SIZE);
+		MinibatchBuffer batch = new MinibatchBuffer(BATCH_SIZE, UtilAgent.STATE_SIZE, true);
+		AsyncLearner learner = new AsyncLearner(agent, memory, batch, ratio, PUBLISH_EVERY, MAX_LAG);
+		DQNAgent encoder = new DQNAgent(new MLP(UtilAgent.STATE_SIZE, 64, 12), 0.9); // only for getState/getReward
+
+		OfflinePipeline pipeline = new OfflinePipeline(files, encoder, memory, learner);
+		pipeline.run();
+		learner.stop();
+		pipeline.printStats(System.out);
+		if (expected >= 0 && pipeline.getTransitionsInserted() != expected) {
+			throw new IllegalStateException(pipeline.getTransitionsInserted() + " transitions, expected " + expected);
+		}
+	}
+
+	private static void record(RecordedFrames frames, File file, long seed) throws IOException {
+		Random rng = new Random(seed);
+		TrajectoryRecorder recorder = new TrajectoryRecorder(file);
+		Environment environment = frames.asEnvironment();
+		environment.reset(null);
+		for (int k = 0; k < frames.size(); k++) {
+			if (k % EPISODE_LENGTH == 0) recorder.startEpisode();
+			environment.tick();
+			recorder.record(environment, rng.nextInt(12));
+		}
+		recorder.close();
+	}
+}
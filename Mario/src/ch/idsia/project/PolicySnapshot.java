@@ -0,0 +1,105 @@
+package ch.idsia.project;
+
+import ch.idsia.evolution.MLP;
+
+/**
+ * An immutable copy of the Q-network's weights, for acting.
+ * Any number of threads may read one concurrently without locking: every call takes its
+ * scratch space from the caller, and a new snapshot is published instead of mutating an old one.
+ */
+public final class PolicySnapshot {
+
+	private final int numInputs;
+	private final int numHidden;
+	private final int numOutputs;
+	private final double[] w1;
+	private final double[] w2;
+
+	/**
+	 * Takes ownership of w1 and w2, laid out as in QNetwork; they must not be modified afterwards
+	 */
+	PolicySnapshot(int numInputs, int numHidden, int numOutputs, double[] w1, double[] w2) {
+		this.numInputs = numInputs;
+		this.numHidden = numHidden;
+		this.numOutputs = numOutputs;
+		this.w1 = w1;
+		this.w2 = w2;
+	}
+
+	/**
+	 * Snapshot of the current weights of 'mlp'
+	 * @param mlp
+	 * @return
+	 */
+	public static PolicySnapshot of(MLP mlp) {
+		return new QNetwork(mlp).snapshot();
+	}
+
+	public int getNumInputs() {
+		return numInputs;
+	}
+
+	public int getNumHidden() {
+		return numHidden;
+	}
+
+	public int getNumOutputs() {
+		return numOutputs;
+	}
+
+	/**
+	 * The first-layer weights, laid out as in QNetwork; must not be modified
+	 */
+	double[] getFirstLayer() {
+		return w1;
+	}
+
+	/**
+	 * The second-layer weights, laid out as in QNetwork; must not be modified
+	 */
+	double[] getSecondLayer() {
+		return w2;
+	}
+
+	/**
+	 * Q-values of 'state', written to 'out' (numOutputs long), using 'hidden' (numHidden long) as scratch
+	 * @param state
+	 * @param hidden
+	 * @param out
+	 * @return out
+	 */
+	public double[] propagate(double[] state, double[] hidden, double[] out) {
+		for (int h = 0; h < numHidden; h++) hidden[h] = 0;
+		for (int i = 0; i < numInputs; i++) {
+			double a = state[i];
+			if (a == 0) continue; // states are mostly zeros
+			int wi = i*numHidden;
+			for (int h = 0; h < numHidden; h++) {
+				hidden[h] += a * w1[wi + h];
+			}
+		}
+		for (int h = 0; h < numHidden; h++) hidden[h] = Math.tanh(hidden[h]);
+		for (int o = 0; o < numOutputs; o++) out[o] = 0;
+		for (int h = 0; h < numHidden; h++) {
+			double a = hidden[h];
+			int wh = h*numOutputs;
+			for (int o = 0; o < numOutputs; o++) {
+				out[o] += a * w2[wh + o];
+			}
+		}
+		for (int o = 0; o < numOutputs; o++) out[o] = Math.tanh(out[o]);
+		return out;
+	}
+
+	/**
+	 * Index of the highest Q-value of 'state'; scratch arrays as in propagate
+	 */
+	public int greedyAction(double[] state, double[] hidden, double[] out) {
+		propagate(state, hidden, out);
+		int idx = 0;
+		for (int o = 1; o < numOutputs; o++) {
+			if (out[o] > out[idx]) idx = o;
+		}
+		return idx;
+	}
+}
@@ -0,0 +1,75 @@
+package ch.idsia.project;
+
+import java.util.Random;
+
+/**
+ * Cost of prioritized sampling and priority updates as capacity grows, first on the SumTree alone
+ * and then for whole minibatches from a full packed ReplayMemory, against uniform sampling.
+ *
+ * Usage: PrioritizedReplayBenchmark [replay capacity] [batchSize]
+ */
+public final class PrioritizedReplayBenchmark {
+
+	private static final int OPERATIONS = 1000000;
+	private static final int BATCHES = 20000;
+
+	// keeps the JIT from dropping results nobody reads
+	private static volatile long sink;
+
+	public static void main(String[] args) {
+		int replayCapacity = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		int batchSize = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+		Random rng = new Random(42);
+
+		for (int capacity = 1 << 14; capacity <= 1 << 22; capacity <<= 2) {
+			SumTree tree = new SumTree(capacity);
+			for (int i = 0; i < capacity; i++) tree.set(i, rng.nextDouble());
+			int[] slots = new int[OPERATIONS];
+			double[] values = new double[OPERATIONS];
+			for (int i = 0; i < OPERATIONS; i++) {
+				slots[i] = rng.nextInt(capacity);
+				values[i] = rng.nextDouble();
+			}
+
+			long found = 0;
+			for (int pass = 0; pass < 2; pass++) { // first pass is warm-up
+				long t = System.nanoTime();
+				double total = tree.total();
+				for (int i = 0; i < OPERATIONS; i++) found += tree.find(values[i] * total);
+				long find = System.nanoTime() - t;
+
+				t = System.nanoTime();
+				for (int i = 0; i < OPERATIONS; i++) tree.set(slots[i], values[i]);
+				long set = System.nanoTime() - t;
+
+				if (pass == 1) {
+					System.out.printf("SumTree capacity %8d: sample %6.1f ns, update %6.1f ns%n",
+							capacity, (double) find / OPERATIONS, (double) set / OPERATIONS);
+				}
+			}
+			sink = found;
+		}
+
+		System.out.println("filling a packed ReplayMemory of " + replayCapacity + " transitions...");
+		ReplayMemory rm = BenchmarkUtil.filledMemory(replayCapacity, true, rng);
+		MinibatchBuffer batch = new MinibatchBuffer(batchSize, BenchmarkUtil.STATE_SIZE, true);
+		System.out.printf("uniform     : %8.0f ns/minibatch%n", minibatchNanos(rm, batch, rng));
+		rm.enablePrioritized(0.6, 0.4);
+		System.out.printf("prioritized : %8.0f ns/minibatch (sample + weights + priority update)%n", minibatchNanos(rm, batch, rng));
+	}
+
+	private static double minibatchNanos(ReplayMemory rm, MinibatchBuffer batch, Random rng) {
+		long elapsed = 0;
+		for (int pass = 0; pass < 2; pass++) {
+			elapsed = 0;
+			for (int i = 0; i < BATCHES; i++) {
+				for (int j = 0; j < batch.size(); j++) batch.getTdErrors()[j] = rng.nextGaussian();
+				long t = System.nanoTime();
+				rm.sampleMinibatch(batch);
+				rm.updatePriorities(batch);
+				elapsed += System.nanoTime() - t;
+			}
+		}
+		return (double) elapsed / BATCHES;
+	}
+}
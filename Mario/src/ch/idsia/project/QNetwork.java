@@ -0,0 +1,322 @@
+package ch.idsia.project;
+
+import ch.idsia.evolution.MLP;
+
+/**
+ * A two-layer tanh network with the same topology and update rule as ch.idsia.evolution.MLP,
+ * but evaluated a whole minibatch at a time.
+ * Weights are flat row-major arrays: w1[i*numHidden + h] is the weight from input i to hidden unit h,
+ * w2[h*numOutputs + o] from hidden unit h to output o, matching MLP's connection layers.
+ * Batches are row-major too: row r of an n x numInputs batch starts at r*numInputs.
+ * For binary inputs, the sparse methods take each row as the list of its inputs that are 1
+ * (see MinibatchBuffer), and only touch the first-layer weight rows of those inputs.
+ * The inner loops run on Kernels, which use the JDK Vector API when it is available.
+ */
+public class QNetwork {
+
+	private final int numInputs;
+	private final int numHidden;
+	private final int numOutputs;
+
+	private final double[] w1;
+	private final double[] w2;
+	private double learningRate;
+	private Kernels kernels = Kernels.DEFAULT;
+
+	// activations of the last forward pass, kept for backward
+	private double[] lastInputs;
+	private int[] lastActive;
+	private int[] lastOffsets;
+	private int lastBatchSize;
+	private double[] hidden;
+	private double[] outputs;
+
+	// scratch for backward
+	private double[] outputDelta;
+	private double[] hiddenDelta;
+	private final double[] gradientRow;
+	private final int[] singleOffsets = new int[2];
+	private final double[] single; // outputs of propagate, exactly numOutputs long
+
+	public QNetwork(int numInputs, int numHidden, int numOutputs, double learningRate) {
+		this.numInputs = numInputs;
+		this.numHidden = numHidden;
+		this.numOutputs = numOutputs;
+		this.learningRate = learningRate;
+		w1 = new double[numInputs*numHidden];
+		w2 = new double[numHidden*numOutputs];
+		gradientRow = new double[Math.max(numHidden, numOutputs)];
+		single = new double[numOutputs];
+	}
+
+	/**
+	 * Builds a network with the topology, weights and learning rate of 'mlp'
+	 * @param mlp
+	 */
+	public QNetwork(MLP mlp) {
+		this(mlp.firstConnectionLayer.length, mlp.secondConnectionLayer.length,
+				mlp.secondConnectionLayer[0].length, mlp.learningRate);
+		copyFrom(mlp);
+	}
+
+	public void copyFrom(MLP mlp) {
+		for (int i = 0; i < numInputs; i++) {
+			System.arraycopy(mlp.firstConnectionLayer[i], 0, w1, i*numHidden, numHidden);
+		}
+		for (int h = 0; h < numHidden; h++) {
+			System.arraycopy(mlp.secondConnectionLayer[h], 0, w2, h*numOutputs, numOutputs);
+		}
+	}
+
+	/**
+	 * Copies the weights of 'other', which must have the same topology
+	 * @param other
+	 */
+	public void copyFrom(QNetwork other) {
+		System.arraycopy(other.w1, 0, w1, 0, w1.length);
+		System.arraycopy(other.w2, 0, w2, 0, w2.length);
+	}
+
+	/**
+	 * Copies the weights of 'snapshot', which must have the same topology
+	 * @param snapshot
+	 */
+	public void copyFrom(PolicySnapshot snapshot) {
+		System.arraycopy(snapshot.getFirstLayer(), 0, w1, 0, w1.length);
+		System.arraycopy(snapshot.getSecondLayer(), 0, w2, 0, w2.length);
+	}
+
+	/**
+	 * Polyak averaging: w = tau*w(other) + (1-tau)*w
+	 * @param other
+	 * @param tau
+	 */
+	public void blendFrom(QNetwork other, double tau) {
+		for (int k = 0; k < w1.length; k++) w1[k] += tau*(other.w1[k] - w1[k]);
+		for (int k = 0; k < w2.length; k++) w2[k] += tau*(other.w2[k] - w2[k]);
+	}
+
+	/**
+	 * Polyak averaging towards the weights of 'mlp'
+	 * @param mlp
+	 * @param tau
+	 */
+	public void blendFrom(MLP mlp, double tau) {
+		for (int i = 0; i < numInputs; i++) {
+			double[] from = mlp.firstConnectionLayer[i];
+			int wi = i*numHidden;
+			for (int h = 0; h < numHidden; h++) w1[wi + h] += tau*(from[h] - w1[wi + h]);
+		}
+		for (int h = 0; h < numHidden; h++) {
+			double[] from = mlp.secondConnectionLayer[h];
+			int wh = h*numOutputs;
+			for (int o = 0; o < numOutputs; o++) w2[wh + o] += tau*(from[o] - w2[wh + o]);
+		}
+	}
+
+	/**
+	 * Writes this network's weights back into 'mlp', which must have the same topology
+	 * @param mlp
+	 */
+	public void copyTo(MLP mlp) {
+		for (int i = 0; i < numInputs; i++) {
+			System.arraycopy(w1, i*numHidden, mlp.firstConnectionLayer[i], 0, numHidden);
+		}
+		for (int h = 0; h < numHidden; h++) {
+			System.arraycopy(w2, h*numOutputs, mlp.secondConnectionLayer[h], 0, numOutputs);
+		}
+	}
+
+	/**
+	 * An immutable copy of the current weights, safe to hand to other threads
+	 * @return
+	 */
+	public PolicySnapshot snapshot() {
+		return new PolicySnapshot(numInputs, numHidden, numOutputs, w1.clone(), w2.clone());
+	}
+
+	public int getNumInputs() {
+		return numInputs;
+	}
+
+	public int getNumHidden() {
+		return numHidden;
+	}
+
+	public int getNumOutputs() {
+		return numOutputs;
+	}
+
+	/**
+	 * Name of the kernels in use ("scalar", or "vector/<lanes>x64" with the Vector API)
+	 */
+	public String getKernels() {
+		return kernels.name();
+	}
+
+	void setKernels(Kernels kernels) {
+		this.kernels = kernels;
+	}
+
+	public double getLearningRate() {
+		return learningRate;
+	}
+
+	public void setLearningRate(double learningRate) {
+		this.learningRate = learningRate;
+	}
+
+	/**
+	 * Q-values for a single state. The returned array is reused by the next call.
+	 * @param state
+	 * @return
+	 */
+	public double[] propagate(double[] state) {
+		System.arraycopy(forward(state, 1), 0, single, 0, numOutputs);
+		return single;
+	}
+
+	/**
+	 * Forward pass over n row-major input rows.
+	 * Returns the n x numOutputs outputs, in an array that is reused by the next call.
+	 * @param x
+	 * @param n
+	 * @return
+	 */
+	public double[] forward(double[] x, int n) {
+		ensureCapacity(n);
+		lastInputs = x;
+		lastActive = null;
+		lastBatchSize = n;
+		layer(x, n, numInputs, w1, numHidden, hidden);
+		layer(hidden, n, numHidden, w2, numOutputs, outputs);
+		return outputs;
+	}
+
+	/**
+	 * Q-values for a single binary state given by its first 'count' active inputs.
+	 * The returned array is reused by the next call.
+	 * @param active
+	 * @param count
+	 * @return
+	 */
+	public double[] propagateSparse(int[] active, int count) {
+		singleOffsets[1] = count;
+		System.arraycopy(forwardSparse(active, singleOffsets, 1), 0, single, 0, numOutputs);
+		return single;
+	}
+
+	/**
+	 * Forward pass over n binary rows, row r being the inputs active[offsets[r] .. offsets[r+1]-1].
+	 * The first layer only sums the weight rows of active inputs.
+	 * @param active
+	 * @param offsets n+1 entries
+	 * @param n
+	 * @return n x numOutputs outputs, reused by the next call
+	 */
+	public double[] forwardSparse(int[] active, int[] offsets, int n) {
+		ensureCapacity(n);
+		lastInputs = null;
+		lastActive = active;
+		lastOffsets = offsets;
+		lastBatchSize = n;
+		for (int k = 0; k < n*numHidden; k++) hidden[k] = 0;
+		for (int r = 0; r < n; r++) {
+			int rh = r*numHidden;
+			for (int k = offsets[r]; k < offsets[r+1]; k++) {
+				kernels.axpy(1, w1, active[k]*numHidden, hidden, rh, numHidden);
+			}
+		}
+		for (int k = 0; k < n*numHidden; k++) hidden[k] = Math.tanh(hidden[k]);
+		layer(hidden, n, numHidden, w2, numOutputs, outputs);
+		return outputs;
+	}
+
+	/**
+	 * Backward pass for the last forward() or forwardSparse(), moving the outputs towards 'targets' (n x numOutputs).
+	 * The gradient is averaged over the batch and applied once.
+	 * After forwardSparse(), only the first-layer rows of active inputs are updated.
+	 * @param targets
+	 * @return mean absolute output error, as in MLP.backPropagate
+	 */
+	public double backward(double[] targets) {
+		int n = lastBatchSize;
+		double error = 0;
+
+		for (int r = 0; r < n; r++) {
+			int ro = r*numOutputs;
+			for (int o = 0; o < numOutputs; o++) {
+				double e = targets[ro + o] - outputs[ro + o];
+				error += Math.abs(e);
+				outputDelta[ro + o] = e * dtanh(outputs[ro + o]);
+			}
+			// hidden deltas use the second layer before it is updated
+			int rh = r*numHidden;
+			for (int h = 0; h < numHidden; h++) {
+				double contribution = kernels.dot(outputDelta, ro, w2, h*numOutputs, numOutputs);
+				hiddenDelta[rh + h] = contribution * dtanh(hidden[rh + h]);
+			}
+		}
+
+		double step = learningRate / n;
+		update(hidden, n, numHidden, outputDelta, numOutputs, w2, step);
+		if (lastActive != null) updateSparse(lastActive, lastOffsets, n, step);
+		else update(lastInputs, n, numInputs, hiddenDelta, numHidden, w1, step);
+		return error / (n*numOutputs);
+	}
+
+	/**
+	 * out = tanh(in * w), for n rows; w is (from x to), row-major.
+	 * Each weight row is loaded once and applied to every row of the batch.
+	 */
+	private void layer(double[] in, int n, int from, double[] w, int to, double[] out) {
+		for (int k = 0; k < n*to; k++) out[k] = 0;
+		for (int i = 0; i < from; i++) {
+			int wi = i*to;
+			for (int r = 0; r < n; r++) {
+				kernels.axpy(in[r*from + i], w, wi, out, r*to, to);
+			}
+		}
+		for (int k = 0; k < n*to; k++) out[k] = Math.tanh(out[k]);
+	}
+
+	/**
+	 * w += step * in^T * delta, where in is (n x from) and delta is (n x to).
+	 * The gradient for each weight row is summed over the batch before w is touched.
+	 */
+	private void update(double[] in, int n, int from, double[] delta, int to, double[] w, double step) {
+		double[] g = gradientRow;
+		for (int i = 0; i < from; i++) {
+			for (int j = 0; j < to; j++) g[j] = 0;
+			for (int r = 0; r < n; r++) {
+				kernels.axpy(in[r*from + i], delta, r*to, g, 0, to);
+			}
+			kernels.axpy(step, g, 0, w, i*to, to);
+		}
+	}
+
+	/**
+	 * First-layer update for binary rows: each active input's row moves by its row's hidden delta
+	 */
+	private void updateSparse(int[] active, int[] offsets, int n, double step) {
+		for (int r = 0; r < n; r++) {
+			int rh = r*numHidden;
+			for (int k = offsets[r]; k < offsets[r+1]; k++) {
+				kernels.axpy(step, hiddenDelta, rh, w1, active[k]*numHidden, numHidden);
+			}
+		}
+	}
+
+	private static double dtanh(double y) {
+		return 1 - y*y;
+	}
+
+	private void ensureCapacity(int n) {
+		if (hidden == null || hidden.length < n*numHidden) {
+			hidden = new double[n*numHidden];
+			outputs = new double[n*numOutputs];
+			hiddenDelta = new double[n*numHidden];
+			outputDelta = new double[n*numOutputs];
+		}
+	}
+}
@@ -0,0 +1,54 @@
+package ch.idsia.project;
+
+import java.util.Random;
+
+import ch.idsia.evolution.MLP;
+
+/**
+ * Training throughput of DQNAgent with the per-sample MLP against the batched QNetwork,
+ * in transitions per second, for batch sizes 32, 64 and 128.
+ * Also checks that QNetwork built from an MLP computes the same Q-values.
+ */
+public final class QNetworkBenchmark {
+
+	private static final int[] BATCH_SIZES = {32, 64, 128};
+	private static final int TRANSITIONS = 60000;
+
+	public static void main(String[] args) {
+		Random rng = new Random(42);
+		ReplayMemory rm = BenchmarkUtil.filledMemory(20000, true, rng);
+
+		MLP reference = new MLP(BenchmarkUtil.STATE_SIZE, 64, 12);
+		QNetwork copy = new QNetwork(reference);
+		double diff = 0;
+		for (int i = 0; i < 100; i++) {
+			double[] s = BenchmarkUtil.randomState(rng);
+			double[] a = reference.propagate(s);
+			double[] b = copy.propagate(s);
+			for (int o = 0; o < 12; o++) diff = Math.max(diff, Math.abs(a[o] - b[o]));
+		}
+		System.out.println("max |MLP - QNetwork| over 100 states: " + diff);
+
+		for (int batchSize : BATCH_SIZES) {
+			MinibatchBuffer batch = new MinibatchBuffer(batchSize, BenchmarkUtil.STATE_SIZE);
+			double mlpRate = run(new DQNAgent(new MLP(BenchmarkUtil.STATE_SIZE, 64, 12), 0.9), rm, batch);
+			double netRate = run(new DQNAgent(new QNetwork(new MLP(BenchmarkUtil.STATE_SIZE, 64, 12)), 0.9), rm, batch);
+			System.out.printf("batch %3d   MLP: %9.0f transitions/s   QNetwork: %9.0f transitions/s   (x%.2f)%n",
+					batchSize, mlpRate, netRate, netRate / mlpRate);
+		}
+	}
+
+	private static double run(DQNAgent agent, ReplayMemory rm, MinibatchBuffer batch) {
+		int steps = TRANSITIONS / batch.size();
+		for (int i = 0; i < steps / 4; i++) { // warm-up
+			rm.sampleMinibatch(batch);
+			agent.train(batch);
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < steps; i++) {
+			rm.sampleMinibatch(batch);
+			agent.train(batch);
+		}
+		return (double) steps*batch.size() / ((System.nanoTime() - start) / 1e9);
+	}
+}
@@ -0,0 +1,189 @@
+package ch.idsia.project;
+
+/**
+ * An inference-only copy of a PolicySnapshot, with its weights stored as float32 or as int8 with one scale per layer,
+ * for greedy action selection in actor and evaluation threads.
+ * The int8 weights are w / scale rounded, with scale = max|w| / 127 over the layer.
+ * Like PolicySnapshot it is immutable, and every call takes its scratch space from the caller.
+ *
+ * Activations are float, with a faster tanh (see tanh). greedyAction skips the output tanh and (for int8)
+ * the second-layer scale: both preserve the order of the Q-values, so the argmax is the same. It may still
+ * differ from the double-precision network's when two actions' Q-values are closer than the rounding error;
+ * QuantizedPolicyBenchmark measures how often.
+ */
+public final class QuantizedPolicy {
+
+	public enum Precision {
+		FLOAT32,
+		INT8
+	}
+
+	private final Precision precision;
+	private final int numInputs;
+	private final int numHidden;
+	private final int numOutputs;
+	// FLOAT32
+	private final float[] w1;
+	private final float[] w2;
+	// INT8
+	private final byte[] q1;
+	private final byte[] q2;
+	private final float scale1;
+	private final float scale2;
+
+	private QuantizedPolicy(PolicySnapshot policy, Precision precision) {
+		this.precision = precision;
+		numInputs = policy.getNumInputs();
+		numHidden = policy.getNumHidden();
+		numOutputs = policy.getNumOutputs();
+		double[] d1 = policy.getFirstLayer();
+		double[] d2 = policy.getSecondLayer();
+		if (precision == Precision.FLOAT32) {
+			w1 = toFloat(d1);
+			w2 = toFloat(d2);
+			q1 = null;
+			q2 = null;
+			scale1 = 1;
+			scale2 = 1;
+		}
+		else {
+			w1 = null;
+			w2 = null;
+			scale1 = scale(d1);
+			scale2 = scale(d2);
+			q1 = quantize(d1, scale1);
+			q2 = quantize(d2, scale2);
+		}
+	}
+
+	/**
+	 * Converts the weights of 'policy' to 'precision'
+	 * @param policy
+	 * @param precision
+	 * @return
+	 */
+	public static QuantizedPolicy of(PolicySnapshot policy, Precision precision) {
+		return new QuantizedPolicy(policy, precision);
+	}
+
+	public Precision getPrecision() {
+		return precision;
+	}
+
+	public int getNumInputs() {
+		return numInputs;
+	}
+
+	public int getNumHidden() {
+		return numHidden;
+	}
+
+	public int getNumOutputs() {
+		return numOutputs;
+	}
+
+	/**
+	 * Bytes taken by the weights (8 per weight in a PolicySnapshot)
+	 */
+	public long weightBytes() {
+		long n = (long) numInputs*numHidden + (long) numHidden*numOutputs;
+		return precision == Precision.FLOAT32 ? 4*n : n + 8;
+	}
+
+	/**
+	 * Q-values of 'state', written to 'out' (numOutputs long), using 'hidden' (numHidden long) as scratch
+	 * @param state
+	 * @param hidden
+	 * @param out
+	 * @return out
+	 */
+	public float[] propagate(double[] state, float[] hidden, float[] out) {
+		logits(state, hidden, out);
+		float s = precision == Precision.INT8 ? scale2 : 1;
+		for (int o = 0; o < numOutputs; o++) out[o] = tanh(s * out[o]);
+		return out;
+	}
+
+	/**
+	 * Index of the highest Q-value of 'state'; scratch arrays as in propagate
+	 */
+	public int greedyAction(double[] state, float[] hidden, float[] out) {
+		logits(state, hidden, out);
+		int idx = 0;
+		for (int o = 1; o < numOutputs; o++) {
+			if (out[o] > out[idx]) idx = o;
+		}
+		return idx;
+	}
+
+	/**
+	 * Hidden layer, then the output layer before its scale (int8) and tanh
+	 */
+	private void logits(double[] state, float[] hidden, float[] out) {
+		for (int h = 0; h < numHidden; h++) hidden[h] = 0;
+		if (precision == Precision.FLOAT32) {
+			for (int i = 0; i < numInputs; i++) {
+				float a = (float) state[i];
+				if (a == 0) continue; // states are mostly zeros
+				int wi = i*numHidden;
+				for (int h = 0; h < numHidden; h++) {
+					hidden[h] += a * w1[wi + h];
+				}
+			}
+			for (int h = 0; h < numHidden; h++) hidden[h] = tanh(hidden[h]);
+		}
+		else {
+			// binary inputs only add up integers here, so the sum is exact
+			for (int i = 0; i < numInputs; i++) {
+				float a = (float) state[i];
+				if (a == 0) continue;
+				int wi = i*numHidden;
+				for (int h = 0; h < numHidden; h++) {
+					hidden[h] += a * q1[wi + h];
+				}
+			}
+			for (int h = 0; h < numHidden; h++) hidden[h] = tanh(scale1 * hidden[h]);
+		}
+
+		for (int o = 0; o < numOutputs; o++) out[o] = 0;
+		for (int h = 0; h < numHidden; h++) {
+			float a = hidden[h];
+			int wh = h*numOutputs;
+			if (precision == Precision.FLOAT32) {
+				for (int o = 0; o < numOutputs; o++) out[o] += a * w2[wh + o];
+			}
+			else {
+				for (int o = 0; o < numOutputs; o++) out[o] += a * q2[wh + o];
+			}
+		}
+	}
+
+	/**
+	 * tanh through exp, which the JIT compiles to an intrinsic; Math.tanh is several times slower,
+	 * and this is exact to well within float precision
+	 */
+	static float tanh(float x) {
+		return (float) (1 - 2 / (Math.exp(2.0*x) + 1));
+	}
+
+	private static float[] toFloat(double[] w) {
+		float[] f = new float[w.length];
+		for (int k = 0; k < w.length; k++) f[k] = (float) w[k];
+		return f;
+	}
+
+	private static float scale(double[] w) {
+		double max = 0;
+		for (double x : w) max = Math.max(max, Math.abs(x));
+		return max > 0 ? (float) (max / 127) : 1;
+	}
+
+	private static byte[] quantize(double[] w, float scale) {
+		byte[] q = new byte[w.length];
+		for (int k = 0; k < w.length; k++) {
+			long v = Math.round(w[k] / scale);
+			q[k] = (byte) Math.max(-127, Math.min(127, v));
+		}
+		return q;
+	}
+}
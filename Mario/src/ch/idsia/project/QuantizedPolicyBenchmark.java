@@ -0,0 +1,108 @@
+package ch.idsia.project;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+import ch.idsia.evolution.MLP;
+
+/**
+ * Compares greedy action selection with a PolicySnapshot against its float32 and int8 QuantizedPolicy copies:
+ * how often the chosen action agrees with the double-precision one, the largest Q-value error,
+ * latency per decision and the bytes the weights take. Runs on the fresh network and again after some training
+ * on random transitions, since training spreads the weights and changes the int8 scales.
+ *
+ * Usage: QuantizedPolicyBenchmark [states file]
+ * The optional file holds recorded states (see BenchmarkUtil.loadStates); otherwise game-like ones are generated.
+ */
+public final class QuantizedPolicyBenchmark {
+
+	private static final int STATES = 20000;
+	private static final int TRAIN_STEPS = 3000;
+	private static final int DECISIONS = 500000;
+
+	static volatile int sink;
+
+	public static void main(String[] args) throws IOException {
+		Random rng = new Random(42);
+		double[][] states;
+		if (args.length > 0) {
+			List<double[]> recorded = BenchmarkUtil.loadStates(args[0]);
+			states = recorded.toArray(new double[recorded.size()][]);
+			System.out.println(states.length + " recorded states");
+		}
+		else {
+			states = new double[STATES][];
+			for (int i = 0; i < STATES; i++) states[i] = BenchmarkUtil.gameLikeState(rng);
+			System.out.println(STATES + " generated game-like states");
+		}
+
+		DQNAgent agent = new DQNAgent(new QNetwork(new MLP(BenchmarkUtil.STATE_SIZE, 64, 12)), 0.9);
+		report("fresh network", agent.snapshot(), states);
+
+		ReplayMemory rm = BenchmarkUtil.filledMemory(20000, true, rng);
+		MinibatchBuffer batch = new MinibatchBuffer(32, BenchmarkUtil.STATE_SIZE, true);
+		for (int i = 0; i < TRAIN_STEPS; i++) agent.train(rm, batch);
+		report("after " + TRAIN_STEPS + " updates", agent.snapshot(), states);
+	}
+
+	private static void report(String title, PolicySnapshot policy, double[][] states) {
+		QuantizedPolicy f32 = QuantizedPolicy.of(policy, QuantizedPolicy.Precision.FLOAT32);
+		QuantizedPolicy i8 = QuantizedPolicy.of(policy, QuantizedPolicy.Precision.INT8);
+		long weights = 8L*(policy.getNumInputs()*policy.getNumHidden() + policy.getNumHidden()*policy.getNumOutputs());
+
+		System.out.println("\n" + title);
+		System.out.printf("%-8s %10s %12s %14s %12s %8s%n", "", "agreement", "max |dQ|", "ns/decision", "weights", "B/op");
+		double doubleNs = latency(policy, null, states);
+		System.out.printf("%-8s %10s %12s %14.0f %10d B %8.1f%n", "double", "-", "-", doubleNs, weights, allocated);
+		for (QuantizedPolicy quantized : new QuantizedPolicy[] {f32, i8}) {
+			double[] agreement = agreement(policy, quantized, states);
+			double ns = latency(policy, quantized, states);
+			System.out.printf("%-8s %9.2f%% %12.2e %14.0f %10d B %8.1f%n", quantized.getPrecision().name().toLowerCase(),
+					100*agreement[0], agreement[1], ns, quantized.weightBytes(), allocated);
+		}
+	}
+
+	/**
+	 * Fraction of states where both pick the same action, and the largest difference between their Q-values
+	 */
+	private static double[] agreement(PolicySnapshot policy, QuantizedPolicy quantized, double[][] states) {
+		double[] hidden = new double[policy.getNumHidden()];
+		double[] q = new double[policy.getNumOutputs()];
+		float[] hiddenFloat = new float[policy.getNumHidden()];
+		float[] qFloat = new float[policy.getNumOutputs()];
+		int same = 0;
+		double diff = 0;
+		for (double[] s : states) {
+			if (policy.greedyAction(s, hidden, q) == quantized.greedyAction(s, hiddenFloat, qFloat)) same++;
+			quantized.propagate(s, hiddenFloat, qFloat);
+			for (int o = 0; o < q.length; o++) diff = Math.max(diff, Math.abs(q[o] - qFloat[o]));
+		}
+		return new double[] {(double) same / states.length, diff};
+	}
+
+	// bytes allocated per decision by the last latency run
+	private static double allocated;
+
+	/**
+	 * ns per greedy decision with 'quantized', or with 'policy' if it is null
+	 */
+	private static double latency(PolicySnapshot policy, QuantizedPolicy quantized, double[][] states) {
+		double[] hidden = new double[policy.getNumHidden()];
+		double[] q = new double[policy.getNumOutputs()];
+		float[] hiddenFloat = new float[policy.getNumHidden()];
+		float[] qFloat = new float[policy.getNumOutputs()];
+		long start = 0;
+		long bytes = 0;
+		for (int round = 0; round < 2; round++) { // warm-up, then measured
+			start = System.nanoTime();
+			bytes = BenchmarkUtil.allocatedBytes();
+			for (int i = 0; i < DECISIONS; i++) {
+				double[] s = states[i % states.length];
+				sink += quantized != null ? quantized.greedyAction(s, hiddenFloat, qFloat) : policy.greedyAction(s, hidden, q);
+			}
+		}
+		allocated = (double) (BenchmarkUtil.allocatedBytes() - bytes) / DECISIONS;
+		return (double) (System.nanoTime() - start) / DECISIONS;
+	}
+}
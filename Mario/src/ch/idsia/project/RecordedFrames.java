@@ -0,0 +1,512 @@
+package ch.idsia.project;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import ch.idsia.benchmark.mario.environments.Environment;
+import ch.idsia.benchmark.mario.environments.MarioEnvironment;
+import ch.idsia.tools.MarioAIOptions;
+
+/**
+ * Everything UtilAgent reads from the environment, captured frame by frame, so the agent's hot path can be
+ * benchmarked without a live game: asEnvironment() plays the frames back behind the Environment interface.
+ * Frames are written as a gzipped stream of fixed fields plus the merged observation.
+ */
+public final class RecordedFrames {
+
+	private static final int MAGIC = 0x4d465258; // "MFRX"
+	private static final int VERSION = 1;
+
+	static final class Frame {
+		byte[][] scene;
+		int[] egoPos;
+		float x;
+		float y;
+		int mode;
+		boolean onGround;
+		boolean ableToJump;
+		boolean carrying;
+		boolean ableToShoot;
+		int killsTotal;
+		int killsByStomp;
+		int killsByFire;
+		int killsByShell;
+		int status;
+		boolean levelFinished;
+	}
+
+	private final List<Frame> frames = new ArrayList<Frame>();
+	private boolean synthetic;
+
+	/**
+	 * Appends the current frame of 'environment' (call after every tick)
+	 * @param environment
+	 */
+	public void capture(Environment environment) {
+		Frame f = new Frame();
+		capture(environment, f);
+		frames.add(f);
+	}
+
+	/**
+	 * Copies the current frame of 'environment' into 'f', reusing its arrays when they have the right size
+	 * @param environment
+	 * @param f
+	 */
+	static void capture(Environment environment, Frame f) {
+		byte[][] obs = environment.getMergedObservationZZ(1, 1);
+		if (f.scene == null || f.scene.length != obs.length || f.scene[0].length != obs[0].length) {
+			f.scene = new byte[obs.length][obs[0].length];
+		}
+		for (int y = 0; y < obs.length; y++) System.arraycopy(obs[y], 0, f.scene[y], 0, obs[y].length);
+		if (f.egoPos == null) f.egoPos = new int[2];
+		int[] egoPos = environment.getMarioEgoPos();
+		f.egoPos[0] = egoPos[0];
+		f.egoPos[1] = egoPos[1];
+		float[] pos = environment.getMarioFloatPos();
+		f.x = pos[0];
+		f.y = pos[1];
+		f.mode = environment.getMarioMode();
+		f.onGround = environment.isMarioOnGround();
+		f.ableToJump = environment.isMarioAbleToJump();
+		f.carrying = environment.isMarioCarrying();
+		f.ableToShoot = environment.isMarioAbleToShoot();
+		f.killsTotal = environment.getKillsTotal();
+		f.killsByStomp = environment.getKillsByStomp();
+		f.killsByFire = environment.getKillsByFire();
+		f.killsByShell = environment.getKillsByShell();
+		f.status = environment.getMarioStatus();
+		f.levelFinished = environment.isLevelFinished();
+	}
+
+	/**
+	 * Copies frame 'from' into 'to', reusing the arrays of 'to' when they have the right size
+	 */
+	static void copy(Frame from, Frame to) {
+		if (to.scene == null || to.scene.length != from.scene.length || to.scene[0].length != from.scene[0].length) {
+			to.scene = new byte[from.scene.length][from.scene[0].length];
+		}
+		for (int y = 0; y < from.scene.length; y++) System.arraycopy(from.scene[y], 0, to.scene[y], 0, from.scene[y].length);
+		if (to.egoPos == null) to.egoPos = new int[2];
+		to.egoPos[0] = from.egoPos[0];
+		to.egoPos[1] = from.egoPos[1];
+		to.x = from.x;
+		to.y = from.y;
+		to.mode = from.mode;
+		to.onGround = from.onGround;
+		to.ableToJump = from.ableToJump;
+		to.carrying = from.carrying;
+		to.ableToShoot = from.ableToShoot;
+		to.killsTotal = from.killsTotal;
+		to.killsByStomp = from.killsByStomp;
+		to.killsByFire = from.killsByFire;
+		to.killsByShell = from.killsByShell;
+		to.status = from.status;
+		to.levelFinished = from.levelFinished;
+	}
+
+	public int size() {
+		return frames.size();
+	}
+
+	/**
+	 * True if these frames were generated rather than recorded from the game
+	 */
+	public boolean isSynthetic() {
+		return synthetic;
+	}
+
+	Frame get(int i) {
+		return frames.get(i);
+	}
+
+	public void write(File file) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(file))));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(frames.size());
+			for (Frame f : frames) {
+				out.writeByte(f.scene.length);
+				out.writeByte(f.scene[0].length);
+				for (byte[] row : f.scene) out.write(row);
+				out.writeByte(f.egoPos[0]);
+				out.writeByte(f.egoPos[1]);
+				out.writeFloat(f.x);
+				out.writeFloat(f.y);
+				out.writeByte(f.mode);
+				out.writeByte((f.onGround ? 1 : 0) | (f.ableToJump ? 2 : 0) | (f.carrying ? 4 : 0)
+						| (f.ableToShoot ? 8 : 0) | (f.levelFinished ? 16 : 0));
+				out.writeShort(f.killsTotal);
+				out.writeShort(f.killsByStomp);
+				out.writeShort(f.killsByFire);
+				out.writeShort(f.killsByShell);
+				out.writeByte(f.status);
+			}
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	public static RecordedFrames read(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) throw new IOException(file + " is not a frame recording");
+			RecordedFrames r = new RecordedFrames();
+			int n = in.readInt();
+			for (int i = 0; i < n; i++) {
+				Frame f = new Frame();
+				int h = in.readUnsignedByte();
+				int w = in.readUnsignedByte();
+				f.scene = new byte[h][w];
+				for (byte[] row : f.scene) in.readFully(row);
+				f.egoPos = new int[] {in.readUnsignedByte(), in.readUnsignedByte()};
+				f.x = in.readFloat();
+				f.y = in.readFloat();
+				f.mode = in.readUnsignedByte();
+				int flags = in.readUnsignedByte();
+				f.onGround = (flags & 1) != 0;
+				f.ableToJump = (flags & 2) != 0;
+				f.carrying = (flags & 4) != 0;
+				f.ableToShoot = (flags & 8) != 0;
+				f.levelFinished = (flags & 16) != 0;
+				f.killsTotal = in.readShort();
+				f.killsByStomp = in.readShort();
+				f.killsByFire = in.readShort();
+				f.killsByShell = in.readShort();
+				f.status = in.readByte();
+				r.frames.add(f);
+			}
+			return r;
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Generated stand-in for a recording: Mario drifting right over random scenes, with occasional kills and hits
+	 * @param n
+	 * @param seed
+	 */
+	public static RecordedFrames synthetic(int n, long seed) {
+		Random rng = new Random(seed);
+		RecordedFrames r = new RecordedFrames();
+		r.synthetic = true;
+		float x = 32;
+		float y = 200;
+		int mode = 2;
+		int kills = 0;
+		for (int i = 0; i < n; i++) {
+			Frame f = new Frame();
+			f.scene = BenchmarkUtil.randomScene(rng);
+			f.egoPos = BenchmarkUtil.EGO_POS.clone();
+			x += rng.nextInt(10) == 0 ? 0 : (float) (rng.nextDouble()*4 - 1);
+			y += (float) (rng.nextDouble()*6 - 3);
+			if (rng.nextInt(500) == 0 && mode > 0) mode--;
+			if (rng.nextInt(100) == 0) kills++;
+			f.x = x;
+			f.y = y;
+			f.mode = mode;
+			f.onGround = rng.nextInt(3) != 0;
+			f.ableToJump = f.onGround && rng.nextBoolean();
+			f.carrying = rng.nextInt(50) == 0;
+			f.ableToShoot = mode == 2;
+			f.killsTotal = kills;
+			f.killsByStomp = kills;
+			f.status = 2; // running
+			r.frames.add(f);
+		}
+		return r;
+	}
+
+	/**
+	 * Generated stand-in with the temporal structure of real play, where synthetic() has none: Mario runs,
+	 * waits, backs off and jumps through one fixed generated level of ground, gaps, pipes, bricks and walking
+	 * goombas, so the scene scrolls a cell at a time and stands still while he does. He gets stuck against pipes,
+	 * loses a mode when a goomba touches him, and when he dies or finishes the level it starts again from the
+	 * beginning, with levelFinished set on the last frame of each episode. Episodes time out after
+	 * 2000 frames.
+	 * @param n
+	 * @param seed
+	 */
+	public static RecordedFrames syntheticPlay(int n, long seed) {
+		Random rng = new Random(seed);
+		RecordedFrames r = new RecordedFrames();
+		r.synthetic = true;
+		SyntheticLevel level = new SyntheticLevel(rng);
+		while (r.frames.size() < n) level.playEpisode(rng, r.frames, n);
+		return r;
+	}
+
+	/**
+	 * The level and the Mario of syntheticPlay; positions are in pixels, 16 to a cell, y growing downwards
+	 */
+	private static final class SyntheticLevel {
+
+		static final int WIDTH = 256;
+		static final int HEIGHT = 15;
+		static final int GROUND = 13; // top row of the ground
+		static final byte SOLID = -60;
+		static final byte PIPE = -85;
+		static final byte BRICK = -24;
+		static final byte HILL = -62;
+		static final byte GOOMBA = 80;
+		static final int TIME_LIMIT = 2000; // frames
+
+		final byte[][] cells = new byte[HEIGHT][WIDTH];
+		final int[] goombaStart;
+		final int[] goombaX;
+		final int[] goombaDir;
+		final boolean[] goombaAlive;
+
+		SyntheticLevel(Random rng) {
+			int goombas = 0;
+			int[] starts = new int[WIDTH];
+			for (int x = 0; x < WIDTH; x++) {
+				boolean flat = x < 12 || x >= WIDTH - 12;
+				if (!flat && rng.nextInt(25) == 0) { // a gap of 2 or 3 cells
+					x += 1 + rng.nextInt(2);
+					continue;
+				}
+				for (int y = GROUND; y < HEIGHT; y++) cells[y][x] = SOLID;
+				if (flat) continue;
+				int feature = rng.nextInt(20);
+				if (feature == 0 && cells[GROUND][x - 1] == SOLID) { // a pipe two cells wide
+					int h = 2 + rng.nextInt(2);
+					for (int y = GROUND - h; y < GROUND; y++) cells[y][x] = PIPE;
+					if (x + 1 < WIDTH) {
+						for (int y = GROUND; y < HEIGHT; y++) cells[y][x + 1] = SOLID;
+						for (int y = GROUND - h; y < GROUND; y++) cells[y][x + 1] = PIPE;
+						x++;
+					}
+				}
+				else if (feature == 1) {
+					for (int k = 0; k < 4 && x + k < WIDTH; k++) cells[GROUND - 4][x + k] = BRICK;
+				}
+				else if (feature == 2) cells[GROUND - 1][x] = HILL;
+				else if (feature == 3) starts[goombas++] = x;
+			}
+			goombaStart = new int[goombas];
+			System.arraycopy(starts, 0, goombaStart, 0, goombas);
+			goombaX = new int[goombas];
+			goombaDir = new int[goombas];
+			goombaAlive = new boolean[goombas];
+		}
+
+		boolean solid(int cx, int cy) {
+			if (cx < 0 || cx >= WIDTH || cy < 0 || cy >= HEIGHT) return false;
+			byte c = cells[cy][cx];
+			return c == SOLID || c == PIPE || c == BRICK;
+		}
+
+		/**
+		 * Plays from the start until Mario dies or finishes, or 'frames' holds n frames
+		 */
+		void playEpisode(Random rng, List<Frame> frames, int n) {
+			for (int g = 0; g < goombaX.length; g++) {
+				goombaX[g] = goombaStart[g];
+				goombaDir[g] = -1;
+				goombaAlive[g] = true;
+			}
+			float x = 40;
+			float y = GROUND*16 - 8;
+			float vy = 0;
+			int mode = 2;
+			int kills = 0;
+			int invulnerable = 0;
+			int intent = 0; // 0 run right, 1 wait, 2 back off
+			int intentFrames = 0;
+			for (int t = 0; frames.size() < n; t++) {
+				if (intentFrames-- <= 0) {
+					int roll = rng.nextInt(10);
+					intent = roll < 7 ? 0 : roll < 9 ? 1 : 2;
+					intentFrames = intent == 0 ? 20 + rng.nextInt(60) : 5 + rng.nextInt(25);
+				}
+				if (t % 12 == 0) moveGoombas();
+
+				int cx = (int) (x / 16);
+				int cy = (int) (y / 16);
+				boolean onGround = vy == 0 && solid(cx, (int) ((y + 9) / 16));
+				float vx = intent == 0 ? 3 : intent == 2 ? -2 : 0;
+				float probe = x + vx + (vx > 0 ? 8 : -8);
+				boolean blocked = vx != 0 && solid((int) (probe / 16), cy);
+				if (!blocked && probe > 0) x += vx;
+				boolean gapAhead = vx > 0 && !solid((int) ((x + 16) / 16), GROUND);
+				if (onGround && rng.nextInt(blocked ? 15 : gapAhead ? 3 : 60) == 0) vy = -8;
+				vy = Math.min(vy + 0.5f, 8);
+				float ny = y + vy;
+				cx = (int) (x / 16);
+				if (vy > 0 && solid(cx, (int) ((ny + 8) / 16))) {
+					ny = (int) ((ny + 8) / 16)*16 - 8;
+					vy = 0;
+				}
+				else if (vy < 0 && solid(cx, (int) ((ny - 8) / 16))) vy = 0;
+				y = ny;
+				cy = (int) (y / 16);
+				onGround = vy == 0 && solid(cx, (int) ((y + 9) / 16));
+
+				int status = 2;
+				if (invulnerable > 0) invulnerable--;
+				for (int g = 0; g < goombaX.length; g++) {
+					if (!goombaAlive[g] || goombaX[g] != cx || cy != GROUND - 1) continue;
+					if (vy > 0) { // landing on it
+						goombaAlive[g] = false;
+						kills++;
+					}
+					else if (invulnerable == 0) {
+						if (mode == 0) status = 0;
+						else mode--;
+						invulnerable = 32;
+					}
+				}
+				if (y > HEIGHT*16 || t == TIME_LIMIT) status = 0;
+				else if (cx >= WIDTH - 2) status = 1;
+
+				Frame f = new Frame();
+				f.scene = new byte[BenchmarkUtil.SCENE_SIZE][BenchmarkUtil.SCENE_SIZE];
+				f.egoPos = BenchmarkUtil.EGO_POS.clone();
+				for (int sy = 0; sy < f.scene.length; sy++) {
+					for (int sx = 0; sx < f.scene[sy].length; sx++) {
+						int lx = cx - f.egoPos[1] + sx;
+						int ly = cy - f.egoPos[0] + sy;
+						if (lx >= 0 && lx < WIDTH && ly >= 0 && ly < HEIGHT) f.scene[sy][sx] = cells[ly][lx];
+					}
+				}
+				for (int g = 0; g < goombaX.length; g++) {
+					int sx = goombaX[g] - cx + f.egoPos[1];
+					int sy = GROUND - 1 - cy + f.egoPos[0];
+					if (goombaAlive[g] && sx >= 0 && sx < f.scene[0].length && sy >= 0 && sy < f.scene.length) {
+						f.scene[sy][sx] = GOOMBA;
+					}
+				}
+				f.x = x;
+				f.y = y;
+				f.mode = mode;
+				f.onGround = onGround;
+				f.ableToJump = onGround;
+				f.ableToShoot = mode == 2;
+				f.killsTotal = kills;
+				f.killsByStomp = kills;
+				f.status = status;
+				f.levelFinished = status != 2;
+				frames.add(f);
+				if (f.levelFinished) return;
+			}
+		}
+
+		private void moveGoombas() {
+			for (int g = 0; g < goombaX.length; g++) {
+				int next = goombaX[g] + goombaDir[g];
+				if (solid(next, GROUND - 1) || !solid(next, GROUND)) goombaDir[g] = -goombaDir[g];
+				else goombaX[g] = next;
+			}
+		}
+	}
+
+	/**
+	 * An Environment that serves these frames in order: tick() moves to the next one (wrapping around),
+	 * reset() goes back to the first, and performAction() is ignored.
+	 * Methods UtilAgent doesn't use throw UnsupportedOperationException.
+	 * It is a dynamic proxy, so each call costs a little more than on the real environment.
+	 */
+	public Environment asEnvironment() {
+		return (Environment) Proxy.newProxyInstance(Environment.class.getClassLoader(),
+				new Class<?>[] {Environment.class}, new Player());
+	}
+
+	private class Player implements InvocationHandler {
+
+		private int cursor;
+
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			String name = method.getName();
+			if (name.equals("tick")) {
+				cursor = cursor + 1 < frames.size() ? cursor + 1 : 0;
+				return null;
+			}
+			if (name.equals("reset")) {
+				cursor = 0;
+				return null;
+			}
+			if (name.equals("toString")) return "RecordedFrames environment at frame " + cursor;
+			return answer(frames.get(cursor), proxy, method, args);
+		}
+	}
+
+	/**
+	 * What Environment 'method' returns at frame 'f', for the playback proxies; performAction is ignored
+	 */
+	static Object answer(Frame f, Object proxy, Method method, Object[] args) {
+		String name = method.getName();
+		if (name.equals("getMergedObservationZZ")) return f.scene;
+		if (name.equals("getMarioEgoPos")) return f.egoPos;
+		if (name.equals("getMarioFloatPos")) return new float[] {f.x, f.y};
+		if (name.equals("getMarioMode")) return f.mode;
+		if (name.equals("isMarioOnGround")) return f.onGround;
+		if (name.equals("isMarioAbleToJump")) return f.ableToJump;
+		if (name.equals("isMarioCarrying")) return f.carrying;
+		if (name.equals("isMarioAbleToShoot")) return f.ableToShoot;
+		if (name.equals("getKillsTotal")) return f.killsTotal;
+		if (name.equals("getKillsByStomp")) return f.killsByStomp;
+		if (name.equals("getKillsByFire")) return f.killsByFire;
+		if (name.equals("getKillsByShell")) return f.killsByShell;
+		if (name.equals("getMarioStatus")) return f.status;
+		if (name.equals("isLevelFinished")) return f.levelFinished;
+		if (name.equals("performAction")) return null;
+		if (name.equals("hashCode")) return System.identityHashCode(proxy);
+		if (name.equals("equals")) return proxy == args[0];
+		throw new UnsupportedOperationException(name + " is not recorded");
+	}
+
+	/**
+	 * Records frames of the live game, with random actions, into a fixture file.
+	 * Needs the MarioAI benchmark on the class path; extra arguments are passed to MarioAIOptions.
+	 *
+	 * Usage: RecordedFrames [output file] [frames] [MarioAIOptions args...]
+	 */
+	public static void main(String[] args) throws IOException {
+		File out = new File(args.length > 0 ? args[0] : "frames.bin.gz");
+		int n = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+		String[] marioArgs = new String[Math.max(0, args.length - 2)];
+		if (args.length > 2) System.arraycopy(args, 2, marioArgs, 0, marioArgs.length);
+		MarioAIOptions options = new MarioAIOptions(marioArgs);
+		options.setVisualization(false);
+
+		Random rng = new Random();
+		Environment environment = MarioEnvironment.getInstance();
+		RecordedFrames recording = new RecordedFrames();
+		boolean[] keys = new boolean[Environment.numberOfKeys];
+		environment.reset(options);
+		while (recording.size() < n) {
+			environment.tick();
+			recording.capture(environment);
+			if (environment.isLevelFinished()) {
+				environment.reset(options);
+				continue;
+			}
+			if (rng.nextInt(8) == 0) {
+				for (int k = 0; k < keys.length; k++) keys[k] = rng.nextInt(3) == 0;
+			}
+			environment.performAction(keys);
+		}
+		recording.write(out);
+		System.out.println("wrote " + n + " frames to " + out);
+		System.exit(0);
+	}
+}
@@ -1,5 +1,6 @@
 package ch.idsia.project;
 
+import java.util.Arrays;
 import java.util.Random;
 
 /**
@@ -12,24 +13,105 @@ public class ReplayMemory {
 	private int capacity;
 	private int counter;
 	private boolean full;
+	private long added; // transitions ever added, for incremental checkpoints
+	private int stateSize;
 	
 	private double[][] states;
+	// packed mode: every state is stateSize bits in 'words' longs, one flat ring of (capacity+1)*words
+	private boolean packed;
+	private int words;
+	private long[] packedStates;
+	// interned mode: ring slot i holds a handle into 'pool' (NO_STATE if empty), one reference each
+	private static final int NO_STATE = -1;
+	private StatePool pool;
+	private int[] handles;
+	// mapped mode: states, rewards, actions and terminal flags all live in 'mapped', and the arrays are null
+	private MappedReplayMemory mapped;
 	private double[] rewards;
 	private int[] actions;
 	private boolean[] terminals;
 	private Random rng;
 	
+	// prioritized mode: transition i is sampled with probability priorities.get(i) / priorities.total()
+	private static final double PRIORITY_EPSILON = 1e-6;
+	private SumTree priorities;
+	private double alpha;
+	private double beta;
+	private double maxPriority = 1.0;
+	
+	// n-step mode: transition i's discounted return over up to nStep steps, the state slot it bootstraps from,
+	// the discount of that bootstrap (gamma^m after m steps), and whether the episode ended within them
+	private int nStep;
+	private double nGamma;
+	private double[] nReturns;
+	private int[] nNext;
+	private double[] nDiscounts;
+	private boolean[] nTerminals;
+	// the last 'pending' transitions, whose n steps aren't over: a ring from pendingHead, oldest first
+	private int[] pendingSlots;
+	private double[] pendingReturns;
+	private double[] pendingDiscounts;
+	private int pendingHead;
+	private int pending;
+	
 	public ReplayMemory(int N, int stateSize) {
+		this(N, stateSize, false);
+	}
+	
+	/**
+	 * @param N capacity in transitions
+	 * @param stateSize length of the state vectors
+	 * @param packed if true, states are stored as bits rather than doubles; 
+	 * only valid when every feature is 0 or 1, as with UtilAgent.getState
+	 */
+	public ReplayMemory(int N, int stateSize, boolean packed) {
 		capacity = N;
 		counter = 0;
 		full = false;
-		states = new double[capacity+1][stateSize]; // +1 because 'next state' is in there too
+		this.stateSize = stateSize;
+		this.packed = packed;
+		if (packed) {
+			words = StateBits.words(stateSize);
+			packedStates = new long[(capacity+1)*words]; // +1 because 'next state' is in there too
+		}
+		else states = new double[capacity+1][]; // +1 because 'next state' is in there too; rows are the caller's arrays
 		rewards = new double[capacity];
 		actions = new int[capacity];
 		terminals = new boolean[capacity];
 //		states[counter] = initial_state;
 		rng = new Random();
 	}
+
+	/**
+	 * Interned mode: every distinct state is stored once in 'pool', and ring slots only hold handles to it.
+	 * Only valid when every feature is 0 or 1, as with UtilAgent.getState.
+	 * @param N capacity in transitions
+	 * @param pool where the states are kept
+	 */
+	public ReplayMemory(int N, StatePool pool) {
+		this(N, pool.getStateSize(), false);
+		states = null;
+		this.pool = pool;
+		words = StateBits.words(stateSize);
+		handles = new int[capacity+1];
+		Arrays.fill(handles, NO_STATE);
+	}
+
+	/**
+	 * Mapped mode: packed states and transitions are kept in 'file' rather than on the heap,
+	 * resuming from whatever it already holds. Only valid when every feature is 0 or 1, as with UtilAgent.getState,
+	 * and actions are 0..127. Prioritized and n-step modes still keep their own arrays on the heap.
+	 * @param file not shared with any other memory
+	 */
+	public ReplayMemory(MappedReplayMemory file) {
+		mapped = file;
+		capacity = file.getCapacity();
+		stateSize = file.getStateSize();
+		counter = file.getCount();
+		full = file.isFull();
+		added = file.getAdded();
+		rng = new Random();
+	}
 	
 	/**
 	 * 
@@ -38,25 +120,190 @@ public class ReplayMemory {
 	 * @param sp
 	 */
 	public void addTransition(double r, int a, double[] sp, boolean t) {
-		states[counter+1] = sp;
-		rewards[counter] = r;
-		actions[counter] = a;
-		terminals[counter] = t;
+		long start = Metrics.start();
+		setTransition(counter, r, a, t);
+		if (mapped != null) mapped.setState(counter+1, sp);
+		else if (pool != null) setHandle(counter+1, pool.intern(sp));
+		else if (packed) pack(sp, counter+1);
+		else states[counter+1] = sp;
+		// new transitions are replayed at least once; in n-step mode, once their n steps are over
+		if (priorities != null) priorities.set(counter, nStep > 0 ? 0 : maxPriority);
+		if (nStep > 0) advanceNStep(counter, r, t, counter+1);
+		added++;
 		counter++;
 		if (counter >= capacity) {
 			counter = 0;
 			full = true;
+			// s' of the last slot is s of the first one after wrapping around
+			if (mapped != null) mapped.copyState(capacity, 0);
+			else if (pool != null) {
+				pool.retain(handles[capacity]);
+				setHandle(0, handles[capacity]);
+			}
+			else if (packed) System.arraycopy(packedStates, capacity*words, packedStates, 0, words);
+			else states[0] = states[capacity];
 		}
+		if (priorities != null && full) priorities.set(counter, 0); // about to be overwritten
+		if (mapped != null) mapped.setCursor(counter, full, added); // last, so a crash just loses this transition
+		Metrics.replayFill(full ? capacity : counter, capacity);
+		Metrics.stop(Metrics.Stage.ADD_TRANSITION, start);
 	}
 	
 	public void setFirstState(double[] s) {
-		states[counter] = s;
+		if (nStep > 0) flushNStep(counter);
+		if (mapped != null) mapped.setState(counter, s);
+		else if (pool != null) setHandle(counter, pool.intern(s));
+		else if (packed) pack(s, counter);
+		else states[counter] = s;
 	}
 	
 	public int getCount() {
 		return counter;
 	}
 	
+	public boolean isFull() {
+		return full;
+	}
+	
+	/**
+	 * Total number of transitions ever added
+	 */
+	public long getAdded() {
+		return added;
+	}
+	
+	public int getCapacity() {
+		return capacity;
+	}
+	
+	public boolean isPacked() {
+		return packed;
+	}
+
+	/**
+	 * True if states are kept as the caller's arrays, i.e. neither packed, interned nor mapped
+	 */
+	public boolean isDense() {
+		return states != null;
+	}
+
+	/**
+	 * The pool states are interned in, or null if they aren't
+	 */
+	public StatePool getStatePool() {
+		return pool;
+	}
+
+	/**
+	 * The file the memory is kept in, or null if it is on the heap
+	 */
+	public MappedReplayMemory getMappedFile() {
+		return mapped;
+	}
+	
+	/**
+	 * Switches to prioritized replay: transitions are sampled in proportion to (|TD error| + eps)^alpha,
+	 * and minibatches carry importance-sampling weights (p_i / p_min)^-beta.
+	 * Transitions already stored get the same priority, as do new ones until their TD error is known.
+	 * @param alpha how much prioritization is used, 0 being uniform
+	 * @param beta how much of the sampling bias is corrected, 1 being fully
+	 */
+	public void enablePrioritized(double alpha, double beta) {
+		this.alpha = alpha;
+		this.beta = beta;
+		priorities = new SumTree(capacity);
+		int stored = full ? capacity : counter;
+		for (int i = 0; i < stored; i++) {
+			if (!(full && i == counter)) priorities.set(i, maxPriority);
+		}
+		for (int k = 0; k < pending; k++) priorities.set(pendingSlots[(pendingHead + k) % nStep], 0);
+	}
+	
+	/**
+	 * Switches to n-step returns: each transition's reward becomes the discounted sum of its own and the next
+	 * n-1 rewards of the episode, its s' the state n steps later, and its bootstrap discount gamma^n
+	 * (see MinibatchBuffer.getDiscounts), or fewer steps and no bootstrap when the episode ends within them.
+	 * They are built as transitions are added, from a window of the last n, in O(n) per transition;
+	 * the last n-1 added aren't sampled until their n steps are over.
+	 * As with one-step transitions, an episode should end with a terminal transition: the window
+	 * is cut at the next setFirstState, which overwrites the state the cut transitions bootstrap from.
+	 * Transitions already stored are converted, taking only terminal flags as episode boundaries.
+	 * Only minibatches (sampleMinibatch, fillMinibatch) carry the n-step transitions and their discounts:
+	 * the one-step getters of rewards, next states and terminal flags throw IllegalStateException from then on.
+	 * @param n steps, at least 1 (1 being the usual one-step transitions)
+	 * @param gamma discount of the rewards within the n steps; the agent's own gamma is then unused
+	 */
+	public void enableNStep(int n, double gamma) {
+		if (n < 1) throw new IllegalArgumentException("n " + n + " is not positive");
+		nStep = n;
+		nGamma = gamma;
+		nReturns = new double[capacity];
+		nNext = new int[capacity];
+		nDiscounts = new double[capacity];
+		nTerminals = new boolean[capacity];
+		pendingSlots = new int[n];
+		pendingReturns = new double[n];
+		pendingDiscounts = new double[n];
+		rebuildNStep();
+		if (priorities != null) enablePrioritized(alpha, beta);
+	}
+	
+	/**
+	 * Steps per transition: 0 if n-step mode is off
+	 */
+	public int getNStep() {
+		return nStep;
+	}
+	
+	public boolean isPrioritized() {
+		return priorities != null;
+	}
+	
+	/**
+	 * Usually annealed towards 1 over the course of training
+	 * @param beta
+	 */
+	public void setBeta(double beta) {
+		this.beta = beta;
+	}
+	
+	/**
+	 * Updates the priorities of the transitions in 'batch' from the TD errors DQNAgent.train wrote into it
+	 * @param batch
+	 */
+	public void updatePriorities(MinibatchBuffer batch) {
+		if (priorities == null) return;
+		int[] idx = batch.getIndices();
+		double[] td = batch.getTdErrors();
+		for (int i = 0; i < batch.size(); i++) {
+			if (full && idx[i] == counter) continue; // overwritten since it was sampled
+			double p = Math.pow(Math.abs(td[i]) + PRIORITY_EPSILON, alpha);
+			priorities.set(idx[i], p);
+			if (p > maxPriority) maxPriority = p;
+		}
+	}
+	
+	public int getStateSize() {
+		return stateSize;
+	}
+	
+	/**
+	 * Approximate heap cost of one stored transition, in bytes (array headers amortized away).
+	 * Dense rows are counted with a 16-byte object header and an 8-byte reference.
+	 * Interned states are counted as the handle plus the transition's share of the pool.
+	 * Mapped transitions are counted as their record in the file.
+	 */
+	public long bytesPerTransition() {
+		if (pool != null) {
+			long stored = Math.max(1, full ? capacity : counter);
+			return 4 + pool.bytes() / stored + 8 + 4 + 1;
+		}
+		long nStepBytes = nStep > 0 ? 8 + 4 + 8 + 1 : 0; // n-step return, next slot, discount, terminal
+		if (mapped != null) return mapped.bytesPerTransition() + nStepBytes;
+		long stateBytes = packed ? 8L*words : 8L*stateSize + 16 + 8;
+		return stateBytes + 8 + 4 + 1 + nStepBytes; // reward, action, terminal
+	}
+	
 	/**
 	 * Returns an array of indices for the minibatch
 	 * @param size
@@ -64,11 +311,130 @@ public class ReplayMemory {
 	 */
 	public int[] sampleMinibatchIdx(int size) {
 		int[] idx = new int[size];
+		sampleMinibatchIdx(idx, size);
+		return idx;
+	}
+	
+	/**
+	 * Writes 'size' sampled transition indices into 'idx', without allocating.
+	 * Once the memory is full, the slot about to be overwritten is never sampled,
+	 * since its s has already been replaced by the latest s'. Nor are n-step transitions still pending.
+	 * In prioritized mode, one index is drawn from each of 'size' equal slices of the total priority.
+	 * @param idx
+	 * @param size
+	 */
+	public void sampleMinibatchIdx(int[] idx, int size) {
+		if (priorities != null) {
+			double segment = priorities.total() / size;
+			for (int i = 0; i < size; i++) {
+				idx[i] = priorities.find((i + rng.nextDouble()) * segment);
+			}
+			return;
+		}
+		if (nStep > 0) {
+			// the pending ones are the newest, just before 'counter'
+			for (int i = 0; i < size; i++) {
+				if (full) idx[i] = (counter + 1 + rng.nextInt(capacity - 1 - pending)) % capacity;
+				else idx[i] = rng.nextInt(counter - pending);
+			}
+			return;
+		}
 		for (int i = 0; i < size; i++) {
-			int max = full ? capacity : counter;
-			idx[i] = rng.nextInt(max); 
+			if (full) {
+				int j = rng.nextInt(capacity - 1);
+				idx[i] = j >= counter ? j + 1 : j;
+			}
+			else idx[i] = rng.nextInt(counter); 
 		}
-		return idx;
+	}
+	
+	/**
+	 * Samples a minibatch and copies it into the preallocated 'batch'
+	 * @param batch
+	 */
+	public void sampleMinibatch(MinibatchBuffer batch) {
+		long t = Metrics.start();
+		sampleMinibatchIdx(batch.getIndices(), batch.size());
+		fillMinibatch(batch);
+		double[] w = batch.getWeights();
+		if (priorities == null) {
+			for (int i = 0; i < batch.size(); i++) w[i] = 1.0;
+			Metrics.stop(Metrics.Stage.SAMPLE, t);
+			return;
+		}
+		// (N*P(i))^-beta normalized by its largest possible value, which belongs to the smallest priority
+		int[] idx = batch.getIndices();
+		double min = priorities.min();
+		for (int i = 0; i < batch.size(); i++) {
+			w[i] = Math.pow(priorities.get(idx[i]) / min, -beta);
+		}
+		Metrics.stop(Metrics.Stage.SAMPLE, t);
+	}
+	
+	/**
+	 * Copies the transitions at batch.getIndices() into the flat arrays of 'batch', in one pass
+	 * @param batch
+	 */
+	public void fillMinibatch(MinibatchBuffer batch) {
+		int[] idx = batch.getIndices();
+		double[] r = batch.getRewards();
+		int[] a = batch.getActions();
+		boolean[] t = batch.getTerminals();
+		batch.setDiscounted(nStep > 0);
+		if (nStep > 0) {
+			fillNStep(batch);
+			return;
+		}
+		if (batch.isSparse()) {
+			int[] s = batch.getActiveStates();
+			int[] sOff = batch.getStateOffsets();
+			int[] sp = batch.getActiveNextStates();
+			int[] spOff = batch.getNextStateOffsets();
+			int ns = 0;
+			int nsp = 0;
+			for (int i = 0; i < batch.size(); i++) {
+				int j = idx[i];
+				sOff[i] = ns;
+				ns += getActive(j, s, ns);
+				spOff[i] = nsp;
+				nsp += getActive(j+1, sp, nsp);
+				r[i] = reward(j);
+				a[i] = getA(j);
+				t[i] = terminal(j);
+			}
+			sOff[batch.size()] = ns;
+			spOff[batch.size()] = nsp;
+			return;
+		}
+		double[] s = batch.getStates();
+		double[] sp = batch.getNextStates();
+		for (int i = 0; i < batch.size(); i++) {
+			int j = idx[i];
+			getS(j, s, i*stateSize);
+			getS(j+1, sp, i*stateSize);
+			r[i] = reward(j);
+			a[i] = getA(j);
+			t[i] = terminal(j);
+		}
+	}
+	
+	/**
+	 * Writes the indices of the non-zero features of state slot i into 'out' from 'offset'
+	 * @param i
+	 * @param out
+	 * @param offset
+	 * @return how many were written
+	 */
+	public int getActive(int i, int[] out, int offset) {
+		if (mapped != null) return mapped.getActive(i, out, offset);
+		if (pool != null) return pool.active(handles[i], out, offset);
+		if (packed) return StateBits.active(packedStates, i*words, words, out, offset);
+		int n = offset;
+		double[] s = states[i];
+		for (int b = 0; b < stateSize; b++) {
+			if (s[b] != 0) out[n++] = b;
+		}
+		return n - offset;
 	}
 	
 	/**
@@ -77,13 +443,31 @@ public class ReplayMemory {
 	 * @return
 	 */
 	public double[] getS(int i) {
+		if (states == null) {
+			double[] s = new double[stateSize];
+			getS(i, s, 0);
+			return s;
+		}
 		return states[i];
 	}
 	
+	/**
+	 * Copies s for transition i into 'out' starting at 'offset', without allocating
+	 * @param i
+	 * @param out
+	 * @param offset
+	 */
+	public void getS(int i, double[] out, int offset) {
+		if (mapped != null) mapped.getS(i, out, offset);
+		else if (pool != null) pool.unpack(handles[i], out, offset);
+		else if (packed) unpack(i, out, offset);
+		else System.arraycopy(states[i], 0, out, offset, stateSize);
+	}
+	
 	public double[][] getStates(int[] idx) {
-		double[][] sBatch = new double[idx.length][states[0].length];
+		double[][] sBatch = new double[idx.length][];
 		for (int i = 0; i < idx.length; i++) {
-			sBatch[i] = states[i];
+			sBatch[i] = getS(idx[i]);
 		}
 		return sBatch;
 	}
@@ -94,13 +478,25 @@ public class ReplayMemory {
 	 * @return
 	 */
 	public double[] getSPrime(int i) {
-		return states[i+1];
+		checkOneStep();
+		return getS(i+1);
+	}
+	
+	/**
+	 * Copies s' for transition i into 'out' starting at 'offset', without allocating
+	 * @param i
+	 * @param out
+	 * @param offset
+	 */
+	public void getSPrime(int i, double[] out, int offset) {
+		checkOneStep();
+		getS(i+1, out, offset);
 	}
 	
 	public double[][] getStatesPrime(int[] idx) {
-		double[][] sBatch = new double[idx.length][states[0].length];
+		double[][] sBatch = new double[idx.length][];
 		for (int i = 0; i < idx.length; i++) {
-			sBatch[i] = states[i+1];
+			sBatch[i] = getSPrime(idx[i]);
 		}
 		return sBatch;
 	}
@@ -111,13 +507,15 @@ public class ReplayMemory {
 	 * @return
 	 */
 	public double getR(int i) {
-		return rewards[i];
+		checkOneStep();
+		return reward(i);
 	}
 	
 	public double[] getRewards(int[] idx) {
+		checkOneStep();
 		double[] rBatch = new double[idx.length];
 		for (int i = 0; i < idx.length; i++) {
-			rBatch[i] = rewards[i];
+			rBatch[i] = reward(idx[i]);
 		}
 		return rBatch;
 	}
@@ -128,13 +526,13 @@ public class ReplayMemory {
 	 * @return
 	 */
 	public int getA(int i) {
-		return actions[i];
+		return mapped != null ? mapped.getA(i) : actions[i];
 	}
 	
 	public int[] getActions(int[] idx) {
 		int[] aBatch = new int[idx.length];
 		for (int i = 0; i < idx.length; i++) {
-			aBatch[i] = actions[i];
+			aBatch[i] = getA(idx[i]);
 		}
 		return aBatch;
 	}
@@ -145,15 +543,216 @@ public class ReplayMemory {
 	 * @return
 	 */
 	public boolean getT(int i) {
-		return terminals[i];
+		checkOneStep();
+		return terminal(i);
 	}
 	
 	public boolean[] getTerminals(int[] idx) {
+		checkOneStep();
 		boolean[] tBatch = new boolean[idx.length];
 		for (int i = 0; i < idx.length; i++) {
-			tBatch[i] = terminals[i];
+			tBatch[i] = terminal(idx[i]);
 		}
 		return tBatch;
 	}
 	
+	/**
+	 * Copies state slot i, packed as bits, into 'out' from 'offset' (see Checkpointer).
+	 * A dense slot that was never written reads as all zeros.
+	 */
+	void getPacked(int i, long[] out, int offset) {
+		if (mapped != null) mapped.getPacked(i, out, offset);
+		else if (pool != null && handles[i] != NO_STATE) pool.getPacked(handles[i], out, offset);
+		else if (packed) System.arraycopy(packedStates, i*words, out, offset, words);
+		else if (states != null && states[i] != null) StateBits.pack(states[i], stateSize, out, offset);
+		else for (int w = 0; w < words(); w++) out[offset + w] = 0L;
+	}
+	
+	/**
+	 * Overwrites state slot i with the packed state at src[offset]
+	 */
+	void setPacked(int i, long[] src, int offset) {
+		if (mapped != null) mapped.setState(i, src, offset);
+		else if (pool != null) setHandle(i, pool.intern(src, offset));
+		else if (packed) System.arraycopy(src, offset, packedStates, i*words, words);
+		else {
+			states[i] = new double[stateSize];
+			StateBits.unpack(src, offset, stateSize, states[i], 0);
+		}
+	}
+	
+	/**
+	 * The one-step reward of transition i, in n-step mode too
+	 */
+	double reward(int i) {
+		return mapped != null ? mapped.getR(i) : rewards[i];
+	}
+	
+	/**
+	 * The one-step terminal flag of transition i, in n-step mode too
+	 */
+	boolean terminal(int i) {
+		return mapped != null ? mapped.getT(i) : terminals[i];
+	}
+	
+	/**
+	 * Overwrites the reward, action and terminal flag of transition i
+	 */
+	void setTransition(int i, double r, int a, boolean t) {
+		if (mapped != null) {
+			mapped.setTransition(i, r, a, t);
+			return;
+		}
+		rewards[i] = r;
+		actions[i] = a;
+		terminals[i] = t;
+	}
+	
+	/**
+	 * Restores the ring cursor after every slot has been set. Priorities are not part of a checkpoint:
+	 * in prioritized mode, every transition starts again at the highest priority seen so far.
+	 */
+	void setCursor(int counter, boolean full, long added) {
+		this.counter = counter;
+		this.full = full;
+		this.added = added;
+		if (mapped != null) mapped.setCursor(counter, full, added);
+		if (nStep > 0) rebuildNStep();
+		if (priorities != null) enablePrioritized(alpha, beta);
+	}
+	
+	Random getRandom() {
+		return rng;
+	}
+	
+	void setRandom(Random rng) {
+		this.rng = rng;
+	}
+	
+	/**
+	 * Longs per packed state
+	 */
+	int words() {
+		return StateBits.words(stateSize);
+	}
+	
+	/**
+	 * Guards the one-step getters, whose rewards, next states and terminal flags aren't what n-step mode trains on
+	 */
+	private void checkOneStep() {
+		if (nStep > 0) throw new IllegalStateException("one-step transitions in " + nStep + "-step mode; sample a MinibatchBuffer instead");
+	}
+
+	/**
+	 * Points ring slot 'slot' at 'handle', whose reference it takes over, releasing the state it held
+	 */
+	private void setHandle(int slot, int handle) {
+		if (handles[slot] != NO_STATE) pool.release(handles[slot]);
+		handles[slot] = handle;
+	}
+
+	/**
+	 * Adds the reward of the transition just stored at 'slot' to every pending one, and completes those whose
+	 * n steps are over: the oldest, or all of them if the episode ended
+	 * @param next state slot of the transition's s'
+	 */
+	private void advanceNStep(int slot, double r, boolean t, int next) {
+		int tail = (pendingHead + pending) % nStep;
+		pendingSlots[tail] = slot;
+		pendingReturns[tail] = 0;
+		pendingDiscounts[tail] = 1;
+		pending++;
+		for (int k = 0; k < pending; k++) {
+			int p = (pendingHead + k) % nStep;
+			pendingReturns[p] += pendingDiscounts[p]*r;
+			pendingDiscounts[p] *= nGamma;
+		}
+		if (t) {
+			while (pending > 0) completeNStep(next, true);
+		}
+		else if (pending == nStep) completeNStep(next, false);
+	}
+	
+	/**
+	 * Completes the oldest pending transition, bootstrapping from state slot 'next' unless 'terminal'
+	 */
+	private void completeNStep(int next, boolean terminal) {
+		int slot = pendingSlots[pendingHead];
+		nReturns[slot] = pendingReturns[pendingHead];
+		nNext[slot] = next;
+		nDiscounts[slot] = pendingDiscounts[pendingHead];
+		nTerminals[slot] = terminal;
+		if (priorities != null) priorities.set(slot, maxPriority);
+		pendingHead = (pendingHead + 1) % nStep;
+		pending--;
+	}
+	
+	/**
+	 * Completes every pending transition early, bootstrapping from state slot 'next'
+	 */
+	private void flushNStep(int next) {
+		while (pending > 0) completeNStep(next, false);
+	}
+	
+	/**
+	 * Recomputes the n-step transitions of everything stored, oldest first
+	 */
+	private void rebuildNStep() {
+		pending = 0;
+		pendingHead = 0;
+		int stored = full ? capacity - 1 : counter; // when full, the slot at 'counter' is no longer whole
+		for (int k = 0; k < stored; k++) {
+			int slot = full ? (counter + 1 + k) % capacity : k;
+			advanceNStep(slot, reward(slot), terminal(slot), slot+1);
+		}
+	}
+	
+	/**
+	 * fillMinibatch in n-step mode
+	 */
+	private void fillNStep(MinibatchBuffer batch) {
+		int[] idx = batch.getIndices();
+		double[] r = batch.getRewards();
+		int[] a = batch.getActions();
+		boolean[] t = batch.getTerminals();
+		double[] d = batch.getDiscounts();
+		int ns = 0;
+		int nsp = 0;
+		for (int i = 0; i < batch.size(); i++) {
+			int j = idx[i];
+			if (batch.isSparse()) {
+				batch.getStateOffsets()[i] = ns;
+				ns += getActive(j, batch.getActiveStates(), ns);
+				batch.getNextStateOffsets()[i] = nsp;
+				nsp += getActive(nNext[j], batch.getActiveNextStates(), nsp);
+			}
+			else {
+				getS(j, batch.getStates(), i*stateSize);
+				getS(nNext[j], batch.getNextStates(), i*stateSize);
+			}
+			r[i] = nReturns[j];
+			a[i] = getA(j);
+			d[i] = nDiscounts[j];
+			t[i] = nTerminals[j];
+		}
+		if (batch.isSparse()) {
+			batch.getStateOffsets()[batch.size()] = ns;
+			batch.getNextStateOffsets()[batch.size()] = nsp;
+		}
+	}
+	
+	/**
+	 * Writes state s as bits into ring slot 'slot'
+	 */
+	private void pack(double[] s, int slot) {
+		StateBits.pack(s, stateSize, packedStates, slot*words);
+	}
+	
+	/**
+	 * Expands ring slot 'slot' into 'out' as 0/1 doubles starting at 'offset'
+	 */
+	private void unpack(int slot, double[] out, int offset) {
+		StateBits.unpack(packedStates, slot*words, stateSize, out, offset);
+	}
+	
 }
@@ -0,0 +1,53 @@
+package ch.idsia.project;
+
+import java.util.Random;
+
+/**
+ * Compares the dense and packed storage modes of ReplayMemory:
+ * heap bytes per transition, and how many sampled states per second
+ * can be copied out into a caller-owned batch.
+ *
+ * Usage: ReplayMemoryBenchmark [capacity] [batchSize]
+ */
+public final class ReplayMemoryBenchmark {
+
+	private static final int STATE_SIZE = BenchmarkUtil.STATE_SIZE;
+	private static final int ITERATIONS = 20000;
+
+	public static void main(String[] args) {
+		int capacity = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int batchSize = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+
+		System.out.println("capacity=" + capacity + " batch=" + batchSize);
+		run(capacity, batchSize, false);
+		run(capacity, batchSize, true);
+	}
+
+	private static void run(int capacity, int batchSize, boolean packed) {
+		Random rng = new Random(42);
+
+		long before = BenchmarkUtil.usedMemory();
+		ReplayMemory rm = BenchmarkUtil.filledMemory(capacity, packed, rng);
+		long measured = (BenchmarkUtil.usedMemory() - before) / capacity;
+
+		double[] batch = new double[batchSize*STATE_SIZE];
+		// warm up, then time
+		sample(rm, batch, batchSize, ITERATIONS);
+		long start = System.nanoTime();
+		sample(rm, batch, batchSize, ITERATIONS);
+		long elapsed = System.nanoTime() - start;
+
+		double perSec = (double) ITERATIONS*batchSize / (elapsed / 1e9);
+		System.out.printf("%-6s  bytes/transition: %d (estimated) %d (measured)  sampling: %.0f states/s%n",
+				packed ? "packed" : "dense", rm.bytesPerTransition(), measured, perSec);
+	}
+
+	private static void sample(ReplayMemory rm, double[] batch, int batchSize, int iterations) {
+		for (int it = 0; it < iterations; it++) {
+			int[] idx = rm.sampleMinibatchIdx(batchSize);
+			for (int i = 0; i < batchSize; i++) {
+				rm.getS(idx[i], batch, i*STATE_SIZE);
+			}
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package ch.idsia.project;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import ch.idsia.evolution.MLP;
+
+/**
+ * Dense against sparse-input training steps of QNetwork on the same minibatches.
+ * Pass a file of recorded states (one per line, 255 characters '0'/'1') to use real game states;
+ * otherwise states shaped like UtilAgent.getState output are generated.
+ *
+ * Usage: SparseQNetworkBenchmark [statesFile] [batchSize]
+ */
+public final class SparseQNetworkBenchmark {
+
+	private static final int STEPS = 2000;
+
+	public static void main(String[] args) throws IOException {
+		int batchSize = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+		Random rng = new Random(42);
+
+		List<double[]> recorded;
+		if (args.length > 0) recorded = BenchmarkUtil.loadStates(args[0]);
+		else {
+			recorded = new ArrayList<double[]>();
+			for (int i = 0; i < 20000; i++) recorded.add(BenchmarkUtil.gameLikeState(rng));
+		}
+
+		ReplayMemory rm = new ReplayMemory(recorded.size(), BenchmarkUtil.STATE_SIZE, true);
+		rm.setFirstState(recorded.get(0));
+		long active = 0;
+		for (int i = 1; i < recorded.size(); i++) {
+			double[] s = recorded.get(i);
+			for (double v : s) active += (long) v;
+			rm.addTransition(rng.nextDouble()*2 - 1, rng.nextInt(12), s, false);
+		}
+		System.out.printf("%d states (%s), %.1f active features per state, batch %d%n",
+				recorded.size(), args.length > 0 ? args[0] : "generated", (double) active / (recorded.size() - 1), batchSize);
+
+		// both networks start from the same weights and see the same batches, so they must agree
+		MLP mlp = new MLP(BenchmarkUtil.STATE_SIZE, 64, 12);
+		QNetwork dense = new QNetwork(mlp);
+		QNetwork sparse = new QNetwork(mlp);
+		MinibatchBuffer denseBatch = new MinibatchBuffer(batchSize, BenchmarkUtil.STATE_SIZE);
+		MinibatchBuffer sparseBatch = new MinibatchBuffer(batchSize, BenchmarkUtil.STATE_SIZE, true);
+		double[] y = new double[batchSize*12];
+
+		long denseNanos = 0;
+		long sparseNanos = 0;
+		for (int pass = 0; pass < 2; pass++) { // first pass is warm-up
+			denseNanos = 0;
+			sparseNanos = 0;
+			for (int i = 0; i < STEPS; i++) {
+				rm.sampleMinibatch(denseBatch);
+				System.arraycopy(denseBatch.getIndices(), 0, sparseBatch.getIndices(), 0, batchSize);
+				rm.fillMinibatch(sparseBatch);
+				for (int k = 0; k < y.length; k++) y[k] = rng.nextDouble()*2 - 1;
+
+				long t = System.nanoTime();
+				dense.forward(denseBatch.getStates(), batchSize);
+				dense.backward(y);
+				denseNanos += System.nanoTime() - t;
+
+				t = System.nanoTime();
+				sparse.forwardSparse(sparseBatch.getActiveStates(), sparseBatch.getStateOffsets(), batchSize);
+				sparse.backward(y);
+				sparseNanos += System.nanoTime() - t;
+			}
+		}
+
+		double[] a = dense.propagate(recorded.get(1));
+		double[] b = sparse.propagate(recorded.get(1));
+		double diff = 0;
+		for (int o = 0; o < 12; o++) diff = Math.max(diff, Math.abs(a[o] - b[o]));
+
+		System.out.printf("dense : %8.0f ns/step%n", (double) denseNanos / STEPS);
+		System.out.printf("sparse: %8.0f ns/step  (x%.2f)%n", (double) sparseNanos / STEPS, (double) denseNanos / sparseNanos);
+		System.out.println("max |dense - sparse| after training: " + diff);
+	}
+}
@@ -0,0 +1,133 @@
+package ch.idsia.project;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Packing of binary state vectors (as produced by UtilAgent.getState) into longs,
+ * shared by the replay memories that store states as bits.
+ * A state of stateSize features takes words(stateSize) consecutive longs, feature b being bit b%64 of long b/64.
+ */
+final class StateBits {
+
+	private StateBits() {
+	}
+
+	/**
+	 * Number of longs needed for a state of 'stateSize' features
+	 */
+	static int words(int stateSize) {
+		return (stateSize + 63) / 64;
+	}
+
+	/**
+	 * Writes state s (any non-zero feature counts as 1) into dst starting at 'base'
+	 */
+	static void pack(double[] s, int stateSize, long[] dst, int base) {
+		int words = words(stateSize);
+		for (int w = 0; w < words; w++) {
+			dst[base + w] = word(s, stateSize, w);
+		}
+	}
+
+	/**
+	 * Same as above for a concurrently read array; words are written with lazySet, i.e. in order
+	 */
+	static void pack(double[] s, int stateSize, AtomicLongArray dst, int base) {
+		int words = words(stateSize);
+		for (int w = 0; w < words; w++) {
+			dst.lazySet(base + w, word(s, stateSize, w));
+		}
+	}
+
+	/**
+	 * Same as above into a (usually memory-mapped) buffer, the state taking words(stateSize)*8 bytes from byte 'base'
+	 */
+	static void pack(double[] s, int stateSize, ByteBuffer dst, int base) {
+		int words = words(stateSize);
+		for (int w = 0; w < words; w++) {
+			dst.putLong(base + 8*w, word(s, stateSize, w));
+		}
+	}
+
+	/**
+	 * Long number w of the packed form of s
+	 */
+	static long word(double[] s, int stateSize, int w) {
+		long bits = 0L;
+		int start = w*64;
+		int end = Math.min(start + 64, stateSize);
+		for (int b = start; b < end; b++) {
+			if (s[b] != 0) bits |= 1L << (b - start);
+		}
+		return bits;
+	}
+
+	/**
+	 * Expands the state at src[base] into 'out' as 0/1 doubles starting at 'offset'
+	 */
+	static void unpack(long[] src, int base, int stateSize, double[] out, int offset) {
+		int words = words(stateSize);
+		for (int w = 0; w < words; w++) {
+			unpackWord(src[base + w], w, stateSize, out, offset);
+		}
+	}
+
+	static void unpack(AtomicLongArray src, int base, int stateSize, double[] out, int offset) {
+		int words = words(stateSize);
+		for (int w = 0; w < words; w++) {
+			unpackWord(src.get(base + w), w, stateSize, out, offset);
+		}
+	}
+
+	static void unpack(ByteBuffer src, int base, int stateSize, double[] out, int offset) {
+		int words = words(stateSize);
+		for (int w = 0; w < words; w++) {
+			unpackWord(src.getLong(base + 8*w), w, stateSize, out, offset);
+		}
+	}
+
+	private static void unpackWord(long bits, int w, int stateSize, double[] out, int offset) {
+		int start = w*64;
+		int end = Math.min(start + 64, stateSize);
+		for (int b = start; b < end; b++) {
+			out[offset + b] = (bits >>> (b - start)) & 1L;
+		}
+	}
+
+	/**
+	 * Writes the indices of the features set in the state at src[base] into 'out' from 'offset'
+	 * @return how many were written
+	 */
+	static int active(long[] src, int base, int words, int[] out, int offset) {
+		int n = offset;
+		for (int w = 0; w < words; w++) {
+			n = activeWord(src[base + w], w, out, n);
+		}
+		return n - offset;
+	}
+
+	static int active(AtomicLongArray src, int base, int words, int[] out, int offset) {
+		int n = offset;
+		for (int w = 0; w < words; w++) {
+			n = activeWord(src.get(base + w), w, out, n);
+		}
+		return n - offset;
+	}
+
+	static int active(ByteBuffer src, int base, int words, int[] out, int offset) {
+		int n = offset;
+		for (int w = 0; w < words; w++) {
+			n = activeWord(src.getLong(base + 8*w), w, out, n);
+		}
+		return n - offset;
+	}
+
+	private static int activeWord(long bits, int w, int[] out, int n) {
+		while (bits != 0) {
+			out[n++] = w*64 + Long.numberOfTrailingZeros(bits);
+			bits &= bits - 1;
+		}
+		return n;
+	}
+}
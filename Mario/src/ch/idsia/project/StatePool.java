@@ -0,0 +1,212 @@
+package ch.idsia.project;
+
+import java.util.Arrays;
+
+/**
+ * Binary states stored once each, by content: intern() returns the handle of an identical state already in the pool,
+ * or adds it. Handles are reference counted; release() drops a reference and frees the state with its last one,
+ * so a ReplayMemory can keep one reference per ring slot and reclaim states as slots are overwritten.
+ *
+ * States are packed as bits (see StateBits) in one flat array that grows as needed. Lookup is a hash table
+ * of chains threaded through the entries. Not thread-safe.
+ */
+public class StatePool {
+
+	private static final int INITIAL_ENTRIES = 1024;
+	private static final int NONE = -1;
+
+	private final int stateSize;
+	private final int words;
+
+	private long[] data;
+	private int[] refCounts;
+	private int[] hashes;
+	private int[] next; // next entry in the same bucket, or in the free list
+	private int[] buckets;
+	private int freeList = NONE;
+	private int used; // entries ever handed out; below this, free ones are on the free list
+	private int live; // entries with references
+	private long references;
+	private long interned;
+
+	private final long[] scratch;
+
+	public StatePool(int stateSize) {
+		this.stateSize = stateSize;
+		words = StateBits.words(stateSize);
+		scratch = new long[words];
+		data = new long[INITIAL_ENTRIES*words];
+		refCounts = new int[INITIAL_ENTRIES];
+		hashes = new int[INITIAL_ENTRIES];
+		next = new int[INITIAL_ENTRIES];
+		buckets = new int[2*INITIAL_ENTRIES];
+		Arrays.fill(buckets, NONE);
+	}
+
+	/**
+	 * Handle of state 's' (0/1 features), holding one new reference to it
+	 * @param s
+	 * @return
+	 */
+	public int intern(double[] s) {
+		StateBits.pack(s, stateSize, scratch, 0);
+		return intern(scratch, 0);
+	}
+
+	/**
+	 * Same as above for a state packed as bits at src[offset]
+	 */
+	public int intern(long[] src, int offset) {
+		interned++;
+		references++;
+		int hash = hash(src, offset);
+		int b = hash & (buckets.length - 1);
+		for (int e = buckets[b]; e != NONE; e = next[e]) {
+			if (hashes[e] == hash && equal(e, src, offset)) {
+				refCounts[e]++;
+				return e;
+			}
+		}
+		int e = allocate();
+		System.arraycopy(src, offset, data, e*words, words);
+		hashes[e] = hash;
+		refCounts[e] = 1;
+		b = hash & (buckets.length - 1); // allocate may have grown the table
+		next[e] = buckets[b];
+		buckets[b] = e;
+		live++;
+		return e;
+	}
+
+	/**
+	 * One more reference to 'handle', e.g. when a second ring slot holds the same state
+	 */
+	public void retain(int handle) {
+		refCounts[handle]++;
+		references++;
+	}
+
+	/**
+	 * Drops a reference to 'handle'; the state is freed with its last one and the handle may be reused
+	 */
+	public void release(int handle) {
+		references--;
+		if (--refCounts[handle] > 0) return;
+		int b = hashes[handle] & (buckets.length - 1);
+		if (buckets[b] == handle) buckets[b] = next[handle];
+		else {
+			int e = buckets[b];
+			while (next[e] != handle) e = next[e];
+			next[e] = next[handle];
+		}
+		next[handle] = freeList;
+		freeList = handle;
+		live--;
+	}
+
+	/**
+	 * Expands state 'handle' into 'out' as 0/1 doubles from 'offset'
+	 */
+	public void unpack(int handle, double[] out, int offset) {
+		StateBits.unpack(data, handle*words, stateSize, out, offset);
+	}
+
+	/**
+	 * Writes the indices of the non-zero features of state 'handle' into 'out' from 'offset'
+	 * @return how many were written
+	 */
+	public int active(int handle, int[] out, int offset) {
+		return StateBits.active(data, handle*words, words, out, offset);
+	}
+
+	/**
+	 * Copies state 'handle', packed as bits, into 'out' from 'offset'
+	 */
+	public void getPacked(int handle, long[] out, int offset) {
+		System.arraycopy(data, handle*words, out, offset, words);
+	}
+
+	public int getStateSize() {
+		return stateSize;
+	}
+
+	/**
+	 * Distinct states currently held
+	 */
+	public int size() {
+		return live;
+	}
+
+	/**
+	 * References currently held, i.e. states as many times as they are used
+	 */
+	public long getReferences() {
+		return references;
+	}
+
+	/**
+	 * Number of intern() calls so far
+	 */
+	public long getInterned() {
+		return interned;
+	}
+
+	/**
+	 * References per distinct state: how many copies interning saves
+	 */
+	public double dedupRatio() {
+		return live == 0 ? 1 : (double) references / live;
+	}
+
+	/**
+	 * Bytes of the pool's arrays, allocated capacity included
+	 */
+	public long bytes() {
+		return 8L*data.length + 4L*(refCounts.length + hashes.length + next.length + buckets.length);
+	}
+
+	private int allocate() {
+		if (freeList != NONE) {
+			int e = freeList;
+			freeList = next[e];
+			return e;
+		}
+		if (used == refCounts.length) grow();
+		return used++;
+	}
+
+	/**
+	 * Doubles the entries and the table, rehashing every live entry
+	 */
+	private void grow() {
+		int n = 2*refCounts.length;
+		data = Arrays.copyOf(data, n*words);
+		refCounts = Arrays.copyOf(refCounts, n);
+		hashes = Arrays.copyOf(hashes, n);
+		next = Arrays.copyOf(next, n);
+		buckets = new int[2*n];
+		Arrays.fill(buckets, NONE);
+		// there is no free entry when growing, so every entry below 'used' is live
+		for (int e = 0; e < used; e++) {
+			int b = hashes[e] & (buckets.length - 1);
+			next[e] = buckets[b];
+			buckets[b] = e;
+		}
+	}
+
+	private boolean equal(int e, long[] src, int offset) {
+		int base = e*words;
+		for (int w = 0; w < words; w++) {
+			if (data[base + w] != src[offset + w]) return false;
+		}
+		return true;
+	}
+
+	private int hash(long[] src, int offset) {
+		long h = 0;
+		for (int w = 0; w < words; w++) {
+			h = (h ^ src[offset + w]) * 0x9e3779b97f4a7c15L;
+		}
+		return (int) (h ^ (h >>> 32));
+	}
+}
@@ -0,0 +1,84 @@
+package ch.idsia.project;
+
+import java.util.Arrays;
+
+/**
+ * Priorities of a fixed number of slots, kept in a binary tree laid out in flat arrays so that
+ * updating a priority and drawing a slot with probability proportional to its priority are both O(log N).
+ * Node k has children 2k and 2k+1; the root is node 1 and slot i is leaf node size+i.
+ * A parallel tree keeps the smallest non-zero priority, needed for importance-sampling weights.
+ */
+public class SumTree {
+
+	private final int capacity;
+	private final int size; // capacity rounded up to a power of two
+	private final double[] sums;
+	private final double[] mins;
+
+	public SumTree(int capacity) {
+		this.capacity = capacity;
+		int s = 1;
+		while (s < capacity) s <<= 1;
+		size = s;
+		sums = new double[2*size];
+		mins = new double[2*size];
+		Arrays.fill(mins, Double.POSITIVE_INFINITY);
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Sets the priority of slot i; 0 means it is never drawn
+	 * @param i
+	 * @param priority
+	 */
+	public void set(int i, double priority) {
+		int k = size + i;
+		sums[k] = priority;
+		mins[k] = priority > 0 ? priority : Double.POSITIVE_INFINITY;
+		// parents are recomputed from their children rather than adjusted by a delta, so rounding never accumulates
+		for (k >>= 1; k >= 1; k >>= 1) {
+			sums[k] = sums[2*k] + sums[2*k + 1];
+			mins[k] = Math.min(mins[2*k], mins[2*k + 1]);
+		}
+	}
+
+	public double get(int i) {
+		return sums[size + i];
+	}
+
+	/**
+	 * Sum of all priorities
+	 */
+	public double total() {
+		return sums[1];
+	}
+
+	/**
+	 * Smallest non-zero priority, or +infinity if there is none
+	 */
+	public double min() {
+		return mins[1];
+	}
+
+	/**
+	 * The slot whose cumulative priority range contains u, for 0 <= u < total().
+	 * Slots with priority 0 are never returned (as long as total() > 0).
+	 * @param u
+	 * @return
+	 */
+	public int find(double u) {
+		int k = 1;
+		while (k < size) {
+			int left = 2*k;
+			if (u < sums[left] || sums[left + 1] <= 0) k = left;
+			else {
+				u -= sums[left];
+				k = left + 1;
+			}
+		}
+		return k - size;
+	}
+}
@@ -0,0 +1,100 @@
+package ch.idsia.project;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import ch.idsia.evolution.MLP;
+
+/**
+ * Cost of maintaining a target network: a hard refresh (copy + publish), a Polyak blend,
+ * and training steps with and without a target network. Then checks that actor threads
+ * reading the published policy keep deciding at full speed while the learner trains.
+ *
+ * Usage: TargetNetworkBenchmark [batchSize] [actor threads]
+ */
+public final class TargetNetworkBenchmark {
+
+	private static final int REPEATS = 2000;
+	private static final int STEPS = 2000;
+
+	public static void main(String[] args) throws InterruptedException {
+		int batchSize = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+		int readers = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+		Random rng = new Random(42);
+		ReplayMemory rm = BenchmarkUtil.filledMemory(20000, true, rng);
+		MinibatchBuffer batch = new MinibatchBuffer(batchSize, BenchmarkUtil.STATE_SIZE, true);
+
+		QNetwork live = new QNetwork(new MLP(BenchmarkUtil.STATE_SIZE, 64, 12));
+		QNetwork target = new QNetwork(new MLP(BenchmarkUtil.STATE_SIZE, 64, 12));
+		for (int pass = 0; pass < 2; pass++) {
+			long t = System.nanoTime();
+			for (int i = 0; i < REPEATS; i++) {
+				target.copyFrom(live);
+				target.snapshot();
+			}
+			long hard = System.nanoTime() - t;
+			t = System.nanoTime();
+			for (int i = 0; i < REPEATS; i++) target.blendFrom(live, 0.005);
+			long polyak = System.nanoTime() - t;
+			if (pass == 1) {
+				System.out.printf("hard refresh + publish: %8.0f ns%n", (double) hard / REPEATS);
+				System.out.printf("Polyak blend          : %8.0f ns%n", (double) polyak / REPEATS);
+			}
+		}
+
+		DQNAgent plain = new DQNAgent(new QNetwork(new MLP(BenchmarkUtil.STATE_SIZE, 64, 12)), 0.9);
+		DQNAgent hard = new DQNAgent(new QNetwork(new MLP(BenchmarkUtil.STATE_SIZE, 64, 12)), 0.9);
+		hard.useTargetNetwork(1000, 0);
+		DQNAgent soft = new DQNAgent(new QNetwork(new MLP(BenchmarkUtil.STATE_SIZE, 64, 12)), 0.9);
+		soft.useTargetNetwork(1000, 0.005);
+		System.out.printf("train step, no target   : %8.0f ns%n", trainNanos(plain, rm, batch));
+		System.out.printf("train step, K=1000      : %8.0f ns%n", trainNanos(hard, rm, batch));
+		System.out.printf("train step, tau=0.005   : %8.0f ns%n", trainNanos(soft, rm, batch));
+
+		// actors reading the published policy while the learner trains and republishes
+		final DQNAgent learner = new DQNAgent(new QNetwork(new MLP(BenchmarkUtil.STATE_SIZE, 64, 12)), 0.9);
+		learner.useTargetNetwork(10, 0);
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final long[] decisions = new long[readers];
+		Thread[] threads = new Thread[readers];
+		for (int r = 0; r < readers; r++) {
+			final int id = r;
+			threads[r] = new Thread(new Runnable() {
+				public void run() {
+					Random random = new Random(id);
+					double[] state = BenchmarkUtil.gameLikeState(random);
+					double[] hidden = new double[64];
+					double[] q = new double[12];
+					long n = 0;
+					while (running.get()) {
+						learner.getPolicy().greedyAction(state, hidden, q);
+						n++;
+					}
+					decisions[id] = n;
+				}
+			});
+			threads[r].start();
+		}
+		long t = System.nanoTime();
+		for (int i = 0; i < STEPS; i++) learner.train(rm, batch);
+		double elapsed = (System.nanoTime() - t) / 1e9;
+		running.set(false);
+		long total = 0;
+		for (int r = 0; r < readers; r++) {
+			threads[r].join();
+			total += decisions[r];
+		}
+		System.out.printf("%d actor threads: %.0f decisions/s on published snapshots while learning at %.0f steps/s%n",
+				readers, total / elapsed, STEPS / elapsed);
+	}
+
+	private static double trainNanos(DQNAgent agent, ReplayMemory rm, MinibatchBuffer batch) {
+		long elapsed = 0;
+		for (int pass = 0; pass < 2; pass++) {
+			long t = System.nanoTime();
+			for (int i = 0; i < STEPS; i++) agent.train(rm, batch);
+			elapsed = System.nanoTime() - t;
+		}
+		return (double) elapsed / STEPS;
+	}
+}
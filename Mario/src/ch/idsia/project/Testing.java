@@ -4,6 +4,9 @@ package ch.idsia.project;
 import ch.idsia.benchmark.tasks.MarioCustomSystemOfValues;
 import ch.idsia.evolution.MLP;
 import ch.idsia.tools.MarioAIOptions; 
+
+import java.io.File;
+import java.io.IOException;
 //import ch.idsia.benchmark.mario.environments.MarioEnvironment;
 
 /**
@@ -35,7 +38,7 @@ public final class Testing
  * @since MarioAI-0.1
  */
 
-public static void main(String[] args)
+public static void main(String[] args) throws IOException
 {
     MarioAIOptions marioAIOptions = new MarioAIOptions(args);
     marioAIOptions.setLevelType(0);
@@ -46,11 +49,19 @@ public static void main(String[] args)
     marioAIOptions.setAgent(agent);
     
     ReplayMemory rm = new ReplayMemory(10000, 255);
+    // -Ddqn.checkpoint=<file>: resume from it if it exists, and save to it at the end
+    String checkpoint = System.getProperty("dqn.checkpoint");
+    if (checkpoint != null && new File(checkpoint).exists()) Checkpointer.load(new File(checkpoint), agent, rm);
     final DQLTask basicTask = new DQLTask(marioAIOptions, rm);
     
     marioAIOptions.setVisualization(true);
     final MarioCustomSystemOfValues m = new MarioCustomSystemOfValues();
     basicTask.doEpisodes(1, true, 5);
+    if (checkpoint != null) {
+        Checkpointer checkpointer = new Checkpointer(new File(checkpoint), agent, rm);
+        checkpointer.save();
+        checkpointer.close();
+    }
     
 //    marioAIOptions.setVisualization(true);
 //    basicTask.runSingleEpisode(1,false);
@@ -0,0 +1,208 @@
+package ch.idsia.project;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import ch.idsia.benchmark.mario.environments.Environment;
+
+/**
+ * Reads back a TrajectoryRecorder file one frame at a time: next() moves to the next frame, and the getters
+ * (or asEnvironment(), for UtilAgent.getState and getReward) describe the current one.
+ * The arrays returned are reused by the next frame.
+ */
+public class TrajectoryReader {
+
+	private final DataInputStream file;
+	private final Inflater inflater = new Inflater();
+	private byte[] compressed = new byte[0];
+	private byte[] raw = new byte[0];
+	private DataInputStream block;
+	private int framesLeftInBlock;
+
+	private final RecordedFrames.Frame frame = new RecordedFrames.Frame();
+	private int action;
+	private boolean episodeStart;
+	private long frames;
+
+	public TrajectoryReader(File path) throws IOException {
+		file = new DataInputStream(new BufferedInputStream(new FileInputStream(path), 64*1024));
+		if (file.readInt() != TrajectoryRecorder.MAGIC || file.readInt() != TrajectoryRecorder.VERSION) {
+			file.close();
+			throw new IOException(path + " is not a trajectory recording");
+		}
+		frame.egoPos = new int[2];
+	}
+
+	/**
+	 * Moves to the next frame
+	 * @return false at the end of the file
+	 * @throws IOException
+	 */
+	public boolean next() throws IOException {
+		if (framesLeftInBlock == 0 && !readBlock()) return false;
+		framesLeftInBlock--;
+		int tag = block.readUnsignedByte();
+		episodeStart = (tag & TrajectoryRecorder.EPISODE_START) != 0;
+		action = block.readByte();
+		int h = block.readUnsignedByte();
+		int w = block.readUnsignedByte();
+		if (frame.scene == null || frame.scene.length != h || frame.scene[0].length != w) frame.scene = new byte[h][w];
+		for (byte[] row : frame.scene) block.readFully(row);
+		frame.egoPos[0] = block.readUnsignedByte();
+		frame.egoPos[1] = block.readUnsignedByte();
+		frame.x = block.readFloat();
+		frame.y = block.readFloat();
+		frame.mode = block.readUnsignedByte();
+		int flags = block.readUnsignedByte();
+		frame.onGround = (flags & 1) != 0;
+		frame.ableToJump = (flags & 2) != 0;
+		frame.carrying = (flags & 4) != 0;
+		frame.ableToShoot = (flags & 8) != 0;
+		frame.levelFinished = (flags & 16) != 0;
+		frame.killsTotal = block.readShort();
+		frame.killsByStomp = block.readShort();
+		frame.killsByFire = block.readShort();
+		frame.killsByShell = block.readShort();
+		frame.status = block.readByte();
+		frames++;
+		return true;
+	}
+
+	public void close() throws IOException {
+		inflater.end();
+		file.close();
+	}
+
+	/**
+	 * Frames read so far
+	 */
+	public long getFrames() {
+		return frames;
+	}
+
+	/**
+	 * The action index taken on this frame, or -1 if none was
+	 */
+	public int getAction() {
+		return action;
+	}
+
+	/**
+	 * True on the first frame of an episode
+	 */
+	public boolean isEpisodeStart() {
+		return episodeStart;
+	}
+
+	/**
+	 * The merged observation grid, as getMergedObservationZZ(1, 1) returned it
+	 */
+	public byte[][] getScene() {
+		return frame.scene;
+	}
+
+	public int[] getEgoPos() {
+		return frame.egoPos;
+	}
+
+	public float getX() {
+		return frame.x;
+	}
+
+	public float getY() {
+		return frame.y;
+	}
+
+	public int getMode() {
+		return frame.mode;
+	}
+
+	public int getStatus() {
+		return frame.status;
+	}
+
+	public boolean isLevelFinished() {
+		return frame.levelFinished;
+	}
+
+	public int getKillsTotal() {
+		return frame.killsTotal;
+	}
+
+	public int getKillsByStomp() {
+		return frame.killsByStomp;
+	}
+
+	public int getKillsByFire() {
+		return frame.killsByFire;
+	}
+
+	public int getKillsByShell() {
+		return frame.killsByShell;
+	}
+
+	RecordedFrames.Frame getFrame() {
+		return frame;
+	}
+
+	/**
+	 * An Environment showing the current frame, whose tick() moves to the next one
+	 * (throwing IllegalStateException past the end). reset() and performAction() are ignored,
+	 * and methods UtilAgent doesn't use throw UnsupportedOperationException.
+	 */
+	public Environment asEnvironment() {
+		return (Environment) Proxy.newProxyInstance(Environment.class.getClassLoader(),
+				new Class<?>[] {Environment.class}, new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) throws IOException {
+						String name = method.getName();
+						if (name.equals("tick")) {
+							if (!next()) throw new IllegalStateException("end of trajectory");
+							return null;
+						}
+						if (name.equals("reset")) return null;
+						if (name.equals("toString")) return "TrajectoryReader environment at frame " + frames;
+						return RecordedFrames.answer(frame, proxy, method, args);
+					}
+				});
+	}
+
+	/**
+	 * Reads and inflates the next block
+	 * @return false at the end of the file
+	 */
+	private boolean readBlock() throws IOException {
+		int count;
+		try {
+			count = file.readInt();
+		}
+		catch (EOFException e) {
+			return false;
+		}
+		int rawLength = file.readInt();
+		int length = file.readInt();
+		if (compressed.length < length) compressed = new byte[length];
+		if (raw.length < rawLength) raw = new byte[rawLength];
+		file.readFully(compressed, 0, length);
+		inflater.reset();
+		inflater.setInput(compressed, 0, length);
+		try {
+			if (inflater.inflate(raw, 0, rawLength) != rawLength) throw new IOException("truncated trajectory block");
+		}
+		catch (DataFormatException e) {
+			throw new IOException("corrupt trajectory block", e);
+		}
+		block = new DataInputStream(new ByteArrayInputStream(raw, 0, rawLength));
+		framesLeftInBlock = count;
+		return true;
+	}
+}
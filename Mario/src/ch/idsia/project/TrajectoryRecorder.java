@@ -0,0 +1,246 @@
+package ch.idsia.project;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+import ch.idsia.benchmark.mario.environments.Environment;
+
+/**
+ * Streams raw play to disk, frame by frame: the merged observation grid, Mario's position, mode, status flags,
+ * kill counters and the action chosen, so states can be re-encoded later without the simulator
+ * (see TrajectoryReader).
+ *
+ * Frames are stored whole, in blocks of framesPerBlock frames that each deflate and decode on their own;
+ * deflate's window already finds the previous frame's scene rows, so XORing frames against each other
+ * gained nothing on scrolling scenes and cost 40% on changing ones.
+ * Full blocks are deflated and written by a background thread; record() only encodes into memory, so the game
+ * loop doesn't wait for compression or I/O, unless maxPendingBlocks blocks are already waiting for the writer
+ * (a disk slower than the game), when it blocks until one is written. An I/O error is reported by flush() or close().
+ *
+ * File layout: MAGIC, VERSION, then blocks of (frames, raw length, compressed length, deflated bytes).
+ */
+public class TrajectoryRecorder {
+
+	static final int MAGIC = 0x4d54524a; // "MTRJ"
+	static final int VERSION = 2;
+	static final int DEFAULT_FRAMES_PER_BLOCK = 256;
+	static final int DEFAULT_MAX_PENDING_BLOCKS = 64; // about 6 MB of 256-frame blocks
+
+	// frame tag bits
+	static final int EPISODE_START = 1;
+
+	private final DataOutputStream file;
+	private final ExecutorService writer;
+	private final Deflater deflater;
+	private final int framesPerBlock;
+	private final Semaphore pendingLimit;
+
+	private final ByteArrayOutputStream block = new ByteArrayOutputStream(64*1024);
+	private final DataOutputStream blockOut = new DataOutputStream(block);
+	private final RecordedFrames.Frame current = new RecordedFrames.Frame();
+	private int framesInBlock;
+	private boolean episodeStart = true;
+	private long frames;
+
+	private final AtomicInteger pendingBlocks = new AtomicInteger();
+	private final AtomicLong bytesWritten = new AtomicLong();
+	private volatile IOException failure;
+
+	public TrajectoryRecorder(File path) throws IOException {
+		this(path, DEFAULT_FRAMES_PER_BLOCK, Deflater.DEFAULT_COMPRESSION, DEFAULT_MAX_PENDING_BLOCKS);
+	}
+
+	/**
+	 * @param path
+	 * @param framesPerBlock frames per compressed block; larger compresses better, smaller loses less on a crash
+	 * @param level Deflater compression level
+	 * @param maxPendingBlocks full blocks that may wait for the writer before record() blocks; bounds the memory used
+	 * @throws IOException
+	 */
+	public TrajectoryRecorder(File path, int framesPerBlock, int level, int maxPendingBlocks) throws IOException {
+		this.framesPerBlock = framesPerBlock;
+		pendingLimit = new Semaphore(maxPendingBlocks);
+		deflater = new Deflater(level);
+		file = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path), 64*1024));
+		file.writeInt(MAGIC);
+		file.writeInt(VERSION);
+		bytesWritten.addAndGet(8);
+		final String name = "trajectory-writer-" + path.getName();
+		writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Marks the next recorded frame as the first of an episode
+	 */
+	public void startEpisode() {
+		episodeStart = true;
+	}
+
+	/**
+	 * Appends the current frame of 'environment' (call after tick) and the action taken on it.
+	 * Blocks while maxPendingBlocks full blocks are waiting for the writer.
+	 * @param environment
+	 * @param action action index, or -1 for none (e.g. the frame a level finished)
+	 */
+	public void record(Environment environment, int action) {
+		RecordedFrames.capture(environment, current);
+		try {
+			blockOut.writeByte(episodeStart ? EPISODE_START : 0);
+			blockOut.writeByte(action);
+			byte[][] scene = current.scene;
+			blockOut.writeByte(scene.length);
+			blockOut.writeByte(scene[0].length);
+			for (byte[] row : scene) blockOut.write(row);
+			blockOut.writeByte(current.egoPos[0]);
+			blockOut.writeByte(current.egoPos[1]);
+			blockOut.writeFloat(current.x);
+			blockOut.writeFloat(current.y);
+			blockOut.writeByte(current.mode);
+			blockOut.writeByte(flags(current));
+			blockOut.writeShort(current.killsTotal);
+			blockOut.writeShort(current.killsByStomp);
+			blockOut.writeShort(current.killsByFire);
+			blockOut.writeShort(current.killsByShell);
+			blockOut.writeByte(current.status);
+		}
+		catch (IOException e) { // writing to memory doesn't fail
+			throw new IllegalStateException(e);
+		}
+		episodeStart = false;
+		frames++;
+		if (++framesInBlock == framesPerBlock) submitBlock();
+	}
+
+	/**
+	 * Hands the frames recorded so far to the writer and waits until they are on disk
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+		if (framesInBlock > 0) submitBlock();
+		try {
+			writer.submit(new Runnable() {
+				public void run() {
+					try {
+						file.flush();
+					}
+					catch (IOException e) {
+						if (failure == null) failure = e;
+					}
+				}
+			}).get();
+		}
+		catch (Exception e) {
+			throw new IOException("trajectory writer failed", e);
+		}
+		if (failure != null) throw failure;
+	}
+
+	/**
+	 * Writes what is left, closes the file and stops the writer thread
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		try {
+			flush();
+		}
+		finally {
+			writer.shutdown();
+			try {
+				writer.awaitTermination(1, TimeUnit.MINUTES);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			deflater.end();
+			file.close();
+		}
+	}
+
+	/**
+	 * Frames recorded so far
+	 */
+	public long getFrames() {
+		return frames;
+	}
+
+	/**
+	 * Bytes written to the file so far
+	 */
+	public long getBytesWritten() {
+		return bytesWritten.get();
+	}
+
+	/**
+	 * Full blocks handed to the writer thread and not yet written (at most maxPendingBlocks)
+	 */
+	public int getPendingBlocks() {
+		return pendingBlocks.get();
+	}
+
+	private void submitBlock() {
+		final byte[] raw = block.toByteArray();
+		final int count = framesInBlock;
+		block.reset();
+		framesInBlock = 0;
+		pendingLimit.acquireUninterruptibly(); // back-pressure: the writer is maxPendingBlocks behind
+		pendingBlocks.incrementAndGet();
+		writer.execute(new Runnable() {
+			public void run() {
+				try {
+					if (failure == null) writeBlock(raw, count);
+				}
+				catch (IOException e) {
+					failure = e;
+				}
+				finally {
+					pendingBlocks.decrementAndGet();
+					pendingLimit.release();
+				}
+			}
+		});
+	}
+
+	/**
+	 * On the writer thread
+	 */
+	private void writeBlock(byte[] raw, int count) throws IOException {
+		deflater.reset();
+		deflater.setInput(raw);
+		deflater.finish();
+		byte[] compressed = new byte[raw.length + raw.length/1000 + 64];
+		int length = 0;
+		while (!deflater.finished()) {
+			if (length == compressed.length) compressed = Arrays.copyOf(compressed, 2*compressed.length);
+			length += deflater.deflate(compressed, length, compressed.length - length);
+		}
+		file.writeInt(count);
+		file.writeInt(raw.length);
+		file.writeInt(length);
+		file.write(compressed, 0, length);
+		bytesWritten.addAndGet(12 + length);
+	}
+
+	static int flags(RecordedFrames.Frame f) {
+		return (f.onGround ? 1 : 0) | (f.ableToJump ? 2 : 0) | (f.carrying ? 4 : 0)
+				| (f.ableToShoot ? 8 : 0) | (f.levelFinished ? 16 : 0);
+	}
+}
@@ -0,0 +1,154 @@
+package ch.idsia.project;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import ch.idsia.benchmark.mario.environments.Environment;
+
+/**
+ * Records frames into a trajectory file (see TrajectoryRecorder) and reports the cost of record() on the caller's
+ * thread, the bytes per frame, and the speed of reading it back. Every frame, action and episode start read back
+ * is checked against what was recorded. The sizes are compared with the raw frame, with the RecordedFrames file
+ * (one gzip stream of the frames, without actions) and with one gzip stream of the same bytes record() lays out,
+ * which is what the trajectory file would be without blocks.
+ *
+ * Usage: TrajectoryRecorderBenchmark [-frames file | -random] [frames per block]
+ * Frames recorded from real play (RecordedFrames main) give the real sizes. Without them the frames come from
+ * RecordedFrames.syntheticPlay, which scrolls and stands still as play does; -random uses RecordedFrames.synthetic,
+ * whose scenes are fresh noise every frame. Actions are held for a few frames at a time, as an agent's are.
+ */
+public final class TrajectoryRecorderBenchmark {
+
+	private static final int EPISODE_LENGTH = 500;
+
+	public static void main(String[] args) throws IOException {
+		boolean recorded = args.length > 1 && args[0].equals("-frames");
+		boolean random = args.length > 0 && args[0].equals("-random");
+		int skip = recorded ? 2 : random ? 1 : 0;
+		int framesPerBlock = args.length > skip ? Integer.parseInt(args[skip]) : TrajectoryRecorder.DEFAULT_FRAMES_PER_BLOCK;
+		RecordedFrames frames = recorded ? RecordedFrames.read(new File(args[1]))
+				: random ? RecordedFrames.synthetic(50000, 42) : RecordedFrames.syntheticPlay(50000, 42);
+		int n = frames.size();
+		System.out.println((recorded ? "recorded" : random ? "random synthetic" : "synthetic play") + " frames: " + n
+				+ ", " + framesPerBlock + " frames per block");
+
+		File file = File.createTempFile("trajectory", ".trj");
+		File gzip = File.createTempFile("frames", ".bin.gz");
+		File stream = File.createTempFile("stream", ".gz");
+		file.deleteOnExit();
+		gzip.deleteOnExit();
+		stream.deleteOnExit();
+		Random rng = new Random(1);
+		int[] actions = new int[n];
+		for (int k = 0; k < n; k++) actions[k] = k > 0 && rng.nextInt(8) != 0 ? actions[k - 1] : rng.nextInt(12);
+
+		// warm up on a throwaway file, then time record() alone: compression and I/O are on the writer thread
+		File warmup = File.createTempFile("warmup", ".trj");
+		for (int i = 0; i < 3; i++) record(frames, actions, warmup, framesPerBlock).close();
+		warmup.delete();
+		long start = System.nanoTime();
+		TrajectoryRecorder recorder = record(frames, actions, file, framesPerBlock);
+		long recordNs = System.nanoTime() - start;
+		start = System.nanoTime();
+		recorder.close();
+		long closeNs = System.nanoTime() - start;
+
+		// raw frame: scene, ego position, float position, mode, flags, kills and status, as record() lays it out
+		Environment environment = frames.asEnvironment();
+		environment.tick();
+		byte[][] scene = environment.getMergedObservationZZ(1, 1);
+		int raw = scene.length*scene[0].length + 2 + 8 + 1 + 1 + 8 + 1;
+		frames.write(gzip);
+		writeStream(frames, actions, stream);
+
+		System.out.printf("record: %.0f ns/frame on the caller, close waited %.1f ms%n",
+				(double) recordNs / n, closeNs / 1e6);
+		System.out.printf("%-14s %10s %8s%n", "", "B/frame", "ratio");
+		System.out.printf("%-14s %10.1f %8.2f%n", "raw", (double) raw, 1.0);
+		System.out.printf("%-14s %10.1f %8.2f%n", "gzip frames", (double) gzip.length() / n, (double) raw*n / gzip.length());
+		System.out.printf("%-14s %10.1f %8.2f%n", "gzip stream", (double) stream.length() / n, (double) raw*n / stream.length());
+		System.out.printf("%-14s %10.1f %8.2f%n", "trajectory", (double) file.length() / n, (double) raw*n / file.length());
+
+		start = System.nanoTime();
+		verify(frames, actions, file);
+		System.out.printf("read and check: %.0f ns/frame%n", (double) (System.nanoTime() - start) / n);
+	}
+
+	private static TrajectoryRecorder record(RecordedFrames frames, int[] actions, File file, int framesPerBlock)
+			throws IOException {
+		TrajectoryRecorder recorder = new TrajectoryRecorder(file, framesPerBlock, Deflater.DEFAULT_COMPRESSION,
+				TrajectoryRecorder.DEFAULT_MAX_PENDING_BLOCKS);
+		Environment environment = frames.asEnvironment();
+		environment.reset(null);
+		for (int k = 0; k < actions.length; k++) {
+			if (k % EPISODE_LENGTH == 0) recorder.startEpisode();
+			environment.tick();
+			recorder.record(environment, actions[k]);
+		}
+		return recorder;
+	}
+
+	/**
+	 * The bytes record() lays out for every frame, as one gzip stream
+	 */
+	private static void writeStream(RecordedFrames frames, int[] actions, File file) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(file))));
+		try {
+			for (int k = 0; k < actions.length; k++) {
+				RecordedFrames.Frame f = frames.get(k % frames.size());
+				out.writeByte(k % EPISODE_LENGTH == 0 ? TrajectoryRecorder.EPISODE_START : 0);
+				out.writeByte(actions[k]);
+				out.writeByte(f.scene.length);
+				out.writeByte(f.scene[0].length);
+				for (byte[] row : f.scene) out.write(row);
+				out.writeByte(f.egoPos[0]);
+				out.writeByte(f.egoPos[1]);
+				out.writeFloat(f.x);
+				out.writeFloat(f.y);
+				out.writeByte(f.mode);
+				out.writeByte(TrajectoryRecorder.flags(f));
+				out.writeShort(f.killsTotal);
+				out.writeShort(f.killsByStomp);
+				out.writeShort(f.killsByFire);
+				out.writeShort(f.killsByShell);
+				out.writeByte(f.status);
+			}
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	private static void verify(RecordedFrames frames, int[] actions, File file) throws IOException {
+		TrajectoryReader reader = new TrajectoryReader(file);
+		Environment expected = frames.asEnvironment();
+		expected.reset(null);
+		RecordedFrames.Frame e = new RecordedFrames.Frame();
+		int k = 0;
+		while (reader.next()) {
+			expected.tick();
+			RecordedFrames.capture(expected, e);
+			RecordedFrames.Frame f = reader.getFrame();
+			boolean same = Arrays.deepEquals(e.scene, f.scene) && Arrays.equals(e.egoPos, f.egoPos)
+					&& Float.floatToIntBits(e.x) == Float.floatToIntBits(f.x)
+					&& Float.floatToIntBits(e.y) == Float.floatToIntBits(f.y)
+					&& e.mode == f.mode && e.status == f.status
+					&& TrajectoryRecorder.flags(e) == TrajectoryRecorder.flags(f)
+					&& e.killsTotal == f.killsTotal && e.killsByStomp == f.killsByStomp
+					&& e.killsByFire == f.killsByFire && e.killsByShell == f.killsByShell;
+			if (!same || reader.getAction() != actions[k] || reader.isEpisodeStart() != (k % EPISODE_LENGTH == 0)) {
+				throw new IllegalStateException("frame " + k + " differs");
+			}
+			k++;
+		}
+		reader.close();
+		if (k != actions.length) throw new IllegalStateException(k + " frames read of " + actions.length);
+	}
+}
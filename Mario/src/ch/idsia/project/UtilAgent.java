@@ -1,8 +1,5 @@
 package ch.idsia.project;
 
-import java.util.HashMap;
-import java.util.Map;
-
 import ch.idsia.agents.controllers.BasicMarioAIAgent;
 import ch.idsia.benchmark.mario.environments.Environment;
 
@@ -17,6 +14,7 @@ public abstract class UtilAgent extends BasicMarioAIAgent {
 
 	protected static final int NUM_EL = 10;
 	protected static final int NUM_FRAMES_STUCK = 5;
+	protected static final int STATE_SIZE = 15 + 3*8*NUM_EL;
 
 
 	// information on past state to calculate current
@@ -43,16 +41,29 @@ public abstract class UtilAgent extends BasicMarioAIAgent {
 
 	protected int notMovedCount;
 
+	// action repeat: every decision is held for this many frames, and their rewards are summed
+	protected int actionRepeat = 1;
+	protected int framesHeld;
+	protected double heldReward;
+
 	// the level of detail in observations
 	protected int zLevelScene = 1; 
 	protected int zLevelEnemies = 1; 
 
-	private Map<Integer, int[]> twelveToSixMap;
+	protected final ActionCodec actionCodec;
 
 
 	public UtilAgent(String s) {
+		this(s, ActionCodec.STANDARD);
+	}
+
+	/**
+	 * @param s
+	 * @param actionCodec maps action indices to keys; its size must match the network's outputs
+	 */
+	public UtilAgent(String s, ActionCodec actionCodec) {
 		super(s);
-		initializeActionMap();
+		this.actionCodec = actionCodec;
 	}
 
 
@@ -124,8 +135,16 @@ public abstract class UtilAgent extends BasicMarioAIAgent {
 	 * Far enemies + level elements: 0 or 1 in 8 directions in the 11x11 (or 12x11 if large mario)
 	 */
 	protected double[] getState(Environment environment) {
-		double[] state = new double[15 + 3*8*NUM_EL];
+		double[] state = new double[STATE_SIZE];
+		getState(environment, state);
+		return state;
+	}
 
+	/**
+	 * Same as above, writing into 'state' (at least STATE_SIZE long) instead of allocating
+	 */
+	protected void getState(Environment environment, double[] state) {
+		long t = Metrics.start();
 		int[] egoPos = environment.getMarioEgoPos();
 		byte[][] obs = environment.getMergedObservationZZ(zLevelScene, zLevelEnemies);
 
@@ -133,8 +152,7 @@ public abstract class UtilAgent extends BasicMarioAIAgent {
 		//		if (lastFloatPos==null) lastFloatPos = environment.getMarioFloatPos();
 
 		// update information on how long you've been stuck
-		notMovedCount = (Math.abs(currentFloatPosX - lastFloatPosX) < 0.0001 
-				&& Math.abs(currentFloatPosY - lastFloatPosY) < 0.0001) ? notMovedCount+1 : 0;
+		updateStuckCount();
 
 
 		// mario mode; one bit for small vs not, and another for fire vs not
@@ -165,21 +183,79 @@ public abstract class UtilAgent extends BasicMarioAIAgent {
 		state[14] = currentKillsByShell - lastKillsByShell >= 1 ? 1 : 0;
 
 		// enemy + scene location information -- (8*3 = 24) bits for each type
-		int[][][] observations = getDirections(obs, egoPos, currentMode == 0);
-		fillObs(observations, state, 15);
+		// (ObservationEncoder gives the same result as fillObs(getDirections(...)) without allocating)
+		ObservationEncoder.encode(obs, egoPos, currentMode == 0, state, 15);
+		Metrics.stop(Metrics.Stage.GET_STATE, t);
+	}
 
-		// and now state is complete
-		return state;
+	/**
+	 * Counts the frames in a row in which Mario hasn't moved
+	 */
+	protected void updateStuckCount() {
+		notMovedCount = (Math.abs(currentFloatPosX - lastFloatPosX) < 0.0001 
+				&& Math.abs(currentFloatPosY - lastFloatPosY) < 0.0001) ? notMovedCount+1 : 0;
+	}
+
+	/**
+	 * Hold every decision for k frames (1 = decide every frame).
+	 * Only one state, one decision and one transition are made per k frames;
+	 * the transition's reward is the sum of getReward over those frames.
+	 * Only loops built on advanceFrame honour it: DQNAgent.act, Actor and VectorEnv.
+	 * @param k
+	 */
+	public void setActionRepeat(int k) {
+		actionRepeat = Math.max(1, k);
+	}
+
+	public int getActionRepeat() {
+		return actionRepeat;
+	}
+
+	/**
+	 * Call at the start of every episode when using action repeat, so the first frame is a decision
+	 */
+	protected void startActionRepeat() {
+		framesHeld = actionRepeat - 1;
+		heldReward = 0;
 	}
 
 	/**
-	 * Returns the observations of elements in 8 directions at 3 ranges
+	 * Frame bookkeeping under action repeat, to call after every environment.tick().
+	 * Between decisions, it updates the current/previous information and the stuck count as a full frame would,
+	 * adds the frame's reward to the running sum, and returns false: the caller just repeats the held action.
+	 * On decision frames (every actionRepeat-th, and the frame the level finishes) it only calls setCurrents and
+	 * returns true: the caller then calls getState, getRepeatedReward, stores the transition and calls setPrevious.
+	 */
+	protected boolean advanceFrame(Environment environment) {
+		setCurrents(environment);
+		if (++framesHeld < actionRepeat && !environment.isLevelFinished()) {
+			updateStuckCount();
+			heldReward += getReward(environment);
+			setPrevious(environment);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * The reward of the decision frame plus those of the frames the last action was held for
+	 */
+	protected double getRepeatedReward(Environment environment) {
+		double r = heldReward + getReward(environment);
+		heldReward = 0;
+		framesHeld = 0;
+		return r;
+	}
+
+	/**
+	 * Returns the observations of elements in 8 directions at 3 ranges.
+	 * This is the reference that ObservationEncoder's tables are built from.
 	 * @param obs
 	 * @param egoPos
 	 * @param isShort
 	 * @return
 	 */
-	protected int[][][] getDirections(byte[][] obs, int[] egoPos, boolean isShort) {
+	protected static int[][][] getDirections(byte[][] obs, int[] egoPos, boolean isShort) {
 		// numElements is the number of observations we care about
 		// 3 for the 3 ranges (flatten it later)
 		// 8 for the 8 directions
@@ -280,7 +356,7 @@ public abstract class UtilAgent extends BasicMarioAIAgent {
 	 * We consider "can't pass through", border hill, brick, flower pot/cannon, 
 	 * fire flower, goomba, spiky, mushroom, and fireball
 	 */
-	private static int getEl(int el) {
+	static int getEl(int el) {
 		switch(el) {
 		case -60: return 1; // can't pass through
 		case -62: return 2; // border hill
@@ -301,7 +377,7 @@ public abstract class UtilAgent extends BasicMarioAIAgent {
 	 * @param state
 	 * @param k
 	 */
-	private static void fillObs(int[][][] observations, double[] state, int n) {
+	static void fillObs(int[][][] observations, double[] state, int n) {
 		for (int i = 0; i < observations.length; i++) {
 			for (int j = 0; j < observations[i].length; j++) {
 				for (int k = 0; k < observations[i][j].length; k++) {
@@ -312,47 +388,12 @@ public abstract class UtilAgent extends BasicMarioAIAgent {
 	}
 
 	/**
-	 * Mapping from one-hot encoding of 12 states to true indices in Mario 
-	 * 0= stay, no jump, no speed (none active)
-	 * 1= left, no jump, no speed (0)
-	 * 2= right, no jump, no speed (1)
-	 * 3= stay, jump, no speed (3)
-	 * 4= left, jump, no speed (0,3)
-	 * 5= right, jump, no speed (1,3)
-	 * 6= stay, no jump, speed (4)
-	 * 7= left, no jump, speed (0,4)
-	 * 8= right, no jump, speed (1,4)
-	 * 9= stay, jump, speed (3,4)
-	 * 10= left, jump, speed (0,3,4)
-	 * 11= right, jump, speed (1,3,4)
-	 */
-	private void initializeActionMap() {
-		twelveToSixMap = new HashMap<Integer, int[]>(12);
-		twelveToSixMap.put(0, new int[]{});
-		twelveToSixMap.put(1, new int[]{0});
-		twelveToSixMap.put(2, new int[]{1});
-		twelveToSixMap.put(3, new int[]{3});
-		twelveToSixMap.put(4, new int[]{0,3});
-		twelveToSixMap.put(5, new int[]{1,3});
-		twelveToSixMap.put(6, new int[]{4});
-		twelveToSixMap.put(7, new int[]{0,4});
-		twelveToSixMap.put(8, new int[]{1,4});
-		twelveToSixMap.put(9, new int[]{3,4});
-		twelveToSixMap.put(10, new int[]{0,3,4});
-		twelveToSixMap.put(11, new int[]{1,3,4});
-	}
-
-
-	/**
-	 * Maps the neural net's 12 one-hot actions to the 6 boolean keys.
-	 * In order, the keys represent 0=LEFT, 1=RIGHT, 2=DOWN, 3=JUMP, 4=SPEED, and 5=UP (see Mario.java)
-	 * The agent only considers 12 actions from the space of 64: 
-	 * {LEFT, RIGHT, STAY} x {JUMP, NOTJUMP} x {SPEED(FIRE), NOSPEED}.
+	 * Maps the neural net's 12 one-hot actions to the 6 boolean keys (see ActionCodec.STANDARD).
+	 * The returned array is shared between calls and must not be modified; prefer getActionCodec().keys(action).
 	 * @param twelve
 	 * @return
 	 */
 	public boolean[] twelveToSixActions(int[] twelve) {
-		boolean[] six = new boolean[6];
 		int action = 0;
 		for (int i = 0; i < twelve.length; i++) {
 			if (twelve[i] > 0) {
@@ -360,28 +401,45 @@ public abstract class UtilAgent extends BasicMarioAIAgent {
 				break;
 			}
 		}
-		int[] idx = twelveToSixMap.get(action);
-		for (int i : idx) {
-			six[i] = true;
-		}
-		return six;
+		return actionCodec.keys(action);
+	}
+
+	/**
+	 * How this agent's action indices map to keys
+	 */
+	public ActionCodec getActionCodec() {
+		return actionCodec;
 	}
 
 	protected int argmax(double[] array) {
+		return argmax(array, 0, array.length);
+	}
+
+	/**
+	 * Argmax over array[offset .. offset+length-1], as an index from offset
+	 */
+	protected int argmax(double[] array, int offset, int length) {
 		int idx = 0;
 		double max = Double.NEGATIVE_INFINITY;
-		for (int i = 0; i < array.length; i++) {
-			if (array[i] > max) {
+		for (int i = 0; i < length; i++) {
+			if (array[offset + i] > max) {
 				idx = i;
-				max = array[i];
+				max = array[offset + i];
 			}
 		}
 		return idx;
 	}
 
 	protected double max(double[] array) {
+		return max(array, 0, array.length);
+	}
+
+	/**
+	 * Max over array[offset .. offset+length-1], e.g. one row of a flat batch
+	 */
+	protected double max(double[] array, int offset, int length) {
 		double max = Double.NEGATIVE_INFINITY;
-		for (int i = 0; i < array.length; i++) {
+		for (int i = offset; i < offset + length; i++) {
 			if (array[i] > max) {
 				max = array[i];
 			}
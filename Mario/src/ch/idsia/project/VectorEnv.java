@@ -0,0 +1,203 @@
+package ch.idsia.project;
+
+import ch.idsia.benchmark.mario.environments.Environment;
+import ch.idsia.tools.MarioAIOptions;
+
+/**
+ * N Mario environments stepped together, so actions for all of them can come from one batched forward pass
+ * (see DQNAgent.getActions). Each environment has its own UtilAgent bookkeeping, so states and rewards
+ * are exactly those an Actor would compute.
+ *
+ * Observations are one flat N x STATE_SIZE row-major matrix; rewards and done flags are vectors of N.
+ * All three are reused by the next step(). An environment whose level finished is reset within the same step:
+ * its observation row is then the first state of the new episode, and the state the episode ended in
+ * is in getFinalObservations() instead.
+ * Environments are stepped one after another on the caller's thread.
+ */
+public class VectorEnv {
+
+	private final Slot[] slots;
+	private final MarioAIOptions options;
+	private final ActionCodec codec;
+
+	private final double[] observations;
+	private final double[] finalObservations;
+	private final double[] rewards;
+	private final boolean[] done;
+	private long steps;
+	private long episodes;
+
+	/**
+	 * @param n number of environments
+	 * @param environmentFactory called with ids 0 .. n-1, on this thread
+	 * @param codec maps the action indices given to step() to keys
+	 * @param args MarioAIOptions arguments for every environment; visualization is always turned off
+	 */
+	public VectorEnv(int n, EnvironmentFactory environmentFactory, ActionCodec codec, String[] args) {
+		this.codec = codec;
+		options = new MarioAIOptions(args);
+		options.setVisualization(false);
+		slots = new Slot[n];
+		for (int i = 0; i < n; i++) slots[i] = new Slot(environmentFactory.create(i));
+		observations = new double[n*UtilAgent.STATE_SIZE];
+		finalObservations = new double[n*UtilAgent.STATE_SIZE];
+		rewards = new double[n];
+		done = new boolean[n];
+	}
+
+	/**
+	 * Number of environments
+	 */
+	public int size() {
+		return slots.length;
+	}
+
+	public int getStateSize() {
+		return UtilAgent.STATE_SIZE;
+	}
+
+	public ActionCodec getActionCodec() {
+		return codec;
+	}
+
+	/**
+	 * Holds every action for k frames, summing the rewards (see UtilAgent.setActionRepeat)
+	 * @param k
+	 */
+	public void setActionRepeat(int k) {
+		for (Slot s : slots) s.setActionRepeat(k);
+	}
+
+	/**
+	 * Starts a new episode in every environment
+	 * @return the N x STATE_SIZE first observations, reused by the next call
+	 */
+	public double[] reset() {
+		for (int i = 0; i < slots.length; i++) {
+			slots[i].reset(i);
+			done[i] = false;
+			rewards[i] = 0;
+		}
+		return observations;
+	}
+
+	/**
+	 * Performs actions[i] in environment i, and fills the observations, rewards and done flags
+	 * @param actions N action indices of the codec
+	 * @return the N x STATE_SIZE observations, reused by the next call
+	 */
+	public double[] step(int[] actions) {
+		for (int i = 0; i < slots.length; i++) {
+			Slot s = slots[i];
+			rewards[i] = s.step(codec.keys(actions[i]), i);
+			done[i] = s.environment.isLevelFinished();
+			if (done[i]) {
+				System.arraycopy(observations, i*UtilAgent.STATE_SIZE, finalObservations, i*UtilAgent.STATE_SIZE,
+						UtilAgent.STATE_SIZE);
+				s.reset(i);
+				episodes++;
+			}
+		}
+		steps += slots.length;
+		return observations;
+	}
+
+	public double[] getObservations() {
+		return observations;
+	}
+
+	/**
+	 * Rows i with isDone(i) after the last step() hold the state episode i ended in; other rows are stale
+	 */
+	public double[] getFinalObservations() {
+		return finalObservations;
+	}
+
+	public double[] getRewards() {
+		return rewards;
+	}
+
+	public boolean[] getDone() {
+		return done;
+	}
+
+	public boolean isDone(int i) {
+		return done[i];
+	}
+
+	public Environment getEnvironment(int i) {
+		return slots[i].environment;
+	}
+
+	/**
+	 * Decisions taken in all environments so far; each is actionRepeat frames
+	 */
+	public long getSteps() {
+		return steps;
+	}
+
+	/**
+	 * Episodes finished in all environments so far
+	 */
+	public long getEpisodes() {
+		return episodes;
+	}
+
+	/**
+	 * One environment and the state/reward bookkeeping for it
+	 */
+	private class Slot extends UtilAgent {
+
+		final Environment environment;
+		private final double[] state = new double[STATE_SIZE];
+
+		Slot(Environment environment) {
+			super("VectorEnv");
+			this.environment = environment;
+		}
+
+		/**
+		 * Resets the environment and writes its first observation into row i
+		 */
+		void reset(int i) {
+			environment.reset(options);
+			setCurrents(environment);
+			setPrevious(environment);
+			notMovedCount = 0;
+			framesHeld = 0;
+			heldReward = 0;
+			long t = Metrics.start();
+			environment.tick();
+			Metrics.envTick(t);
+			setCurrents(environment);
+			observe(i);
+			setPrevious(environment);
+		}
+
+		/**
+		 * Holds 'keys' for actionRepeat frames (or until the level finishes), writes the state into row i
+		 * @return the reward summed over those frames
+		 */
+		double step(boolean[] keys, int i) {
+			do {
+				environment.performAction(keys);
+				long t = Metrics.start();
+				environment.tick();
+				Metrics.envTick(t);
+			} while (!advanceFrame(environment));
+			observe(i);
+			double r = getRepeatedReward(environment);
+			setPrevious(environment);
+			return r;
+		}
+
+		private void observe(int i) {
+			getState(environment, state);
+			System.arraycopy(state, 0, observations, i*STATE_SIZE, STATE_SIZE);
+		}
+
+		@Override
+		public void reset() {
+		}
+	}
+}
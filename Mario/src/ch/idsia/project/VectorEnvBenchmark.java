@@ -0,0 +1,98 @@
+package ch.idsia.project;
+
+import java.io.File;
+import java.io.IOException;
+
+import ch.idsia.benchmark.mario.environments.Environment;
+import ch.idsia.evolution.MLP;
+
+/**
+ * Decisions per second of a VectorEnv as the number of environments grows, with actions for all of them
+ * from one DQNAgent.getActions call (one batched sparse forward pass) against one QNetwork.propagateSparse call
+ * per environment, so both sides use the same sparse kernel and the difference is the batching.
+ * Also reports how the time splits between choosing actions and stepping the environments.
+ *
+ * By default the environments play back recorded frames (see RecordedFrames), so the game itself costs almost
+ * nothing and the numbers show the agent's side; with -live they are real games from IsolatedEnvironmentFactory.
+ *
+ * Usage: VectorEnvBenchmark [-live | -frames file] [MarioAIOptions args...]
+ */
+public final class VectorEnvBenchmark {
+
+	private static final int[] SIZES = {1, 2, 4, 8, 16, 32, 64};
+	private static final long RUN_NANOS = 2000000000L;
+
+	public static void main(String[] args) throws IOException {
+		boolean live = args.length > 0 && args[0].equals("-live");
+		final RecordedFrames recorded = args.length > 1 && args[0].equals("-frames") ? RecordedFrames.read(new File(args[1])) : null;
+		int skip = live ? 1 : recorded != null ? 2 : 0;
+		String[] marioArgs = new String[args.length - skip];
+		System.arraycopy(args, skip, marioArgs, 0, marioArgs.length);
+
+		EnvironmentFactory factory = live ? new IsolatedEnvironmentFactory() : new EnvironmentFactory() {
+			public Environment create(int id) {
+				// different frames per environment, so their states differ as live ones would
+				return (recorded != null ? recorded : RecordedFrames.synthetic(1000, id)).asEnvironment();
+			}
+		};
+		System.out.println((live ? "live games" : recorded != null ? "recorded frames" : "synthetic frames")
+				+ ", java " + System.getProperty("java.version") + ", " + Runtime.getRuntime().availableProcessors() + " cores");
+		System.out.printf("%4s %16s %16s %12s %12s%n", "N", "batched dec/s", "per-env dec/s", "act share", "speedup");
+		for (int n : SIZES) {
+			VectorEnv env = new VectorEnv(n, factory, ActionCodec.STANDARD, marioArgs);
+			double[] batched = run(env, true);
+			double[] single = run(env, false);
+			System.out.printf("%4d %16.0f %16.0f %11.0f%% %11.2fx%n", n, batched[0], single[0], 100*batched[1], batched[0] / single[0]);
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * @return decisions per second and the fraction of time spent choosing actions
+	 */
+	private static double[] run(VectorEnv env, boolean batched) {
+		int n = env.size();
+		QNetwork net = new QNetwork(new MLP(UtilAgent.STATE_SIZE, 64, 12));
+		DQNAgent agent = new DQNAgent(net, 0.9);
+		int[] actions = new int[n];
+		int[] active = new int[UtilAgent.STATE_SIZE];
+		double[] obs = env.reset();
+		long acting = 0;
+		long decisions = 0;
+		for (int round = 0; round < 2; round++) { // warm-up, then measured
+			acting = 0;
+			decisions = 0;
+			long start = System.nanoTime();
+			long end = start + (round == 0 ? RUN_NANOS / 4 : RUN_NANOS);
+			while (System.nanoTime() < end) {
+				long t = System.nanoTime();
+				if (batched) agent.getActions(obs, n, actions, false);
+				else {
+					for (int i = 0; i < n; i++) {
+						int count = 0;
+						for (int k = 0; k < UtilAgent.STATE_SIZE; k++) {
+							if (obs[i*UtilAgent.STATE_SIZE + k] == 1) active[count++] = k;
+						}
+						actions[i] = argmax(net.propagateSparse(active, count));
+					}
+				}
+				acting += System.nanoTime() - t;
+				obs = env.step(actions);
+				decisions += n;
+			}
+			if (round == 1) {
+				double seconds = (System.nanoTime() - start) / 1e9;
+				return new double[] {decisions / seconds, acting / 1e9 / seconds};
+			}
+		}
+		return null;
+	}
+
+	private static int argmax(double[] q) {
+		int best = 0;
+		for (int a = 1; a < q.length; a++) {
+			if (q[a] > q[best]) best = a;
+		}
+		return best;
+	}
+}
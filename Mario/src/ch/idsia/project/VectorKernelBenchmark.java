@@ -0,0 +1,138 @@
+package ch.idsia.project;
+
+import java.util.Random;
+
+import ch.idsia.evolution.MLP;
+
+/**
+ * Per-sample forward and forward+backward cost of ch.idsia.evolution.MLP against QNetwork with the scalar
+ * kernels and, if available, the Vector API kernels (see Kernels), at batch size 1 and 32.
+ * Also trains all of them on the same samples and reports how far their Q-values drift from the MLP's.
+ *
+ * To include the vector kernels, compile Mario/src-vector as well and run with
+ * --add-modules jdk.incubator.vector; otherwise only the scalar ones are measured.
+ */
+public final class VectorKernelBenchmark {
+
+	private static final int HIDDEN = 64;
+	private static final int OUTPUTS = 12;
+	private static final int STATES = 1000;
+	private static final int SAMPLES = 200000;
+	private static final int TRAIN_STEPS = 2000;
+
+	static volatile double sink;
+
+	public static void main(String[] args) {
+		Random rng = new Random(42);
+		double[][] states = new double[STATES][];
+		double[][] targets = new double[STATES][OUTPUTS];
+		for (int i = 0; i < STATES; i++) {
+			states[i] = BenchmarkUtil.randomState(rng);
+			for (int o = 0; o < OUTPUTS; o++) targets[i][o] = rng.nextDouble()*2 - 1;
+		}
+
+		Kernels vector = Kernels.vector();
+		System.out.println("java " + System.getProperty("java.version") + ", kernels: scalar"
+				+ (vector != null ? ", " + vector.name() : " (vector kernels not available)"));
+
+		MLP mlp = new MLP(BenchmarkUtil.STATE_SIZE, HIDDEN, OUTPUTS);
+		QNetwork scalarNet = network(mlp, new Kernels.Scalar());
+		QNetwork vectorNet = vector != null ? network(mlp, vector) : null;
+		for (int i = 0; i < TRAIN_STEPS; i++) {
+			int k = i % STATES;
+			mlp.propagate(states[k]);
+			mlp.backPropagate(targets[k]);
+			train(scalarNet, states[k], targets[k]);
+			if (vectorNet != null) train(vectorNet, states[k], targets[k]);
+		}
+		System.out.printf("max |Q - MLP's Q| after %d updates: scalar %.3g%s%n", TRAIN_STEPS, maxDiff(mlp, scalarNet, states),
+				vectorNet != null ? String.format(", vector %.3g", maxDiff(mlp, vectorNet, states)) : "");
+
+		System.out.printf("%n%-22s %12s %18s%n", "", "forward", "forward+backward");
+		report("MLP", mlpForward(mlp, states), mlpTrain(mlp, states, targets));
+		for (QNetwork net : new QNetwork[] {scalarNet, vectorNet}) {
+			if (net == null) continue;
+			report("QNetwork " + net.getKernels(), netForward(net, states, 1), netTrain(net, states, targets, 1));
+			report("QNetwork " + net.getKernels() + " b32", netForward(net, states, 32), netTrain(net, states, targets, 32));
+		}
+	}
+
+	private static QNetwork network(MLP mlp, Kernels kernels) {
+		QNetwork net = new QNetwork(mlp);
+		net.setKernels(kernels);
+		return net;
+	}
+
+	private static void train(QNetwork net, double[] state, double[] target) {
+		net.forward(state, 1);
+		net.backward(target);
+	}
+
+	private static double maxDiff(MLP mlp, QNetwork net, double[][] states) {
+		double diff = 0;
+		for (double[] s : states) {
+			double[] a = mlp.propagate(s);
+			double[] b = net.propagate(s);
+			for (int o = 0; o < OUTPUTS; o++) diff = Math.max(diff, Math.abs(a[o] - b[o]));
+		}
+		return diff;
+	}
+
+	private static void report(String name, double forwardNs, double trainNs) {
+		System.out.printf("%-22s %9.0f ns %15.0f ns   per sample%n", name, forwardNs, trainNs);
+	}
+
+	private static double mlpForward(MLP mlp, double[][] states) {
+		for (int i = 0; i < SAMPLES / 4; i++) sink += mlp.propagate(states[i % STATES])[0];
+		long start = System.nanoTime();
+		for (int i = 0; i < SAMPLES; i++) sink += mlp.propagate(states[i % STATES])[0];
+		return (double) (System.nanoTime() - start) / SAMPLES;
+	}
+
+	private static double mlpTrain(MLP mlp, double[][] states, double[][] targets) {
+		for (int i = 0; i < SAMPLES / 8; i++) {
+			mlp.propagate(states[i % STATES]);
+			sink += mlp.backPropagate(targets[i % STATES]);
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < SAMPLES / 2; i++) {
+			mlp.propagate(states[i % STATES]);
+			sink += mlp.backPropagate(targets[i % STATES]);
+		}
+		return (double) (System.nanoTime() - start) / (SAMPLES / 2);
+	}
+
+	private static double netForward(QNetwork net, double[][] states, int n) {
+		double[][] batches = batches(states, n, BenchmarkUtil.STATE_SIZE);
+		int calls = SAMPLES / n;
+		for (int i = 0; i < calls / 4; i++) sink += net.forward(batches[i % batches.length], n)[0];
+		long start = System.nanoTime();
+		for (int i = 0; i < calls; i++) sink += net.forward(batches[i % batches.length], n)[0];
+		return (double) (System.nanoTime() - start) / (calls*n);
+	}
+
+	private static double netTrain(QNetwork net, double[][] states, double[][] targets, int n) {
+		double[][] batches = batches(states, n, BenchmarkUtil.STATE_SIZE);
+		double[][] batchTargets = batches(targets, n, OUTPUTS);
+		int calls = SAMPLES / 2 / n;
+		for (int i = 0; i < calls / 4; i++) {
+			net.forward(batches[i % batches.length], n);
+			sink += net.backward(batchTargets[i % batches.length]);
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < calls; i++) {
+			net.forward(batches[i % batches.length], n);
+			sink += net.backward(batchTargets[i % batches.length]);
+		}
+		return (double) (System.nanoTime() - start) / (calls*n);
+	}
+
+	/**
+	 * Rows grouped n at a time into row-major arrays
+	 */
+	private static double[][] batches(double[][] rows, int n, int width) {
+		double[][] b = new double[rows.length / n][n*width];
+		for (int i = 0; i < b.length*n; i++) System.arraycopy(rows[i], 0, b[i / n], (i % n)*width, width);
+		return b;
+	}
+}